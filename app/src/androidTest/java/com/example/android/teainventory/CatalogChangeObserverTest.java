@@ -0,0 +1,137 @@
+package com.example.android.teainventory;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.ProviderTestCase2;
+
+import com.example.android.teainventory.data.TeaContract;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.data.TeaProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation tests for {@link CatalogChangeObserver}, counting the queries it issues.
+ */
+public class CatalogChangeObserverTest
+        extends ProviderTestCase2<CatalogChangeObserverTest.CountingTeaProvider> {
+
+    private static final String[] PROJECTION = {
+            TeaEntry._ID,
+            TeaEntry.COLUMN_TEA_NAME,
+            TeaEntry.COLUMN_TEA_QUANTITY };
+
+    /**
+     * {@link TeaProvider} that records the URI of every query made against it.
+     */
+    public static class CountingTeaProvider extends TeaProvider {
+        final List<Uri> queries = new ArrayList<Uri>();
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            synchronized (queries) {
+                queries.add(uri);
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+    }
+
+    private HandlerThread mThread;
+    private RecordingCallback mCallback;
+    private CatalogChangeObserver mObserver;
+
+    public CatalogChangeObserverTest() {
+        super(CountingTeaProvider.class, TeaContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("CatalogChangeObserverTest");
+        mThread.start();
+        mCallback = new RecordingCallback();
+        mObserver = new CatalogChangeObserver(new Handler(mThread.getLooper()),
+                getMockContentResolver(), PROJECTION, mCallback);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testSaleFetchesOnlyTheSoldTea() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            ContentValues values = new ContentValues();
+            values.put(TeaEntry.COLUMN_TEA_NAME, "Tea " + i);
+            values.put(TeaEntry.COLUMN_TEA_TYPE, TeaEntry.TYPE_GREEN);
+            values.put(TeaEntry.COLUMN_TEA_QUANTITY, 10);
+            getMockContentResolver().insert(TeaEntry.CONTENT_URI, values);
+        }
+        long teaId = 7;
+        TeaContract.sellTea(getMockContentResolver(), teaId, 1);
+        getProvider().queries.clear();
+
+        // The provider announces the sale on the tea's own URI
+        Uri teaUri = ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId);
+        mObserver.dispatchChange(false, teaUri);
+        assertTrue(mCallback.await());
+
+        // One single-row fetch instead of a query over the whole table
+        assertEquals(1, getProvider().queries.size());
+        assertEquals(teaUri, getProvider().queries.get(0));
+        assertEquals(teaId, mCallback.changedTeaId);
+        assertEquals(9, (int) mCallback.changedValues.getAsInteger(TeaEntry.COLUMN_TEA_QUANTITY));
+        assertFalse(mCallback.reloadRequired);
+    }
+
+    public void testTableChangeRequiresReload() throws Exception {
+        mObserver.dispatchChange(false, TeaEntry.CONTENT_URI);
+        assertTrue(mCallback.await());
+
+        assertTrue(mCallback.reloadRequired);
+        assertEquals(0, getProvider().queries.size());
+    }
+
+    public void testDeletedTeaRequiresReload() throws Exception {
+        mObserver.dispatchChange(false, ContentUris.withAppendedId(TeaEntry.CONTENT_URI, 99));
+        assertTrue(mCallback.await());
+
+        assertTrue(mCallback.reloadRequired);
+    }
+
+    /**
+     * Records what the observer reported.
+     */
+    private static class RecordingCallback implements CatalogChangeObserver.Callback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile long changedTeaId = -1;
+        volatile ContentValues changedValues;
+        volatile boolean reloadRequired;
+
+        @Override
+        public void onTeaChanged(long teaId, ContentValues values) {
+            changedTeaId = teaId;
+            changedValues = values;
+            latch.countDown();
+        }
+
+        @Override
+        public void onReloadRequired() {
+            reloadRequired = true;
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
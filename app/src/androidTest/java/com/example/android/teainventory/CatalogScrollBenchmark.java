@@ -0,0 +1,254 @@
+package com.example.android.teainventory;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.image.ImageStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame time benchmark for scrolling the catalog through {@link #TEA_COUNT} teas with
+ * thumbnails. Results are written to logcat under the {@link #LOG_TAG} tag.
+ *
+ * The catalog reads the app's own database, so the benchmark only runs when that holds no
+ * teas, and deletes its own teas again afterwards. It never touches a real inventory.
+ */
+public class CatalogScrollBenchmark extends ActivityInstrumentationTestCase2<CatalogActivity> {
+
+    private static final String LOG_TAG = CatalogScrollBenchmark.class.getSimpleName();
+
+    /** Number of teas scrolled through */
+    private static final int TEA_COUNT = 10000;
+
+    /**
+     * Number of different images the teas show, more than the thumbnail cache holds, so
+     * thumbnails keep being decoded into reused bitmaps while scrolling
+     */
+    private static final int IMAGE_COUNT = 100;
+
+    /** Most frames recorded, about half a minute at 60 frames a second */
+    private static final int MAX_FRAMES = 2000;
+
+    /** Largest share of frames, in percent, that may take longer than one refresh */
+    private static final int MAX_DROPPED_FRAME_PERCENT = 5;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private final Uri[] mImages = new Uri[IMAGE_COUNT];
+
+    /** Whether the database was empty, so the benchmark filled it and may empty it again */
+    private boolean mFilled;
+
+    public CatalogScrollBenchmark() {
+        super(CatalogActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mResolver = mContext.getContentResolver();
+        if (countTeas() != 0) {
+            Log.w(LOG_TAG, "Not run, the database holds an inventory");
+            return;
+        }
+
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            float hue = 360f * i / IMAGE_COUNT;
+            mImages[i] = importImage(Color.HSVToColor(new float[] { hue, 1, 1 }));
+        }
+        ContentValues[] values = new ContentValues[TEA_COUNT];
+        for (int i = 0; i < TEA_COUNT; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TeaEntry.COLUMN_TEA_NAME, String.format(Locale.US, "Tea %05d", i));
+            values[i].put(TeaEntry.COLUMN_TEA_TYPE, TeaEntry.TYPE_GREEN);
+            values[i].put(TeaEntry.COLUMN_TEA_PRICE, 3);
+            values[i].put(TeaEntry.COLUMN_TEA_QUANTITY, 100);
+            values[i].put(TeaEntry.COLUMN_TEA_IMAGE, mImages[i % IMAGE_COUNT].toString());
+        }
+        mFilled = true;
+        assertEquals(TEA_COUNT, mResolver.bulkInsert(TeaEntry.CONTENT_URI, values));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (mFilled) {
+            mResolver.delete(TeaEntry.CONTENT_URI, null, null);
+        }
+        for (Uri image : mImages) {
+            if (image != null) {
+                ImageStore.delete(image);
+            }
+        }
+    }
+
+    public void testScrollFrameTimes() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !mFilled) {
+            // Frame times are only reported by Choreographer from Jelly Bean, and a real
+            // inventory is left alone
+            return;
+        }
+
+        CatalogActivity activity = getActivity();
+        final RecyclerView list = (RecyclerView) activity.findViewById(R.id.list);
+        long refreshNanos = (long) (TimeUnit.SECONDS.toNanos(1)
+                / activity.getWindowManager().getDefaultDisplay().getRefreshRate());
+        waitForFirstPage(list);
+
+        final FrameRecorder recorder = new FrameRecorder(list);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.start();
+            }
+        });
+        assertTrue(recorder.done.await(MAX_FRAMES * refreshNanos * 10, TimeUnit.NANOSECONDS));
+
+        long[] intervals = Arrays.copyOf(recorder.intervals, recorder.frames);
+        Arrays.sort(intervals);
+        int dropped = 0;
+        for (long interval : intervals) {
+            // Half a refresh of slack, as frame times jitter around the refresh interval
+            if (interval > refreshNanos * 3 / 2) {
+                dropped++;
+            }
+        }
+        int droppedPercent = 100 * dropped / Math.max(intervals.length, 1);
+
+        Log.i(LOG_TAG, "scrolled to row " + recorder.lastPosition + " of " + TEA_COUNT
+                + " in " + intervals.length + " frames");
+        Log.i(LOG_TAG, "frame time: p50=" + percentile(intervals, 50) / 1000
+                + "us p90=" + percentile(intervals, 90) / 1000
+                + "us p99=" + percentile(intervals, 99) / 1000
+                + "us, refresh " + refreshNanos / 1000 + "us, " + droppedPercent + "% dropped");
+        assertTrue(droppedPercent + "% of frames dropped",
+                droppedPercent <= MAX_DROPPED_FRAME_PERCENT);
+    }
+
+    /**
+     * Returns the given percentile of the sorted samples.
+     */
+    private static long percentile(long[] sortedSamples, int percentile) {
+        if (sortedSamples.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, index)];
+    }
+
+    /**
+     * Returns the number of teas in the app's database.
+     */
+    private int countTeas() {
+        Cursor cursor = mResolver.query(TeaEntry.CONTENT_URI, new String[] { TeaEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Wait for the catalog to show its first page of teas.
+     */
+    private void waitForFirstPage(final RecyclerView list) throws InterruptedException {
+        final int[] itemCount = new int[1];
+        for (int attempt = 0; attempt < 100 && itemCount[0] == 0; attempt++) {
+            Thread.sleep(100);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    itemCount[0] = list.getAdapter().getItemCount();
+                }
+            });
+        }
+        assertTrue("The catalog shows no teas", itemCount[0] > 0);
+    }
+
+    /**
+     * Scrolls the list by a quarter of its height every frame, about the pace of a fling,
+     * and records the time between frames until the last tea is shown or
+     * {@link #MAX_FRAMES} frames have passed.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameRecorder implements Choreographer.FrameCallback {
+        final RecyclerView list;
+        final long[] intervals = new long[MAX_FRAMES];
+        final CountDownLatch done = new CountDownLatch(1);
+        int frames;
+        int lastPosition;
+        private long mLastFrameNanos;
+
+        FrameRecorder(RecyclerView list) {
+            this.list = list;
+        }
+
+        void start() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameNanos != 0) {
+                intervals[frames++] = frameTimeNanos - mLastFrameNanos;
+            }
+            mLastFrameNanos = frameTimeNanos;
+
+            View lastChild = list.getChildAt(list.getChildCount() - 1);
+            if (lastChild != null) {
+                lastPosition = list.getChildAdapterPosition(lastChild);
+            }
+            if (frames == MAX_FRAMES || lastPosition == TEA_COUNT - 1) {
+                done.countDown();
+                return;
+            }
+            // The next page may still be loading, in which case the list stays where it is
+            list.scrollBy(0, list.getHeight() / 4);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Import a plain image of the given colour into the {@link ImageStore}. Returns its URI.
+     */
+    private Uri importImage(int color) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        File source = new File(mContext.getCacheDir(), "catalog_scroll_benchmark.png");
+        OutputStream out = new FileOutputStream(source);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+
+        Uri image = ImageStore.importImage(mContext, Uri.fromFile(source));
+        source.delete();
+        assertNotNull(image);
+        return image;
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.android.teainventory.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation tests for the merging and journalling of {@link SaleQueue}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleQueueTest {
+
+    private static final long TEA_ID = 1;
+    private static final long OTHER_TEA_ID = 2;
+
+    /** Long enough that nothing is written unless a test flushes */
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private SharedPreferences mJournal;
+    private final List<HandlerThread> mThreads = new ArrayList<HandlerThread>();
+
+    /**
+     * Seller that records the writes it is asked to make, and like the provider only makes
+     * the sale with a given token once.
+     */
+    private static class RecordingSeller implements SaleQueue.Seller {
+        int writes;
+        final Map<Long, Integer> units = new HashMap<Long, Integer>();
+        final Map<String, Integer> tokens = new HashMap<String, Integer>();
+
+        @Override
+        public synchronized int sell(long teaId, int units, String token) {
+            writes++;
+            if (tokens.containsKey(token)) {
+                return tokens.get(token);
+            }
+            tokens.put(token, units);
+            Integer sold = this.units.get(teaId);
+            this.units.put(teaId, (sold == null ? 0 : sold) + units);
+            return units;
+        }
+
+        synchronized int unitsSold(long teaId) {
+            Integer sold = units.get(teaId);
+            return sold == null ? 0 : sold;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mJournal = context.getSharedPreferences("sale_queue_test", Context.MODE_PRIVATE);
+        mJournal.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() {
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+        mJournal.edit().clear().commit();
+    }
+
+    @Test
+    public void burstOfTapsIsWrittenInAFewWrites() throws InterruptedException {
+        RecordingSeller seller = new RecordingSeller();
+        HandlerThread thread = startThread();
+        SaleQueue queue = new SaleQueue(mJournal, seller, thread.getLooper(), 200);
+
+        // 50 taps over roughly a quarter of a second
+        for (int i = 0; i < 50; i++) {
+            queue.sell(TEA_ID, 1);
+            Thread.sleep(5);
+        }
+        queue.flush();
+        drain(thread);
+
+        assertEquals(50, seller.unitsSold(TEA_ID));
+        assertTrue("Expected a handful of writes, got " + seller.writes, seller.writes <= 5);
+        assertTrue(mJournal.getAll().isEmpty());
+    }
+
+    @Test
+    public void soldUnitsArePendingUntilTheirRowIsShown() throws InterruptedException {
+        RecordingSeller seller = new RecordingSeller();
+        HandlerThread thread = startThread();
+        SaleQueue queue = new SaleQueue(mJournal, seller, thread.getLooper(), NEVER);
+
+        queue.sell(TEA_ID, 2);
+        queue.sell(TEA_ID, 3);
+        queue.sell(OTHER_TEA_ID, 1);
+        assertEquals(5, queue.getPendingUnits(TEA_ID));
+        assertEquals(1, queue.getPendingUnits(OTHER_TEA_ID));
+        assertEquals(0, seller.writes);
+
+        queue.flush();
+        drain(thread);
+        assertEquals(2, seller.writes);
+        assertEquals(5, seller.unitsSold(TEA_ID));
+        assertEquals(1, seller.unitsSold(OTHER_TEA_ID));
+
+        // Written, but the catalog still shows the stock from before the write
+        assertEquals(5, queue.getPendingUnits(TEA_ID));
+        assertEquals(1, queue.getPendingUnits(OTHER_TEA_ID));
+        assertTrue(mJournal.getAll().isEmpty());
+
+        queue.releaseWrittenUnits(TEA_ID);
+        assertEquals(0, queue.getPendingUnits(TEA_ID));
+        assertEquals(1, queue.getPendingUnits(OTHER_TEA_ID));
+    }
+
+    @Test
+    public void rowShownWhileWritingReleasesUnitsOnceWritten() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        SaleQueue.Seller seller = new SaleQueue.Seller() {
+            @Override
+            public int sell(long teaId, int units, String token) {
+                writing.countDown();
+                try {
+                    written.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return units;
+            }
+        };
+        HandlerThread thread = startThread();
+        SaleQueue queue = new SaleQueue(mJournal, seller, thread.getLooper(), NEVER);
+
+        queue.sell(TEA_ID, 2);
+        queue.flush();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // The row may have been read after the write, before the seller returned
+        queue.releaseWrittenUnits(TEA_ID);
+        assertEquals(2, queue.getPendingUnits(TEA_ID));
+        written.countDown();
+        drain(thread);
+        assertEquals(0, queue.getPendingUnits(TEA_ID));
+    }
+
+    @Test
+    public void unitsBeyondStockAreReportedAndNoLongerPending() throws InterruptedException {
+        // Somebody else sold all but one unit before the merged sale was written
+        SaleQueue.Seller seller = new SaleQueue.Seller() {
+            @Override
+            public int sell(long teaId, int units, String token) {
+                return Math.min(units, 1);
+            }
+        };
+        HandlerThread thread = startThread();
+        SaleQueue queue = new SaleQueue(mJournal, seller, thread.getLooper(), NEVER);
+        final CountDownLatch reported = new CountDownLatch(1);
+        final int[] failedUnits = new int[1];
+        queue.setListener(new SaleQueue.Listener() {
+            @Override
+            public void onPendingUnitsChanged(long teaId) {
+            }
+
+            @Override
+            public void onSaleFailed(long teaId, int units) {
+                assertEquals(TEA_ID, teaId);
+                failedUnits[0] = units;
+                reported.countDown();
+            }
+        });
+
+        queue.sell(TEA_ID, 2);
+        queue.sell(TEA_ID, 1);
+        queue.flush();
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        assertEquals(2, failedUnits[0]);
+        // The unit that was sold stays pending until the catalog shows it
+        assertEquals(1, queue.getPendingUnits(TEA_ID));
+        assertTrue(mJournal.getAll().isEmpty());
+    }
+
+    @Test
+    public void journalledSalesAreReplayed() throws InterruptedException {
+        // Sales queued by a process that was killed before writing them
+        SaleQueue killed = new SaleQueue(mJournal, new RecordingSeller(),
+                startThread().getLooper(), NEVER);
+        killed.sell(TEA_ID, 3);
+        killed.sell(OTHER_TEA_ID, 2);
+
+        RecordingSeller seller = new RecordingSeller();
+        HandlerThread thread = startThread();
+        SaleQueue restarted = new SaleQueue(mJournal, seller, thread.getLooper(), NEVER);
+        drain(thread);
+
+        assertEquals(3, seller.unitsSold(TEA_ID));
+        assertEquals(2, seller.unitsSold(OTHER_TEA_ID));
+        assertEquals(3, restarted.getPendingUnits(TEA_ID));
+        assertTrue(mJournal.getAll().isEmpty());
+    }
+
+    @Test
+    public void saleKilledWhileWritingIsNotMadeTwice() throws InterruptedException {
+        // The sale is made, but the process is killed before the journal is cleared
+        final RecordingSeller provider = new RecordingSeller();
+        final CountDownLatch made = new CountDownLatch(1);
+        final CountDownLatch killed = new CountDownLatch(1);
+        SaleQueue.Seller seller = new SaleQueue.Seller() {
+            @Override
+            public int sell(long teaId, int units, String token) {
+                int sold = provider.sell(teaId, units, token);
+                made.countDown();
+                try {
+                    killed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return sold;
+            }
+        };
+        HandlerThread killedThread = startThread();
+        SaleQueue killedQueue = new SaleQueue(mJournal, seller, killedThread.getLooper(), NEVER);
+        killedQueue.sell(TEA_ID, 3);
+        killedQueue.flush();
+        assertTrue(made.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mJournal.getAll().size());
+
+        HandlerThread thread = startThread();
+        SaleQueue restarted = new SaleQueue(mJournal, provider, thread.getLooper(), NEVER);
+        drain(thread);
+
+        // Replayed with the same token, so the units are only sold once
+        assertEquals(2, provider.writes);
+        assertEquals(3, provider.unitsSold(TEA_ID));
+        assertEquals(0, restarted.getPendingUnits(TEA_ID));
+        assertTrue(mJournal.getAll().isEmpty());
+
+        killed.countDown();
+        drain(killedThread);
+    }
+
+    private HandlerThread startThread() {
+        HandlerThread thread = new HandlerThread("SaleQueueTest");
+        thread.start();
+        mThreads.add(thread);
+        return thread;
+    }
+
+    /**
+     * Wait for everything already posted to the thread without a delay to run.
+     */
+    private static void drain(HandlerThread thread) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.android.teainventory.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation tests for the schema created and migrated by {@link TeaDbHelper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TeaDbHelperTest {
+
+    /** Name of the database file used by the upgrade test */
+    private static final String UPGRADE_DATABASE_NAME = "teas_upgrade_test.db";
+
+    private Context mContext;
+    private TeaDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDbHelper = new TeaDbHelper(mContext, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+    }
+
+    @Test
+    public void nameLookupUsesNameIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + TeaEntry.TABLE_NAME
+                        + " WHERE " + TeaEntry.COLUMN_TEA_NAME + " = ? COLLATE NOCASE",
+                "jasmine");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_NAME));
+    }
+
+    @Test
+    public void nameSortUsesNameIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + TeaEntry.TABLE_NAME
+                        + " ORDER BY " + TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void keysetPageSeeksNameIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + TeaEntry.TABLE_NAME
+                        + " WHERE " + TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE >= ?"
+                        + " AND (" + TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE > ?"
+                        + " OR " + TeaEntry._ID + " > ?)"
+                        + " ORDER BY " + TeaEntry.PAGE_SORT_ORDER + " LIMIT 100",
+                "jasmine", "jasmine", "42");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void typeAndQuantityFilterUsesCompositeIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + TeaEntry.TABLE_NAME
+                        + " WHERE " + TeaEntry.COLUMN_TEA_TYPE + " = ?"
+                        + " AND " + TeaEntry.COLUMN_TEA_QUANTITY + " < ?",
+                String.valueOf(TeaEntry.TYPE_GREEN), "5");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_TYPE_QUANTITY));
+    }
+
+    @Test
+    public void lowStockQueryUsesIndexes() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                TeaProvider.SQL_LOW_STOCK_IDS, String.valueOf(TeaEntry.DEFAULT_REORDER_LEVEL));
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_REORDER));
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_TEAS_TYPE_QUANTITY));
+    }
+
+    @Test
+    public void teaLedgerScanUsesTeaIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + SalesEntry.TABLE_NAME
+                        + " WHERE " + SalesEntry.COLUMN_TEA_ID + " = ?"
+                        + " ORDER BY " + SalesEntry.COLUMN_TIMESTAMP,
+                "42");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_SALES_TEA));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void ledgerTimeRangeUsesTimestampIndex() {
+        String plan = queryPlan(mDbHelper.getReadableDatabase(),
+                "SELECT * FROM " + SalesEntry.TABLE_NAME
+                        + " WHERE " + SalesEntry.COLUMN_TIMESTAMP + " BETWEEN ? AND ?",
+                "0", "1000");
+        assertTrue(plan, plan.contains(TeaDbHelper.INDEX_SALES_TIMESTAMP));
+    }
+
+    @Test
+    public void upgradeFromVersion1KeepsDataAndAddsIndexes() {
+        // Create a database by hand with the original version 1 schema
+        SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(UPGRADE_DATABASE_NAME), null);
+        oldDb.execSQL("CREATE TABLE teas (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "name TEXT NOT NULL, type INTEGER NOT NULL, price REAL NOT NULL DEFAULT 0, "
+                + "quantity INTEGER NOT NULL, image TEXT);");
+        oldDb.execSQL("INSERT INTO teas (name, type, price, quantity) VALUES ('Assam', 0, 3.5, 12)");
+        oldDb.setVersion(1);
+        oldDb.close();
+
+        TeaDbHelper upgradedHelper = new TeaDbHelper(mContext, UPGRADE_DATABASE_NAME);
+        try {
+            SQLiteDatabase db = upgradedHelper.getReadableDatabase();
+            assertEquals(1, count(db, "SELECT COUNT(*) FROM teas WHERE name = 'Assam'"));
+            assertEquals(1, count(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = '"
+                    + TeaDbHelper.INDEX_TEAS_NAME + "'"));
+            assertEquals(1, count(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = '"
+                    + TeaDbHelper.INDEX_TEAS_TYPE_QUANTITY + "'"));
+            assertEquals(1, count(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = '"
+                    + TeaDbHelper.INDEX_TEAS_REORDER + "'"));
+            // The stock there was before the ledger is its starting point
+            assertEquals(12, count(db, "SELECT " + SalesSnapshotEntry.COLUMN_QUANTITY
+                    + " FROM " + SalesSnapshotEntry.TABLE_NAME));
+            assertEquals(0, count(db, "SELECT COUNT(*) FROM " + SalesEntry.TABLE_NAME));
+        } finally {
+            upgradedHelper.close();
+        }
+    }
+
+    /**
+     * Returns the details of the EXPLAIN QUERY PLAN output for the given query, one step per line.
+     */
+    static String queryPlan(SQLiteDatabase db, String sql, String... args) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumnIndex)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
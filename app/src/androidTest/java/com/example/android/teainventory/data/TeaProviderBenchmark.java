@@ -0,0 +1,698 @@
+package com.example.android.teainventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.transfer.CatalogExporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rough throughput benchmarks for {@link TeaProvider}. Results are written to logcat under
+ * the {@link #LOG_TAG} tag.
+ */
+public class TeaProviderBenchmark extends ProviderTestCase2<TeaProvider> {
+
+    private static final String LOG_TAG = TeaProviderBenchmark.class.getSimpleName();
+
+    /** Number of rows written by each insert benchmark */
+    private static final int ROW_COUNT = 5000;
+
+    /** Number of threads querying the catalog in the concurrency benchmark */
+    private static final int READER_COUNT = 4;
+
+    /** How long each run of the concurrency benchmark lasts */
+    private static final long CONCURRENCY_RUN_MILLIS = 3000;
+
+    /** Columns of the catalog query, as used by CatalogActivity */
+    private static final String[] CATALOG_PROJECTION = {
+            TeaEntry._ID,
+            TeaEntry.COLUMN_TEA_NAME,
+            TeaEntry.COLUMN_TEA_PRICE,
+            TeaEntry.COLUMN_TEA_QUANTITY };
+
+    private ContentResolver mResolver;
+
+    public TeaProviderBenchmark() {
+        super(TeaProvider.class, TeaContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+
+        // Measure the database, not the query cache, unless a benchmark turns it back on
+        setQueryCacheEnabled(false);
+    }
+
+    public void testInsertThroughput() {
+        ContentValues[] values = new ContentValues[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 4.2, i);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues teaValues : values) {
+            mResolver.insert(TeaEntry.CONTENT_URI, teaValues);
+        }
+        long perRowMillis = SystemClock.elapsedRealtime() - start;
+
+        mResolver.delete(TeaEntry.CONTENT_URI, null, null);
+
+        start = SystemClock.elapsedRealtime();
+        int inserted = mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(ROW_COUNT, inserted);
+        Log.i(LOG_TAG, "insert():     " + rowsPerSecond(ROW_COUNT, perRowMillis) + " rows/s");
+        Log.i(LOG_TAG, "bulkInsert(): " + rowsPerSecond(ROW_COUNT, bulkMillis) + " rows/s");
+    }
+
+    public void testConcurrentReadLatency() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // TeaDbHelper always switches the write-ahead log on before Jelly Bean, so there
+            // is no rollback journal to compare it with
+            return;
+        }
+        long[] rollbackJournal = measureReadLatency(false);
+        long[] writeAheadLog = measureReadLatency(true);
+
+        Log.i(LOG_TAG, "rollback journal: p50=" + percentile(rollbackJournal, 50) / 1000
+                + "us p99=" + percentile(rollbackJournal, 99) / 1000
+                + "us (" + rollbackJournal.length + " queries)");
+        Log.i(LOG_TAG, "write-ahead log:  p50=" + percentile(writeAheadLog, 50) / 1000
+                + "us p99=" + percentile(writeAheadLog, 99) / 1000
+                + "us (" + writeAheadLog.length + " queries)");
+    }
+
+    public void testPrefixSearchLatency() {
+        int teaCount = 100000;
+        String[] words = { "Jasmine", "Assam", "Sencha", "Oolong", "Rooibos", "Darjeeling" };
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea(words[i % words.length] + " " + i,
+                    TeaEntry.TYPE_GREEN, 3, 10);
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        String[] queries = { "jas", "darj 99", "oolong 1234", "zzz" };
+        for (String query : queries) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(TeaEntry.buildSearchUri(query),
+                    CATALOG_PROJECTION, null, null, null);
+            int matches = cursor.getCount();
+            cursor.close();
+            long micros = (System.nanoTime() - start) / 1000;
+            Log.i(LOG_TAG, "search \"" + query + "\": " + matches + " matches in " + micros + "us");
+        }
+    }
+
+    public void testLowStockLatency() {
+        // A very large table where only one tea in a thousand needs reordering, half of them
+        // by their own reorder level and half by the global threshold
+        int teaCount = 100000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, i % 3, 3, i % 1000 == 0 ? 2 : 500);
+            if (i % 2000 == 0) {
+                values[i].put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, 3);
+            }
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(
+                    TeaEntry.buildLowStockUri(TeaEntry.DEFAULT_REORDER_LEVEL),
+                    CATALOG_PROJECTION, null, null, TeaEntry.PAGE_SORT_ORDER);
+            int matches = cursor.getCount();
+            cursor.close();
+            long micros = (System.nanoTime() - start) / 1000;
+            Log.i(LOG_TAG, "low stock: " + matches + " teas in " + micros + "us");
+        }
+    }
+
+    public void testEditorQueryWithAndWithoutCache() {
+        // The editor reopening the same few teas over and over
+        int teaCount = 20;
+        Uri[] teaUris = new Uri[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            teaUris[i] = mResolver.insert(TeaEntry.CONTENT_URI,
+                    TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_GREEN, 3, 10));
+        }
+
+        for (boolean cached : new boolean[] { false, true }) {
+            setQueryCacheEnabled(cached);
+            int queries = 20000;
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                Cursor cursor = mResolver.query(teaUris[i % teaCount], null, null, null, null);
+                cursor.moveToFirst();
+                cursor.close();
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+
+            Bundle stats = mResolver.call(TeaEntry.CONTENT_URI,
+                    TeaContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+            Log.i(LOG_TAG, "editor query, cache " + (cached ? "on" : "off") + ": "
+                    + (micros * 1000 / queries) + "ns/query, hit ratio "
+                    + stats.getFloat(TeaContract.EXTRA_CACHE_HIT_RATIO) + ", "
+                    + stats.getInt(TeaContract.EXTRA_CACHE_BYTES) + " bytes");
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testRecordBatchAllocations() {
+        // Allocations made on this thread while each path builds and writes the same rows.
+        // The provider runs on the calling thread, so its allocations are counted too.
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = SystemClock.elapsedRealtime();
+            ContentValues[] values = new ContentValues[ROW_COUNT];
+            for (int i = 0; i < ROW_COUNT; i++) {
+                values[i] = TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 4.2, i);
+            }
+            mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+            int valuesAllocations = logAllocations("ContentValues",
+                    SystemClock.elapsedRealtime() - start);
+
+            mResolver.delete(TeaEntry.CONTENT_URI, null, null);
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            start = SystemClock.elapsedRealtime();
+            TeaRecord.Batch batch = new TeaRecord.Batch(ROW_COUNT);
+            for (int i = 0; i < ROW_COUNT; i++) {
+                batch.add(0, "Tea " + i, TeaEntry.TYPE_BLACK, 4.2, i, null,
+                        TeaRecord.NO_REORDER_LEVEL, null);
+            }
+            long[] ids = TeaContract.insertTeas(mResolver, batch);
+            int recordAllocations = logAllocations("TeaRecord.Batch",
+                    SystemClock.elapsedRealtime() - start);
+            assertEquals(ROW_COUNT, ids.length);
+            assertTrue("TeaRecord.Batch allocated " + recordAllocations
+                            + " objects, ContentValues " + valuesAllocations,
+                    recordAllocations < valuesAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testScanToSaleLatency() {
+        // A very large catalogue where every tea has a barcode
+        int teaCount = 100000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 3, 1000000);
+            values[i].put(TeaEntry.COLUMN_TEA_SKU, sku(i));
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        // Scanning and selling random teas, by looking the tea up first and by SKU alone
+        int scans = 2000;
+        long[] lookUpThenSell = new long[scans];
+        long[] sellBySku = new long[scans];
+        Random random = new Random(42);
+        String[] projection = { TeaEntry._ID };
+        for (int i = 0; i < scans; i++) {
+            String sku = sku(random.nextInt(teaCount));
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(TeaEntry.buildSkuUri(sku), projection,
+                    null, null, null);
+            assertTrue(cursor.moveToFirst());
+            long teaId = cursor.getLong(0);
+            cursor.close();
+            assertTrue(TeaContract.sellTea(mResolver, teaId, 1) >= 0);
+            lookUpThenSell[i] = System.nanoTime() - start;
+
+            sku = sku(random.nextInt(teaCount));
+            start = System.nanoTime();
+            assertTrue(TeaContract.sellTeaBySku(mResolver, sku, 1) >= 0);
+            sellBySku[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(lookUpThenSell);
+        Arrays.sort(sellBySku);
+
+        Log.i(LOG_TAG, "look up, then sell: p50=" + percentile(lookUpThenSell, 50) / 1000
+                + "us p99=" + percentile(lookUpThenSell, 99) / 1000 + "us");
+        Log.i(LOG_TAG, "sell by SKU:        p50=" + percentile(sellBySku, 50) / 1000
+                + "us p99=" + percentile(sellBySku, 99) / 1000 + "us");
+    }
+
+    public void testPriceListMerge() {
+        // A catalogue, and a price list changing a third of its prices and adding a tenth
+        int teaCount = 100000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 3, 100);
+            values[i].put(TeaEntry.COLUMN_TEA_SKU, sku(i));
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        int lineCount = teaCount + teaCount / 10;
+        int chunkSize = 500;
+        TeaRecord.Batch batch = new TeaRecord.Batch(chunkSize);
+        int inserted = 0;
+        int updated = 0;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < lineCount; i++) {
+            batch.add(0, "Tea " + i, TeaEntry.TYPE_BLACK, i % 3 == 0 ? 3.5 : 3, 100, null,
+                    TeaRecord.NO_REORDER_LEVEL, sku(i));
+            if (batch.size() == chunkSize || i == lineCount - 1) {
+                TeaContract.MergeResult merged = TeaContract.mergeTeas(mResolver, batch,
+                        false, false);
+                inserted += merged.inserted;
+                updated += merged.updated;
+                batch.clear();
+            }
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(teaCount / 10, inserted);
+        assertEquals((teaCount + 2) / 3, updated);
+        Log.i(LOG_TAG, "merge " + lineCount + " lines in chunks of " + chunkSize + ": "
+                + millis + "ms, " + rowsPerSecond(lineCount, millis) + " lines/s");
+    }
+
+    public void testExportThroughput() throws IOException {
+        int teaCount = 100000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, i % 3, 3.25, i);
+            values[i].put(TeaEntry.COLUMN_TEA_SKU, sku(i));
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+        // Let the rows be collected before the heap is measured
+        values = null;
+
+        CatalogExporter exporter = new CatalogExporter(mResolver);
+        for (CatalogExporter.Format format : CatalogExporter.Format.values()) {
+            CountingOutputStream out = new CountingOutputStream();
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(teaCount, exporter.export(out, format, new HeapSampler(false)));
+            long millis = Math.max(SystemClock.elapsedRealtime() - start, 1);
+            Log.i(LOG_TAG, format + " export: " + out.count / 1024 + "KB in " + millis + "ms, "
+                    + String.format(Locale.US, "%.1f", out.count * 1000.0 / millis / 1048576)
+                    + "MB/s, " + rowsPerSecond(teaCount, millis) + " rows/s");
+        }
+
+        // The heap in use after each chunk should be the same for the whole table as for the
+        // first chunk of it alone
+        HeapSampler sampler = new HeapSampler(true);
+        exporter.export(new CountingOutputStream(), CatalogExporter.Format.JSON, sampler);
+        Log.i(LOG_TAG, "export heap: " + sampler.firstBytes / 1024 + "KB after the first chunk, "
+                + sampler.peakBytes / 1024 + "KB at most");
+    }
+
+    /**
+     * Export listener measuring the heap in use after each chunk, if asked to.
+     */
+    private static class HeapSampler implements CatalogExporter.Listener {
+        private final boolean mSample;
+        long firstBytes = -1;
+        long peakBytes;
+
+        HeapSampler(boolean sample) {
+            mSample = sample;
+        }
+
+        @Override
+        public void onChunkExported(int exported) {
+            if (!mSample) {
+                return;
+            }
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            long bytes = runtime.totalMemory() - runtime.freeMemory();
+            if (firstBytes == -1) {
+                firstBytes = bytes;
+            }
+            peakBytes = Math.max(peakBytes, bytes);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Output stream counting the bytes written to it and dropping them, so exports are timed
+     * without the storage.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+
+    public void testBackupUnderLoad() throws Exception {
+        int teaCount = 100000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, i % 3, 3.25, 1000000);
+            values[i].put(TeaEntry.COLUMN_TEA_SKU, sku(i));
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+        values = null;
+
+        // A catalog page loader and a till keep going while the backup is taken
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[] readLatencies = new long[100000];
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger sales = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Uri page = TeaEntry.buildPageUri(TeaEntry.CONTENT_URI, null, 0, 100);
+                while (running.get() && reads.get() < readLatencies.length) {
+                    long start = System.nanoTime();
+                    Cursor cursor = mResolver.query(page, CATALOG_PROJECTION, null, null, null);
+                    cursor.getCount();
+                    cursor.close();
+                    readLatencies[reads.getAndIncrement()] = System.nanoTime() - start;
+                }
+            }
+        });
+        Thread till = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                while (running.get()) {
+                    TeaContract.sellTea(mResolver, 1 + random.nextInt(100000), 1);
+                    sales.incrementAndGet();
+                }
+            }
+        });
+
+        File backup = new File(getContext().getCacheDir(), "benchmark-backup.db.gz");
+        try {
+            reader.start();
+            till.start();
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(teaCount, TeaContract.backup(mResolver, backup));
+            long backupMillis = SystemClock.elapsedRealtime() - start;
+            running.set(false);
+            reader.join();
+            till.join();
+
+            long[] latencies = Arrays.copyOf(readLatencies, reads.get());
+            Arrays.sort(latencies);
+            Log.i(LOG_TAG, "backup of " + teaCount + " teas: " + backupMillis + "ms, "
+                    + backup.length() / 1024 + "KB gzipped, " + sales.get() + " sales meanwhile,"
+                    + " page read p50=" + percentile(latencies, 50) / 1000
+                    + "us p99=" + percentile(latencies, 99) / 1000 + "us");
+
+            start = SystemClock.elapsedRealtime();
+            assertEquals(teaCount, TeaContract.restore(mResolver, backup));
+            Log.i(LOG_TAG, "restore of " + teaCount + " teas: "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        } finally {
+            running.set(false);
+            backup.delete();
+        }
+    }
+
+    public void testSaleLatencyAsLedgerGrows() {
+        int teaCount = 1000;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 3, 100000000);
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        Random random = new Random(42);
+        long[] emptyLedger = measureSales(random, teaCount, 2000);
+
+        // Baskets of a hundred lines fill the ledger quickly, one entry per line
+        int entryCount = 200000;
+        long[] teaIds = new long[100];
+        int[] quantities = new int[teaIds.length];
+        Arrays.fill(quantities, 1);
+        for (int i = 0; i < entryCount / teaIds.length; i++) {
+            for (int j = 0; j < teaIds.length; j++) {
+                teaIds[j] = 1 + random.nextInt(teaCount);
+            }
+            assertTrue(TeaContract.checkout(mResolver, teaIds, quantities).checkedOut);
+        }
+        long[] fullLedger = measureSales(random, teaCount, 2000);
+
+        Uri teaUri = ContentUris.withAppendedId(TeaEntry.CONTENT_URI, 1);
+        long[] stockReads = new long[2000];
+        for (int i = 0; i < stockReads.length; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(teaUri, CATALOG_PROJECTION, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+            stockReads[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(stockReads);
+
+        long start = SystemClock.elapsedRealtime();
+        int folded = TeaContract.compactSales(mResolver, System.currentTimeMillis() + 1);
+        long compactMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue(folded > entryCount);
+
+        Log.i(LOG_TAG, "sale, empty ledger:    p50=" + percentile(emptyLedger, 50) / 1000
+                + "us p99=" + percentile(emptyLedger, 99) / 1000 + "us");
+        Log.i(LOG_TAG, "sale, " + entryCount + " entries: p50="
+                + percentile(fullLedger, 50) / 1000 + "us p99=" + percentile(fullLedger, 99) / 1000 + "us");
+        Log.i(LOG_TAG, "stock read, full ledger: p50=" + percentile(stockReads, 50) / 1000
+                + "us p99=" + percentile(stockReads, 99) / 1000 + "us");
+        Log.i(LOG_TAG, "compact " + folded + " entries: " + compactMillis + "ms, "
+                + rowsPerSecond(folded, compactMillis) + " entries/s");
+    }
+
+    /** Sell one unit of random teas, returning the sorted latencies of the sales */
+    private long[] measureSales(Random random, int teaCount, int sales) {
+        long[] latencies = new long[sales];
+        for (int i = 0; i < sales; i++) {
+            long start = System.nanoTime();
+            assertTrue(TeaContract.sellTea(mResolver, 1 + random.nextInt(teaCount), 1) >= 0);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /** Returns a barcode-like SKU for the given tea number */
+    private static String sku(int i) {
+        return String.format(Locale.US, "50%011d", i);
+    }
+
+    public void testConcurrentCheckoutThroughput() throws Exception {
+        final long[] teaIds = new long[20];
+        for (int i = 0; i < teaIds.length; i++) {
+            teaIds[i] = ContentUris.parseId(mResolver.insert(TeaEntry.CONTENT_URI,
+                    TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_BLACK, 4.2, 100000000)));
+        }
+
+        // Baskets of three teas, sold line by line and then as one checkout
+        int perLine = measureCheckouts(teaIds, false);
+        int checkouts = measureCheckouts(teaIds, true);
+
+        Log.i(LOG_TAG, "sell per line: " + rowsPerSecond(perLine, CONCURRENCY_RUN_MILLIS)
+                + " baskets/s (" + READER_COUNT + " threads)");
+        Log.i(LOG_TAG, "checkout:      " + rowsPerSecond(checkouts, CONCURRENCY_RUN_MILLIS)
+                + " baskets/s (" + READER_COUNT + " threads)");
+    }
+
+    /**
+     * Run {@link #READER_COUNT} threads selling random baskets of the given teas for
+     * {@link #CONCURRENCY_RUN_MILLIS}, either with one checkout per basket or one sale per
+     * line. Returns the number of baskets sold.
+     */
+    private int measureCheckouts(final long[] teaIds, final boolean checkout) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger baskets = new AtomicInteger();
+        Thread[] threads = new Thread[READER_COUNT];
+        for (int i = 0; i < READER_COUNT; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] basket = new long[3];
+                    int[] quantities = { 1, 2, 1 };
+                    while (running.get()) {
+                        for (int line = 0; line < basket.length; line++) {
+                            basket[line] = teaIds[random.nextInt(teaIds.length)];
+                        }
+                        if (checkout) {
+                            TeaContract.checkout(mResolver, basket, quantities);
+                        } else {
+                            for (int line = 0; line < basket.length; line++) {
+                                TeaContract.sellTea(mResolver, basket[line], quantities[line]);
+                            }
+                        }
+                        baskets.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(CONCURRENCY_RUN_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return baskets.get();
+    }
+
+    /**
+     * Log the allocations counted on this thread since the last reset, and return the number
+     * of objects allocated.
+     */
+    @SuppressWarnings("deprecation")
+    private static int logAllocations(String path, long millis) {
+        int allocations = Debug.getThreadAllocCount();
+        Log.i(LOG_TAG, path + ": " + allocations + " objects, "
+                + Debug.getThreadAllocSize() / 1024 + "KB allocated, "
+                + rowsPerSecond(ROW_COUNT, millis) + " rows/s");
+        return allocations;
+    }
+
+    private void setQueryCacheEnabled(boolean enabled) {
+        mResolver.call(TeaEntry.CONTENT_URI, TeaContract.METHOD_SET_QUERY_CACHE_ENABLED,
+                String.valueOf(enabled), null);
+    }
+
+    /**
+     * Run {@link #READER_COUNT} threads issuing the catalog query against a fresh database
+     * while another thread keeps updating stock levels. Returns every query latency in
+     * nanoseconds.
+     */
+    private long[] measureReadLatency(boolean writeAheadLogging) throws Exception {
+        Context context = getMockContext();
+        String databaseName = writeAheadLogging ? "benchmark_wal.db" : "benchmark_rollback.db";
+        context.deleteDatabase(databaseName);
+
+        TeaDbHelper dbHelper = new TeaDbHelper(context, databaseName);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            dbHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                db.insert(TeaEntry.TABLE_NAME, null,
+                        TeaProviderTest.tea("Tea " + i, TeaEntry.TYPE_GREEN, 3, 1000));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                while (running.get()) {
+                    db.execSQL("UPDATE " + TeaEntry.TABLE_NAME + " SET "
+                                    + TeaEntry.COLUMN_TEA_QUANTITY + " = "
+                                    + TeaEntry.COLUMN_TEA_QUANTITY + " - 1 WHERE "
+                                    + TeaEntry._ID + " = ?",
+                            new Object[] { 1 + random.nextInt(ROW_COUNT) });
+                }
+            }
+        });
+
+        final List<long[]> latencies = new ArrayList<long[]>();
+        Thread[] readers = new Thread[READER_COUNT];
+        for (int i = 0; i < READER_COUNT; i++) {
+            final long[] readerLatencies = new long[100000];
+            latencies.add(readerLatencies);
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    while (running.get() && count < readerLatencies.length - 1) {
+                        long start = System.nanoTime();
+                        Cursor cursor = db.query(TeaEntry.TABLE_NAME, CATALOG_PROJECTION,
+                                null, null, null, null, null);
+                        cursor.getCount();
+                        cursor.close();
+                        readerLatencies[++count] = System.nanoTime() - start;
+                    }
+                    // The first slot holds the number of samples taken
+                    readerLatencies[0] = count;
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(CONCURRENCY_RUN_MILLIS);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        dbHelper.close();
+        context.deleteDatabase(databaseName);
+
+        int total = 0;
+        for (long[] readerLatencies : latencies) {
+            total += (int) readerLatencies[0];
+        }
+        long[] result = new long[total];
+        int offset = 0;
+        for (long[] readerLatencies : latencies) {
+            int count = (int) readerLatencies[0];
+            System.arraycopy(readerLatencies, 1, result, offset, count);
+            offset += count;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /** Returns the given percentile of an already sorted array of samples */
+    static long percentile(long[] sortedSamples, int percentile) {
+        if (sortedSamples.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, index)];
+    }
+
+    static long rowsPerSecond(int rows, long millis) {
+        return rows * 1000L / Math.max(1, millis);
+    }
+}
@@ -0,0 +1,913 @@
+package com.example.android.teainventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.StatsEntry;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Instrumentation tests for {@link TeaProvider}, run against an isolated database.
+ */
+public class TeaProviderTest extends ProviderTestCase2<TeaProvider> {
+
+    private ContentResolver mResolver;
+
+    public TeaProviderTest() {
+        super(TeaProvider.class, TeaContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testBulkInsertWritesAllRows() {
+        ContentValues[] values = new ContentValues[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tea("Tea " + i, TeaEntry.TYPE_GREEN, 2.5, i);
+        }
+
+        assertEquals(values.length, mResolver.bulkInsert(TeaEntry.CONTENT_URI, values));
+        assertEquals(values.length, countTeas());
+    }
+
+    public void testBulkInsertRejectsWholeBatchOnInvalidRow() {
+        ContentValues[] values = {
+                tea("Assam", TeaEntry.TYPE_BLACK, 3, 10),
+                tea("Broken", 42, 3, 10)
+        };
+
+        try {
+            mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+            fail("Expected the invalid type to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Nothing should have been written
+        }
+        assertEquals(0, countTeas());
+    }
+
+    public void testApplyBatchResolvesBackReferences() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(TeaEntry.CONTENT_URI)
+                .withValues(tea("Sencha", TeaEntry.TYPE_GREEN, 6, 3))
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(TeaEntry.CONTENT_URI)
+                .withSelection(TeaEntry._ID + "=?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .withValue(TeaEntry.COLUMN_TEA_QUANTITY, 7)
+                .build());
+
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+
+        assertEquals(1, (int) results[1].count);
+        assertEquals(7, quantityOf(results[0].uri));
+    }
+
+    public void testApplyBatchRollsBackOnFailure() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(TeaEntry.CONTENT_URI)
+                .withValues(tea("Oolong", TeaEntry.TYPE_GREEN, 6, 3))
+                .build());
+        // Updating a tea that does not exist fails the expected count check
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(TeaEntry.CONTENT_URI, 12345))
+                .withValue(TeaEntry.COLUMN_TEA_QUANTITY, 1)
+                .withExpectedCount(1)
+                .build());
+
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException expected) {
+            // The insert must have been rolled back with the rest of the batch
+        }
+        assertEquals(0, countTeas());
+    }
+
+    public void testRecordBatchInsertsAndUpdatesTeas() {
+        TeaRecord.Batch batch = new TeaRecord.Batch(2);
+        batch.add(0, "Lapsang", TeaEntry.TYPE_BLACK, 4.5, 12, null, TeaRecord.NO_REORDER_LEVEL, null);
+        batch.add(0, "Genmaicha", TeaEntry.TYPE_GREEN, 3.25, 4, null, 6, null);
+        long[] ids = TeaContract.insertTeas(mResolver, batch);
+
+        assertEquals(2, ids.length);
+        assertEquals(2, countTeas());
+        assertEquals(12, quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, ids[0])));
+        assertEquals(Collections.singletonList("Genmaicha"), lowStockNames(0));
+
+        TeaRecord record = new TeaRecord();
+        batch.get(0, record);
+        record.id = ids[0];
+        record.quantity = 2;
+        batch.clear();
+        batch.add(record);
+        assertEquals(1, TeaContract.updateTeas(mResolver, batch));
+        assertEquals(2, quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, ids[0])));
+        assertEquals(Arrays.asList("Genmaicha", "Lapsang"), lowStockNames(5));
+    }
+
+    public void testRecordBatchRejectsWholeBatchOnInvalidTea() {
+        TeaRecord.Batch batch = new TeaRecord.Batch(2);
+        batch.add(0, "Assam", TeaEntry.TYPE_BLACK, 3, 10, null, TeaRecord.NO_REORDER_LEVEL, null);
+        batch.add(0, "Broken", TeaEntry.TYPE_BLACK, 3, -1, null, TeaRecord.NO_REORDER_LEVEL, null);
+
+        try {
+            TeaContract.insertTeas(mResolver, batch);
+            fail("Expected the negative quantity to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Nothing should have been written
+        }
+        assertEquals(0, countTeas());
+    }
+
+    public void testSellRefusesToOversell() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Rooibos", TeaEntry.TYPE_HERBAL, 4, 2));
+        long teaId = ContentUris.parseId(teaUri);
+
+        assertEquals(0, TeaContract.sellTea(mResolver, teaId, 2));
+        assertEquals(-1, TeaContract.sellTea(mResolver, teaId, 1));
+        assertEquals(0, quantityOf(teaUri));
+    }
+
+    public void testCallWithoutParametersIsRejected() {
+        String[] methodsWithExtras = { TeaContract.METHOD_SELL, TeaContract.METHOD_SELL_SKU,
+                TeaContract.METHOD_CHECKOUT, TeaContract.METHOD_INSERT_TEAS,
+                TeaContract.METHOD_UPDATE_TEAS, TeaContract.METHOD_MERGE_TEAS };
+        for (String method : methodsWithExtras) {
+            try {
+                mResolver.call(TeaEntry.CONTENT_URI, method, null, null);
+                fail("Expected " + method + " without extras to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        String[] methodsWithArg = { TeaContract.METHOD_BACKUP, TeaContract.METHOD_RESTORE,
+                TeaContract.METHOD_COMPACT_SALES };
+        for (String method : methodsWithArg) {
+            try {
+                mResolver.call(TeaEntry.CONTENT_URI, method, null, new Bundle());
+                fail("Expected " + method + " without an argument to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            mResolver.call(TeaEntry.CONTENT_URI, TeaContract.METHOD_COMPACT_SALES, "soon", null);
+            fail("Expected a compaction time that isn't a number to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSellAvailableSellsWhatIsLeft() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI,
+                tea("Rooibos", TeaEntry.TYPE_HERBAL, 4, 3));
+        long teaId = ContentUris.parseId(teaUri);
+
+        assertEquals(2, TeaContract.sellAvailable(mResolver, teaId, 2, null));
+        assertEquals(1, TeaContract.sellAvailable(mResolver, teaId, 5, null));
+        assertEquals(0, TeaContract.sellAvailable(mResolver, teaId, 1, null));
+        assertEquals(0, quantityOf(teaUri));
+    }
+
+    public void testSaleWithTheSameTokenIsOnlyMadeOnce() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI,
+                tea("Rooibos", TeaEntry.TYPE_HERBAL, 4, 10));
+        long teaId = ContentUris.parseId(teaUri);
+
+        assertEquals(3, TeaContract.sellAvailable(mResolver, teaId, 3, "replayed"));
+        // Replayed after the process was killed, the sale reports the units it sold then
+        assertEquals(3, TeaContract.sellAvailable(mResolver, teaId, 3, "replayed"));
+        assertEquals(7, quantityOf(teaUri));
+
+        assertEquals(3, TeaContract.sellAvailable(mResolver, teaId, 3, "another"));
+        assertEquals(4, quantityOf(teaUri));
+    }
+
+    public void testConcurrentSalesAreNotLost() throws Exception {
+        final int stock = 500;
+        final int threadCount = 8;
+        final int attemptsPerThread = 100;
+
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Darjeeling", TeaEntry.TYPE_BLACK, 5, stock));
+        final long teaId = ContentUris.parseId(teaUri);
+
+        final AtomicInteger sold = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < attemptsPerThread; j++) {
+                            int remaining = TeaContract.sellTea(mResolver, teaId, 1);
+                            if (remaining < -1) {
+                                errors.incrementAndGet();
+                            } else if (remaining != -1) {
+                                sold.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // More sales were attempted than there was stock: every unit must be sold exactly once
+        assertEquals(0, errors.get());
+        assertEquals(stock, sold.get());
+        assertEquals(0, quantityOf(teaUri));
+    }
+
+    public void testSkuFindsAndSellsTea() {
+        ContentValues values = tea("Gyokuro", TeaEntry.TYPE_GREEN, 12, 3);
+        values.put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI, values);
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Bancha", TeaEntry.TYPE_GREEN, 4, 3));
+
+        Cursor cursor = mResolver.query(TeaEntry.buildSkuUri("5012345678900"),
+                new String[] { TeaEntry._ID }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(teaUri), cursor.getLong(0));
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        assertEquals(1, TeaContract.sellTeaBySku(mResolver, "5012345678900", 2));
+        assertEquals(-1, TeaContract.sellTeaBySku(mResolver, "5012345678900", 2));
+        assertEquals(-1, TeaContract.sellTeaBySku(mResolver, "0000000000000", 1));
+        assertEquals(1, quantityOf(teaUri));
+    }
+
+    public void testSkuIsUnique() {
+        ContentValues values = tea("Gyokuro", TeaEntry.TYPE_GREEN, 12, 3);
+        values.put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        assertNotNull(mResolver.insert(TeaEntry.CONTENT_URI, values));
+
+        // Another tea can't take the same SKU, neither when inserted nor when edited
+        ContentValues duplicate = tea("Sencha", TeaEntry.TYPE_GREEN, 6, 3);
+        duplicate.put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        assertNull(mResolver.insert(TeaEntry.CONTENT_URI, duplicate));
+
+        Uri sencha = mResolver.insert(TeaEntry.CONTENT_URI, tea("Sencha", TeaEntry.TYPE_GREEN, 6, 3));
+        ContentValues rename = new ContentValues();
+        rename.put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        assertEquals(0, mResolver.update(sencha, rename, null, null));
+
+        // Any number of teas can be without one
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Bancha", TeaEntry.TYPE_GREEN, 4, 3));
+        assertEquals(3, countTeas());
+    }
+
+    public void testBulkInsertSkipsOnlyDuplicateSku() {
+        ContentValues[] values = {
+                tea("Gyokuro", TeaEntry.TYPE_GREEN, 12, 3),
+                tea("Sencha", TeaEntry.TYPE_GREEN, 6, 3),
+                tea("Bancha", TeaEntry.TYPE_GREEN, 4, 3)
+        };
+        values[0].put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        values[1].put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+
+        // Like insert(), the refused tea is left out and the rest of the batch is written
+        assertEquals(2, mResolver.bulkInsert(TeaEntry.CONTENT_URI, values));
+        assertEquals(2, countTeas());
+        assertEquals(0, countSearch("Sencha"));
+    }
+
+    public void testRecordBatchRefusesOnlyDuplicateSku() {
+        TeaRecord.Batch batch = new TeaRecord.Batch(3);
+        batch.add(0, "Gyokuro", TeaEntry.TYPE_GREEN, 12, 3, null, TeaRecord.NO_REORDER_LEVEL,
+                "5012345678900");
+        batch.add(0, "Sencha", TeaEntry.TYPE_GREEN, 6, 3, null, TeaRecord.NO_REORDER_LEVEL,
+                "5012345678900");
+        batch.add(0, "Bancha", TeaEntry.TYPE_GREEN, 4, 3, null, TeaRecord.NO_REORDER_LEVEL,
+                "5012345678917");
+        long[] ids = TeaContract.insertTeas(mResolver, batch);
+
+        assertEquals(3, ids.length);
+        assertTrue(ids[0] != -1);
+        assertEquals(-1, ids[1]);
+        assertTrue(ids[2] != -1);
+        assertEquals(2, countTeas());
+
+        // Taking the SKU of another tea updates nothing, the other teas are still updated
+        batch.clear();
+        batch.add(ids[2], "Bancha", TeaEntry.TYPE_GREEN, 4, 5, null, TeaRecord.NO_REORDER_LEVEL,
+                "5012345678900");
+        batch.add(ids[0], "Gyokuro", TeaEntry.TYPE_GREEN, 12, 7, null,
+                TeaRecord.NO_REORDER_LEVEL, "5012345678900");
+        assertEquals(1, TeaContract.updateTeas(mResolver, batch));
+        assertEquals(3, quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, ids[2])));
+        assertEquals(7, quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, ids[0])));
+    }
+
+    public void testMergeUpdatesInsertsAndCountsUnchanged() {
+        ContentValues assamValues = tea("Assam", TeaEntry.TYPE_BLACK, 3, 10);
+        assamValues.put(TeaEntry.COLUMN_TEA_SKU, "5012345678900");
+        Uri assam = mResolver.insert(TeaEntry.CONTENT_URI, assamValues);
+        Uri sencha = mResolver.insert(TeaEntry.CONTENT_URI, tea("Sencha", TeaEntry.TYPE_GREEN, 6, 5));
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Bancha", TeaEntry.TYPE_GREEN, 4, 3));
+
+        TeaRecord.Batch batch = new TeaRecord.Batch(5);
+        // Matched by SKU, whatever its name in the price list
+        batch.add(0, "Assam TGFOP", TeaRecord.NO_TYPE, 3.5, 20, null,
+                TeaRecord.NO_REORDER_LEVEL, "5012345678900");
+        // Matched by name, ignoring case
+        batch.add(0, "SENCHA", TeaRecord.NO_TYPE, 7, 8, null, TeaRecord.NO_REORDER_LEVEL, null);
+        // Already at that price
+        batch.add(0, "Bancha", TeaRecord.NO_TYPE, 4, 1, null, TeaRecord.NO_REORDER_LEVEL, null);
+        // New, with and without a type
+        batch.add(0, "Rooibos", TeaEntry.TYPE_HERBAL, 2.5, 9, null, TeaRecord.NO_REORDER_LEVEL, null);
+        batch.add(0, "Mystery", TeaRecord.NO_TYPE, 1, 1, null, TeaRecord.NO_REORDER_LEVEL, null);
+
+        TeaContract.MergeResult merged = TeaContract.mergeTeas(mResolver, batch, false, true);
+        assertEquals(1, merged.inserted);
+        assertEquals(2, merged.updated);
+        assertEquals(1, merged.unchanged);
+        assertEquals(1, merged.skipped);
+        assertEquals(4, countTeas());
+        // Only the prices were merged
+        assertEquals(10, quantityOf(assam));
+        assertEquals(5, quantityOf(sencha));
+
+        // Merging the quantities too updates the line that only had the same price, and leaves
+        // the tea just inserted as it is
+        merged = TeaContract.mergeTeas(mResolver, batch, true, true);
+        assertEquals(0, merged.inserted);
+        assertEquals(3, merged.updated);
+        assertEquals(1, merged.unchanged);
+        assertEquals(20, quantityOf(assam));
+        assertEquals(8, quantityOf(sencha));
+    }
+
+    public void testCheckoutSellsWholeBasketOrNothing() {
+        Uri sencha = mResolver.insert(TeaEntry.CONTENT_URI, tea("Sencha", TeaEntry.TYPE_GREEN, 6, 5));
+        Uri assam = mResolver.insert(TeaEntry.CONTENT_URI, tea("Assam", TeaEntry.TYPE_BLACK, 3, 2));
+        long[] basket = { ContentUris.parseId(sencha), ContentUris.parseId(assam) };
+
+        TeaContract.CheckoutResult sold = TeaContract.checkout(mResolver, basket, new int[] { 2, 1 });
+        assertTrue(sold.checkedOut);
+        assertEquals(3, sold.stocks[0]);
+        assertEquals(1, sold.stocks[1]);
+
+        // The second line is short, so the first one isn't sold either
+        TeaContract.CheckoutResult refused = TeaContract.checkout(mResolver, basket, new int[] { 1, 2 });
+        assertFalse(refused.checkedOut);
+        assertEquals(3, refused.stocks[0]);
+        assertEquals(-1, refused.stocks[1]);
+        assertEquals(3, quantityOf(sencha));
+        assertEquals(1, quantityOf(assam));
+
+        // Lines for the same tea add up
+        refused = TeaContract.checkout(mResolver, new long[] { basket[0], basket[0] },
+                new int[] { 2, 2 });
+        assertFalse(refused.checkedOut);
+        assertEquals(3, quantityOf(sencha));
+    }
+
+    public void testConcurrentCheckoutsNeverOversell() throws Exception {
+        final int teaCount = 4;
+        final int stock = 300;
+        final int threadCount = 8;
+        final int checkoutsPerThread = 100;
+
+        final long[] teaIds = new long[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            teaIds[i] = ContentUris.parseId(mResolver.insert(TeaEntry.CONTENT_URI,
+                    tea("Blend " + i, TeaEntry.TYPE_HERBAL, 4, stock)));
+        }
+
+        final AtomicIntegerArray sold = new AtomicIntegerArray(teaCount);
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < checkoutsPerThread; j++) {
+                            // Baskets of two different teas, one to three units each
+                            int first = random.nextInt(teaCount);
+                            int second = (first + 1 + random.nextInt(teaCount - 1)) % teaCount;
+                            long[] basket = { teaIds[first], teaIds[second] };
+                            int[] quantities = { 1 + random.nextInt(3), 1 + random.nextInt(3) };
+
+                            TeaContract.CheckoutResult result =
+                                    TeaContract.checkout(mResolver, basket, quantities);
+                            if (result.checkedOut) {
+                                if (result.stocks[0] < 0 || result.stocks[1] < 0) {
+                                    errors.incrementAndGet();
+                                }
+                                sold.addAndGet(first, quantities[0]);
+                                sold.addAndGet(second, quantities[1]);
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every unit sold by a checkout must be gone from the stock, and no more
+        assertEquals(0, errors.get());
+        for (int i = 0; i < teaCount; i++) {
+            int remaining = quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaIds[i]));
+            assertTrue(remaining >= 0);
+            assertEquals(stock - sold.get(i), remaining);
+        }
+    }
+
+    public void testBackupRestoresIdenticalTeas() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            ContentValues values = randomTea(random);
+            if (i % 3 == 0) {
+                values.put(TeaEntry.COLUMN_TEA_SKU, "50" + i);
+            }
+            if (i % 4 == 0) {
+                values.put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, i % 10);
+            }
+            mResolver.insert(TeaEntry.CONTENT_URI, values);
+        }
+        List<String> backedUp = dumpTeas();
+        int searchCount = countSearch("Tea");
+
+        File backup = new File(getContext().getCacheDir(), "tea-provider-test.db.gz");
+        try {
+            assertEquals(200, TeaContract.backup(mResolver, backup));
+
+            // Change the teas after the backup, including the newest one
+            for (int i = 0; i < 50; i++) {
+                mutateRandomly(random);
+            }
+            mResolver.delete(TeaEntry.CONTENT_URI, null, null);
+            mResolver.insert(TeaEntry.CONTENT_URI, tea("Added later", TeaEntry.TYPE_BLACK, 1, 1));
+
+            assertEquals(200, TeaContract.restore(mResolver, backup));
+            assertEquals(backedUp, dumpTeas());
+            assertEquals(searchCount, countSearch("Tea"));
+            assertStatsConsistent();
+
+            // Ids go on from where the restored teas left off
+            Uri next = mResolver.insert(TeaEntry.CONTENT_URI,
+                    tea("Added after restore", TeaEntry.TYPE_BLACK, 1, 1));
+            assertEquals(201, ContentUris.parseId(next));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    public void testRestoreRefusesFileThatIsNotBackup() throws Exception {
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Assam", TeaEntry.TYPE_BLACK, 3, 10));
+        File notBackup = new File(getContext().getCacheDir(), "tea-provider-test.txt");
+        FileOutputStream out = new FileOutputStream(notBackup);
+        try {
+            out.write("name,type\nSencha,green\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        try {
+            assertEquals(-1, TeaContract.restore(mResolver, notBackup));
+            assertEquals(1, countTeas());
+        } finally {
+            notBackup.delete();
+        }
+    }
+
+    public void testEveryStockChangeAppendsToSalesLedger() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI,
+                tea("Assam", TeaEntry.TYPE_BLACK, 3, 10));
+        long teaId = ContentUris.parseId(teaUri);
+        assertEquals(7, TeaContract.sellTea(mResolver, teaId, 3));
+        assertEquals(-1, TeaContract.sellTea(mResolver, teaId, 8));
+
+        ContentValues values = new ContentValues();
+        values.put(TeaEntry.COLUMN_TEA_QUANTITY, 20);
+        assertEquals(1, mResolver.update(teaUri, values, null, null));
+        // Changes that leave the stock alone aren't recorded
+        values.clear();
+        values.put(TeaEntry.COLUMN_TEA_PRICE, 3.5);
+        assertEquals(1, mResolver.update(teaUri, values, null, null));
+
+        TeaRecord.Batch batch = new TeaRecord.Batch(1);
+        batch.add(teaId, "Assam", TeaEntry.TYPE_BLACK, 3.5, 12, null,
+                TeaRecord.NO_REORDER_LEVEL, null);
+        assertEquals(1, TeaContract.updateTeas(mResolver, batch));
+        batch.clear();
+        batch.add(teaId, "Assam", TeaEntry.TYPE_BLACK, 3.5, 15, null,
+                TeaRecord.NO_REORDER_LEVEL, null);
+        assertEquals(1, TeaContract.updateTeas(mResolver, batch, SalesEntry.SOURCE_IMPORT));
+        assertEquals(Arrays.asList("edit 10", "sale -3", "edit 13", "edit -8", "import 3"),
+                ledgerOf(teaId));
+        assertEquals(15, ledgerStock(teaId));
+
+        assertEquals(1, mResolver.delete(teaUri, null, null));
+        assertEquals(0, ledgerStock(teaId));
+    }
+
+    public void testCompactionFoldsOldEntriesIntoSnapshots() throws Exception {
+        long teaId = ContentUris.parseId(mResolver.insert(TeaEntry.CONTENT_URI,
+                tea("Sencha", TeaEntry.TYPE_GREEN, 6, 100)));
+        for (int i = 0; i < 5; i++) {
+            TeaContract.sellTea(mResolver, teaId, 2);
+        }
+        Thread.sleep(20);
+        long before = System.currentTimeMillis();
+        Thread.sleep(20);
+        TeaContract.sellTea(mResolver, teaId, 4);
+
+        assertEquals(6, TeaContract.compactSales(mResolver, before));
+        assertEquals(Arrays.asList("sale -4"), ledgerOf(teaId));
+        assertEquals(86, ledgerStock(teaId));
+        assertEquals(0, TeaContract.compactSales(mResolver, before));
+
+        // Everything folded, the snapshot alone holds the stock
+        assertEquals(1, TeaContract.compactSales(mResolver, System.currentTimeMillis() + 1));
+        assertTrue(ledgerOf(teaId).isEmpty());
+        assertEquals(86, ledgerStock(teaId));
+        assertEquals(86, quantityOf(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId)));
+    }
+
+    public void testSearchMatchesWordPrefixes() {
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Jasmine Pearl", TeaEntry.TYPE_GREEN, 9, 1));
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Earl Grey", TeaEntry.TYPE_BLACK, 4, 1));
+        Uri jade = mResolver.insert(TeaEntry.CONTENT_URI, tea("Jade Oolong", TeaEntry.TYPE_GREEN, 7, 1));
+
+        assertEquals(2, countSearch("ja"));
+        assertEquals(1, countSearch("earl gr"));
+        assertEquals(1, countSearch("PEARL"));
+        assertEquals(0, countSearch("pearl grey"));
+
+        // The index follows renames and deletes
+        ContentValues rename = new ContentValues();
+        rename.put(TeaEntry.COLUMN_TEA_NAME, "Tieguanyin");
+        mResolver.update(jade, rename, null, null);
+        assertEquals(1, countSearch("ja"));
+        assertEquals(1, countSearch("tie"));
+
+        mResolver.delete(jade, null, null);
+        assertEquals(0, countSearch("tie"));
+    }
+
+    public void testPagesCoverEveryTeaOnce() {
+        // Plenty of duplicate names, so pages have to break ties on the id
+        ContentValues[] values = new ContentValues[250];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tea((i % 2 == 0 ? "tea " : "Tea ") + (i % 7), TeaEntry.TYPE_BLACK, 1, i);
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        ArrayList<Long> expectedIds = new ArrayList<Long>();
+        Cursor all = mResolver.query(TeaEntry.CONTENT_URI, null, null, null,
+                TeaEntry.PAGE_SORT_ORDER);
+        while (all.moveToNext()) {
+            expectedIds.add(all.getLong(all.getColumnIndex(TeaEntry._ID)));
+        }
+        all.close();
+
+        ArrayList<Long> pagedIds = new ArrayList<Long>();
+        String afterName = null;
+        long afterId = 0;
+        int pageCount = 0;
+        while (true) {
+            Cursor page = mResolver.query(
+                    TeaEntry.buildPageUri(TeaEntry.CONTENT_URI, afterName, afterId, 40),
+                    null, null, null, null);
+            try {
+                if (!page.moveToFirst()) {
+                    break;
+                }
+                pageCount++;
+                assertTrue(page.getCount() <= 40);
+                do {
+                    afterName = page.getString(page.getColumnIndex(TeaEntry.COLUMN_TEA_NAME));
+                    afterId = page.getLong(page.getColumnIndex(TeaEntry._ID));
+                    pagedIds.add(afterId);
+                } while (page.moveToNext());
+            } finally {
+                page.close();
+            }
+        }
+
+        assertEquals(7, pageCount);
+        assertEquals(expectedIds, pagedIds);
+    }
+
+    public void testLowStockUsesOwnOrGlobalThreshold() {
+        // Below the global threshold, no reorder level of its own
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Assam", TeaEntry.TYPE_BLACK, 3, 2));
+        // Above the global threshold, no reorder level of its own
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Sencha", TeaEntry.TYPE_GREEN, 5, 8));
+        // Above the global threshold, but below its own reorder level
+        ContentValues matcha = tea("Matcha", TeaEntry.TYPE_GREEN, 12, 8);
+        matcha.put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, 10);
+        mResolver.insert(TeaEntry.CONTENT_URI, matcha);
+        // Below the global threshold, but not below its own reorder level
+        ContentValues rooibos = tea("Rooibos", TeaEntry.TYPE_HERBAL, 4, 2);
+        rooibos.put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, 1);
+        Uri rooibosUri = mResolver.insert(TeaEntry.CONTENT_URI, rooibos);
+
+        assertEquals(Arrays.asList("Assam", "Matcha"), lowStockNames(5));
+        assertEquals(Arrays.asList("Assam", "Matcha", "Sencha"), lowStockNames(10));
+        assertEquals(Collections.singletonList("Matcha"), lowStockNames(0));
+
+        // Clearing its reorder level puts the tea back on the global threshold
+        ContentValues clear = new ContentValues();
+        clear.putNull(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+        mResolver.update(rooibosUri, clear, null, null);
+        assertEquals(Arrays.asList("Assam", "Matcha", "Rooibos"), lowStockNames(5));
+    }
+
+    public void testStatsMatchFullRecomputation() {
+        Random random = new Random(2016);
+        for (int round = 0; round < 5; round++) {
+            for (int step = 0; step < 200; step++) {
+                mutateRandomly(random);
+            }
+            assertStatsConsistent();
+        }
+    }
+
+    public void testQueryCacheAnswersRepeatedQueries() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Gyokuro", TeaEntry.TYPE_GREEN, 14, 6));
+
+        assertEquals(6, quantityOf(teaUri));
+        int hits = queryCacheStats().getInt(TeaContract.EXTRA_CACHE_HITS);
+        assertEquals(6, quantityOf(teaUri));
+
+        Bundle stats = queryCacheStats();
+        assertEquals(hits + 1, stats.getInt(TeaContract.EXTRA_CACHE_HITS));
+        assertTrue(stats.getInt(TeaContract.EXTRA_CACHE_ENTRIES) > 0);
+        assertTrue(stats.getInt(TeaContract.EXTRA_CACHE_BYTES) > 0);
+    }
+
+    public void testQueryCacheOnlyDropsChangedTea() {
+        Uri changedUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Assam", TeaEntry.TYPE_BLACK, 3, 10));
+        Uri otherUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Sencha", TeaEntry.TYPE_GREEN, 5, 8));
+        assertEquals(10, quantityOf(changedUri));
+        assertEquals(8, quantityOf(otherUri));
+        assertEquals(2, countTeas());
+
+        TeaContract.sellTea(mResolver, ContentUris.parseId(changedUri), 3);
+        int hits = queryCacheStats().getInt(TeaContract.EXTRA_CACHE_HITS);
+
+        // The changed tea and the list are read again, the other tea still comes from the cache
+        assertEquals(7, quantityOf(changedUri));
+        assertEquals(hits, queryCacheStats().getInt(TeaContract.EXTRA_CACHE_HITS));
+        assertEquals(8, quantityOf(otherUri));
+        assertEquals(hits + 1, queryCacheStats().getInt(TeaContract.EXTRA_CACHE_HITS));
+        mResolver.insert(TeaEntry.CONTENT_URI, tea("Oolong", TeaEntry.TYPE_GREEN, 6, 3));
+        assertEquals(3, countTeas());
+    }
+
+    public void testQueryCacheCanBeTurnedOff() {
+        Uri teaUri = mResolver.insert(TeaEntry.CONTENT_URI, tea("Keemun", TeaEntry.TYPE_BLACK, 4, 9));
+        mResolver.call(TeaEntry.CONTENT_URI, TeaContract.METHOD_SET_QUERY_CACHE_ENABLED,
+                "false", null);
+
+        int hits = queryCacheStats().getInt(TeaContract.EXTRA_CACHE_HITS);
+        assertEquals(9, quantityOf(teaUri));
+        assertEquals(9, quantityOf(teaUri));
+        Bundle stats = queryCacheStats();
+        assertEquals(hits, stats.getInt(TeaContract.EXTRA_CACHE_HITS));
+        assertEquals(0, stats.getInt(TeaContract.EXTRA_CACHE_ENTRIES));
+    }
+
+    /**
+     * Apply one random change to the teas: an insert, a bulk insert, an update of one or many
+     * teas, a sale or a delete.
+     */
+    private void mutateRandomly(Random random) {
+        long teaId = 1 + random.nextInt(60);
+        Uri teaUri = ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId);
+        ContentValues values = new ContentValues();
+        switch (random.nextInt(7)) {
+            case 0:
+                mResolver.insert(TeaEntry.CONTENT_URI, randomTea(random));
+                break;
+            case 1:
+                mResolver.bulkInsert(TeaEntry.CONTENT_URI,
+                        new ContentValues[] { randomTea(random), randomTea(random) });
+                break;
+            case 2:
+                values.put(TeaEntry.COLUMN_TEA_QUANTITY, random.nextInt(100));
+                values.put(TeaEntry.COLUMN_TEA_PRICE, random.nextInt(2000) / 100.0);
+                mResolver.update(teaUri, values, null, null);
+                break;
+            case 3:
+                values.put(TeaEntry.COLUMN_TEA_TYPE, random.nextInt(3));
+                mResolver.update(teaUri, values, null, null);
+                break;
+            case 4:
+                values.put(TeaEntry.COLUMN_TEA_QUANTITY, random.nextInt(10));
+                mResolver.update(TeaEntry.CONTENT_URI, values,
+                        TeaEntry.COLUMN_TEA_TYPE + "=?", new String[] { String.valueOf(random.nextInt(3)) });
+                break;
+            case 5:
+                TeaContract.sellTea(mResolver, teaId, 1 + random.nextInt(3));
+                break;
+            default:
+                mResolver.delete(teaUri, null, null);
+                break;
+        }
+    }
+
+    private static ContentValues randomTea(Random random) {
+        return tea("Tea " + random.nextInt(), random.nextInt(3), random.nextInt(2000) / 100.0,
+                random.nextInt(100));
+    }
+
+    /**
+     * Check the statistics kept by the database against totals computed from every tea.
+     */
+    private void assertStatsConsistent() {
+        int[] expectedCounts = new int[3];
+        long[] expectedUnits = new long[3];
+        double[] expectedValues = new double[3];
+        Cursor teas = mResolver.query(TeaEntry.CONTENT_URI, null, null, null, null);
+        while (teas.moveToNext()) {
+            int type = teas.getInt(teas.getColumnIndex(TeaEntry.COLUMN_TEA_TYPE));
+            int quantity = teas.getInt(teas.getColumnIndex(TeaEntry.COLUMN_TEA_QUANTITY));
+            double price = teas.getDouble(teas.getColumnIndex(TeaEntry.COLUMN_TEA_PRICE));
+            expectedCounts[type]++;
+            expectedUnits[type] += quantity;
+            expectedValues[type] += price * quantity;
+        }
+        teas.close();
+
+        int[] counts = new int[3];
+        long[] units = new long[3];
+        double[] values = new double[3];
+        Cursor stats = mResolver.query(StatsEntry.CONTENT_URI, null, null, null, null);
+        while (stats.moveToNext()) {
+            int type = stats.getInt(stats.getColumnIndex(StatsEntry.COLUMN_TEA_TYPE));
+            counts[type] = stats.getInt(stats.getColumnIndex(StatsEntry.COLUMN_TEA_COUNT));
+            units[type] = stats.getLong(stats.getColumnIndex(StatsEntry.COLUMN_TOTAL_UNITS));
+            values[type] = stats.getDouble(stats.getColumnIndex(StatsEntry.COLUMN_STOCK_VALUE));
+        }
+        stats.close();
+
+        for (int type = 0; type < 3; type++) {
+            assertEquals(expectedCounts[type], counts[type]);
+            assertEquals(expectedUnits[type], units[type]);
+            assertEquals(expectedValues[type], values[type], 0.001);
+        }
+    }
+
+    static ContentValues tea(String name, int type, double price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(TeaEntry.COLUMN_TEA_NAME, name);
+        values.put(TeaEntry.COLUMN_TEA_TYPE, type);
+        values.put(TeaEntry.COLUMN_TEA_PRICE, price);
+        values.put(TeaEntry.COLUMN_TEA_QUANTITY, quantity);
+        return values;
+    }
+
+    private Bundle queryCacheStats() {
+        return mResolver.call(TeaEntry.CONTENT_URI, TeaContract.METHOD_GET_QUERY_CACHE_STATS,
+                null, null);
+    }
+
+    private int quantityOf(Uri teaUri) {
+        Cursor cursor = mResolver.query(teaUri,
+                new String[] { TeaEntry.COLUMN_TEA_QUANTITY }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns every column of every tea, one string per tea, in id order */
+    private List<String> dumpTeas() {
+        List<String> teas = new ArrayList<String>();
+        Cursor cursor = mResolver.query(TeaEntry.CONTENT_URI, null, null, null, TeaEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder tea = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    tea.append(cursor.getColumnName(i)).append('=')
+                            .append(cursor.getString(i)).append(';');
+                }
+                teas.add(tea.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return teas;
+    }
+
+    /** Returns the ledger entries of a tea as "source delta", in the order they were appended */
+    private List<String> ledgerOf(long teaId) {
+        Cursor cursor = mResolver.query(SalesEntry.CONTENT_URI,
+                new String[] { SalesEntry.COLUMN_SOURCE, SalesEntry.COLUMN_DELTA },
+                SalesEntry.COLUMN_TEA_ID + "=?", new String[] { String.valueOf(teaId) },
+                SalesEntry._ID);
+        try {
+            List<String> entries = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                entries.add(cursor.getString(0) + " " + cursor.getInt(1));
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns the stock level of a tea as the ledger has it: its snapshot plus its entries */
+    private int ledgerStock(long teaId) {
+        String[] selectionArgs = { String.valueOf(teaId) };
+        int stock = 0;
+        Cursor cursor = mResolver.query(SalesSnapshotEntry.CONTENT_URI,
+                new String[] { SalesSnapshotEntry.COLUMN_QUANTITY },
+                SalesSnapshotEntry.COLUMN_TEA_ID + "=?", selectionArgs, null);
+        try {
+            if (cursor.moveToFirst()) {
+                stock = cursor.getInt(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = mResolver.query(SalesEntry.CONTENT_URI,
+                new String[] { "SUM(" + SalesEntry.COLUMN_DELTA + ")" },
+                SalesEntry.COLUMN_TEA_ID + "=?", selectionArgs, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return stock + cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countSearch(String query) {
+        Cursor cursor = mResolver.query(TeaEntry.buildSearchUri(query), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> lowStockNames(int threshold) {
+        Cursor cursor = mResolver.query(TeaEntry.buildLowStockUri(threshold), null, null, null,
+                TeaEntry.PAGE_SORT_ORDER);
+        try {
+            List<String> names = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(cursor.getColumnIndex(TeaEntry.COLUMN_TEA_NAME)));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countTeas() {
+        Cursor cursor = mResolver.query(TeaEntry.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.teainventory.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation tests for the reuse rules and byte budget of {@link BitmapPool}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapPoolTest {
+
+    private static final int SIZE = 64;
+    private static final int BITMAP_BYTES = SIZE * SIZE * 4;
+
+    @Test
+    public void reusesBitmapOfTheImageSize() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertEquals(BITMAP_BYTES, pool.size());
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        pool.addInBitmapOptions(options, SIZE, SIZE);
+        assertTrue(options.inMutable);
+        assertSame(bitmap, options.inBitmap);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void doesNotReuseBitmapTooSmallForTheImage() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        pool.put(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        pool.addInBitmapOptions(options, 2 * SIZE, 2 * SIZE);
+        assertNull(options.inBitmap);
+        assertEquals(BITMAP_BYTES, pool.size());
+    }
+
+    @Test
+    public void reusesBitmapForDownsampledImageFromKitKat() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        // Decoded at half size, the image needs no more memory than the pooled bitmap
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 2;
+        pool.addInBitmapOptions(options, 2 * SIZE, 2 * SIZE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            assertSame(bitmap, options.inBitmap);
+        } else {
+            assertNull(options.inBitmap);
+        }
+    }
+
+    @Test
+    public void recyclesOldestBitmapsOverBudget() {
+        BitmapPool pool = new BitmapPool(2 * BITMAP_BYTES);
+        Bitmap oldest = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap middle = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap newest = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(oldest);
+        pool.put(middle);
+        pool.put(newest);
+
+        assertEquals(2 * BITMAP_BYTES, pool.size());
+        assertTrue(oldest.isRecycled());
+        assertFalse(middle.isRecycled());
+        assertFalse(newest.isRecycled());
+    }
+
+    @Test
+    public void ignoresBitmapsThatCannotBeDecodedInto() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap mutable = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(Bitmap.createBitmap(mutable));
+        Bitmap recycled = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        pool.put(recycled);
+
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.teainventory.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation tests for the memory and disk tiers of {@link ImageCache}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageCacheTest {
+
+    /** Generous budgets, so nothing is evicted unless a test asks for it */
+    private static final int MEMORY_BYTES = 16 * 1024 * 1024;
+    private static final long DISK_BYTES = 16 * 1024 * 1024;
+
+    private ContentResolver mResolver;
+    private File mDiskCacheDirectory;
+    private File mSourceFile;
+    private Uri mSourceUri;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mResolver = context.getContentResolver();
+        mDiskCacheDirectory = new File(context.getCacheDir(), "image_cache_test");
+        deleteDiskCache();
+
+        // A large "photo" to stand in for a picked image
+        Bitmap photo = Bitmap.createBitmap(2000, 1500, Bitmap.Config.ARGB_8888);
+        photo.eraseColor(Color.GREEN);
+        mSourceFile = new File(context.getCacheDir(), "image_cache_test_source.png");
+        OutputStream out = new FileOutputStream(mSourceFile);
+        try {
+            photo.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        photo.recycle();
+        mSourceUri = Uri.fromFile(mSourceFile);
+    }
+
+    @After
+    public void tearDown() {
+        deleteDiskCache();
+        mSourceFile.delete();
+    }
+
+    @Test
+    public void warmOpenDoesNoFullSizeDecodes() {
+        ImageCache cold = new ImageCache(mDiskCacheDirectory, MEMORY_BYTES, DISK_BYTES);
+        Bitmap decoded = cold.get(mResolver, mSourceUri, 200, 200);
+        assertNotNull(decoded);
+        assertTrue(decoded.getWidth() < 2000);
+        assertEquals(1, cold.getMissCount());
+
+        // Opening the same tea again is served from memory
+        assertSame(decoded, cold.get(mResolver, mSourceUri, 200, 200));
+        assertSame(decoded, cold.getFromMemory(mSourceUri, 200, 200));
+        assertEquals(2, cold.getMemoryHitCount());
+        assertEquals(1, cold.getMissCount());
+
+        // After the process is gone, the thumbnail is still on disk
+        ImageCache warm = new ImageCache(mDiskCacheDirectory, MEMORY_BYTES, DISK_BYTES);
+        assertNull(warm.getFromMemory(mSourceUri, 200, 200));
+        Bitmap thumbnail = warm.get(mResolver, mSourceUri, 200, 200);
+        assertNotNull(thumbnail);
+        assertEquals(decoded.getWidth(), thumbnail.getWidth());
+        assertEquals(1, warm.getDiskHitCount());
+        assertEquals(0, warm.getMissCount());
+    }
+
+    @Test
+    public void sizesAreCachedSeparately() {
+        ImageCache cache = new ImageCache(mDiskCacheDirectory, MEMORY_BYTES, DISK_BYTES);
+        Bitmap small = cache.get(mResolver, mSourceUri, 100, 100);
+        Bitmap large = cache.get(mResolver, mSourceUri, 800, 800);
+        assertTrue(small.getWidth() < large.getWidth());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void memoryTierEvictsOverBudget() {
+        // Too small for even one bitmap, so every image falls through to disk
+        ImageCache cache = new ImageCache(mDiskCacheDirectory, 1, DISK_BYTES);
+        assertNotNull(cache.get(mResolver, mSourceUri, 200, 200));
+        assertNotNull(cache.get(mResolver, mSourceUri, 200, 200));
+        assertEquals(0, cache.getMemoryHitCount());
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void diskTierEvictsOverBudget() {
+        ImageCache cache = new ImageCache(mDiskCacheDirectory, MEMORY_BYTES, 1);
+        assertNotNull(cache.get(mResolver, mSourceUri, 200, 200));
+        assertEquals(0, diskCacheBytes());
+
+        // Nothing was kept on disk for the next process
+        ImageCache next = new ImageCache(mDiskCacheDirectory, MEMORY_BYTES, 1);
+        assertNotNull(next.get(mResolver, mSourceUri, 200, 200));
+        assertEquals(1, next.getMissCount());
+    }
+
+    private long diskCacheBytes() {
+        long bytes = 0;
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private void deleteDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDiskCacheDirectory.delete();
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.android.teainventory.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation tests for importing images into the {@link ImageStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageStoreTest {
+
+    private Context mContext;
+    private File mSourceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+
+        // A large landscape "photo" to stand in for a picked image
+        Bitmap photo = Bitmap.createBitmap(3000, 2000, Bitmap.Config.ARGB_8888);
+        photo.eraseColor(Color.RED);
+        mSourceFile = new File(mContext.getCacheDir(), "image_store_test_source.png");
+        OutputStream out = new FileOutputStream(mSourceFile);
+        try {
+            photo.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        photo.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        mSourceFile.delete();
+    }
+
+    @Test
+    public void importWritesEverySizeIntoAppStorage() {
+        Uri image = ImageStore.importImage(mContext, Uri.fromFile(mSourceFile));
+        assertNotNull(image);
+        assertTrue(ImageStore.isImported(image));
+        assertTrue(image.getPath().startsWith(mContext.getFilesDir().getPath()));
+        assertEquals(image, ImageStore.sizedUri(image, ImageStore.SIZE_DETAIL));
+
+        assertLongestSide(ImageStore.SIZE_DETAIL, image);
+        assertLongestSide(ImageStore.SIZE_THUMBNAIL,
+                ImageStore.sizedUri(image, ImageStore.SIZE_THUMBNAIL));
+
+        ImageStore.delete(image);
+        assertFalse(new File(image.getPath()).exists());
+        assertFalse(new File(ImageStore.sizedUri(image, ImageStore.SIZE_THUMBNAIL).getPath())
+                .exists());
+    }
+
+    @Test
+    public void imagesThatWereNotImportedAreLeftAlone() {
+        Uri source = Uri.fromFile(mSourceFile);
+        assertFalse(ImageStore.isImported(source));
+        assertEquals(source, ImageStore.sizedUri(source, ImageStore.SIZE_THUMBNAIL));
+
+        ImageStore.delete(source);
+        assertTrue(mSourceFile.exists());
+    }
+
+    @Test
+    public void unreadableImageIsNotImported() {
+        assertNull(ImageStore.importImage(mContext,
+                Uri.fromFile(new File(mContext.getCacheDir(), "missing.png"))));
+    }
+
+    private static void assertLongestSide(int expected, Uri image) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        assertEquals(expected, Math.max(options.outWidth, options.outHeight));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.test.ProviderTestCase2;
+
+import com.example.android.teainventory.data.TeaContract;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.data.TeaProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Instrumentation tests for {@link CatalogExporter}, exporting from an isolated database.
+ */
+public class CatalogExporterTest extends ProviderTestCase2<TeaProvider> {
+
+    private ContentResolver mResolver;
+
+    public CatalogExporterTest() {
+        super(TeaProvider.class, TeaContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testCsvExportCoversEveryTeaOnceAndReadsBack() throws Exception {
+        // More than one chunk, with names that need quoting and teas sharing a name
+        int teaCount = CatalogExporter.CHUNK_SIZE * 2 + 10;
+        ContentValues[] values = new ContentValues[teaCount];
+        for (int i = 0; i < teaCount; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TeaEntry.COLUMN_TEA_NAME, "Tea \"" + i % 700 + "\", loose");
+            values[i].put(TeaEntry.COLUMN_TEA_TYPE, i % 3);
+            values[i].put(TeaEntry.COLUMN_TEA_PRICE, 2.5);
+            values[i].put(TeaEntry.COLUMN_TEA_QUANTITY, i);
+            values[i].put(TeaEntry.COLUMN_TEA_SKU, "50" + i);
+        }
+        mResolver.bulkInsert(TeaEntry.CONTENT_URI, values);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingListener listener = new RecordingListener();
+        int exported = new CatalogExporter(mResolver).export(out, CatalogExporter.Format.CSV,
+                listener);
+        assertEquals(teaCount, exported);
+        assertEquals(3, listener.chunks);
+
+        CsvReader reader = new CsvReader(new StringReader(out.toString("UTF-8")));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(TeaEntry.COLUMN_TEA_NAME, fields.get(0));
+        Set<String> skus = new HashSet<String>();
+        while (reader.readRecord(fields)) {
+            assertTrue(fields.get(0).startsWith("Tea \""));
+            assertTrue(skus.add(fields.get(6)));
+        }
+        assertEquals(teaCount, skus.size());
+
+        // The export is a catalogue the importer takes as it is
+        mResolver.delete(TeaEntry.CONTENT_URI, null, null);
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importCatalogue(
+                new StringReader(out.toString("UTF-8")), new IgnoringImportListener());
+        assertNull(result.error);
+        assertEquals(teaCount, result.imported);
+        assertEquals(0, result.skipped);
+    }
+
+    public void testJsonExportIsOneArrayOfTeas() throws Exception {
+        ContentValues assam = new ContentValues();
+        assam.put(TeaEntry.COLUMN_TEA_NAME, "Assam");
+        assam.put(TeaEntry.COLUMN_TEA_TYPE, TeaEntry.TYPE_BLACK);
+        assam.put(TeaEntry.COLUMN_TEA_PRICE, 3.5);
+        assam.put(TeaEntry.COLUMN_TEA_QUANTITY, 10);
+        assam.put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, 4);
+        mResolver.insert(TeaEntry.CONTENT_URI, assam);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, new CatalogExporter(mResolver).export(out, CatalogExporter.Format.JSON,
+                new RecordingListener()));
+
+        JSONArray teas = new JSONArray(out.toString("UTF-8"));
+        assertEquals(1, teas.length());
+        JSONObject tea = teas.getJSONObject(0);
+        assertEquals("Assam", tea.getString(TeaEntry.COLUMN_TEA_NAME));
+        assertEquals("black", tea.getString(TeaEntry.COLUMN_TEA_TYPE));
+        assertEquals(3.5, tea.getDouble(TeaEntry.COLUMN_TEA_PRICE));
+        assertEquals(4, tea.getInt(TeaEntry.COLUMN_TEA_REORDER_LEVEL));
+        // Columns without a value are left out
+        assertFalse(tea.has(TeaEntry.COLUMN_TEA_SKU));
+    }
+
+    public void testEmptyInventoryExportsEmptyArray() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, new CatalogExporter(mResolver).export(out, CatalogExporter.Format.JSON,
+                new RecordingListener()));
+        assertEquals(0, new JSONArray(out.toString("UTF-8")).length());
+    }
+
+    /**
+     * Listener counting chunks.
+     */
+    private static class RecordingListener implements CatalogExporter.Listener {
+        int chunks;
+
+        @Override
+        public void onChunkExported(int exported) {
+            chunks++;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Import listener that lets the import run to the end.
+     */
+    private static class IgnoringImportListener implements CatalogImporter.Listener {
+        @Override
+        public void onChunkImported(int written, int skipped) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.example.android.teainventory.data.TeaContract;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.data.TeaProvider;
+
+import java.io.StringReader;
+
+/**
+ * Instrumentation tests for {@link CatalogImporter}, importing into an isolated database.
+ */
+public class CatalogImporterTest extends ProviderTestCase2<TeaProvider> {
+
+    private ContentResolver mResolver;
+
+    public CatalogImporterTest() {
+        super(TeaProvider.class, TeaContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testImportsValidLinesInChunks() {
+        int teaCount = CatalogImporter.CHUNK_SIZE * 2 + 10;
+        StringBuilder csv = new StringBuilder("Name,Type,Price,Quantity,Reorder Level,SKU,Origin\n");
+        for (int i = 0; i < teaCount; i++) {
+            csv.append("\"Tea ").append(i).append(", loose\",green,3.5,").append(i)
+                    .append(",,50").append(i).append(",China\n");
+        }
+        // Lines breaking the provider's rules, and a blank one
+        csv.append("Nameless,,1,1,,,\n");
+        csv.append("Negative,black,-1,1,,,\n");
+        csv.append("\n");
+        csv.append("Last,herbal,2,4,3,,\n");
+
+        RecordingListener listener = new RecordingListener(false);
+        CatalogImporter.Result result = new CatalogImporter(mResolver)
+                .importCatalogue(new StringReader(csv.toString()), listener);
+
+        assertNull(result.error);
+        assertFalse(result.cancelled);
+        assertEquals(teaCount + 1, result.imported);
+        assertEquals(2, result.skipped);
+        assertEquals(2, result.skipReasons.size());
+        assertEquals(3, listener.chunks);
+        assertEquals(teaCount + 1, countTeas());
+
+        Cursor cursor = mResolver.query(TeaEntry.buildSkuUri("507"),
+                new String[] { TeaEntry.COLUMN_TEA_NAME, TeaEntry.COLUMN_TEA_QUANTITY },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Tea 7, loose", cursor.getString(0));
+        assertEquals(7, cursor.getInt(1));
+        cursor.close();
+    }
+
+    public void testDuplicateSkusAreSkippedLineByLine() {
+        new CatalogImporter(mResolver).importCatalogue(
+                new StringReader("name,type,sku\nAssam,black,5011\n"),
+                new RecordingListener(false));
+
+        // One SKU repeats within the file, another belongs to a tea already there
+        CatalogImporter.Result result = new CatalogImporter(mResolver).importCatalogue(
+                new StringReader("name,type,sku\nSencha,green,5012\nGyokuro,green,5012\n"
+                        + "Darjeeling,black,5011\nRooibos,herbal,\n"),
+                new RecordingListener(false));
+
+        assertNull(result.error);
+        assertEquals(2, result.imported);
+        assertEquals(2, result.skipped);
+        assertEquals("3: Duplicate SKU 5012", result.skipReasons.get(0));
+        assertEquals("4: Duplicate SKU 5011", result.skipReasons.get(1));
+        assertEquals(3, countTeas());
+    }
+
+    public void testCancelledImportKeepsWrittenChunks() {
+        StringBuilder csv = new StringBuilder("name,type\n");
+        for (int i = 0; i < CatalogImporter.CHUNK_SIZE * 3; i++) {
+            csv.append("Tea ").append(i).append(",0\n");
+        }
+
+        CatalogImporter.Result result = new CatalogImporter(mResolver)
+                .importCatalogue(new StringReader(csv.toString()), new RecordingListener(true));
+
+        assertTrue(result.cancelled);
+        assertEquals(CatalogImporter.CHUNK_SIZE, result.imported);
+        assertEquals(CatalogImporter.CHUNK_SIZE, countTeas());
+    }
+
+    public void testCatalogueWithoutRequiredColumnsFails() {
+        CatalogImporter.Result result = new CatalogImporter(mResolver)
+                .importCatalogue(new StringReader("name,price\nAssam,3\n"),
+                        new RecordingListener(false));
+
+        assertNotNull(result.error);
+        assertEquals(0, countTeas());
+    }
+
+    public void testPriceListMergesIntoExistingTeas() {
+        new CatalogImporter(mResolver).importCatalogue(
+                new StringReader("name,type,price,quantity,sku\n"
+                        + "Assam,black,3,10,5011\nSencha,green,6,5,\n"), new RecordingListener(false));
+
+        CatalogImporter.Result result = new CatalogImporter(mResolver).mergePriceList(
+                new StringReader("SKU,Name,Price\n5011,Assam TGFOP,3.5\n,sencha,6\n"
+                        + ",Rooibos,2\n,Hojicha,\n"), new RecordingListener(false));
+
+        assertNull(result.error);
+        assertEquals(1, result.updated);
+        assertEquals(1, result.unchanged);
+        // Rooibos is new but has no type, and Hojicha has no price
+        assertEquals(0, result.imported);
+        assertEquals(2, result.skipped);
+        assertEquals(2, countTeas());
+
+        Cursor cursor = mResolver.query(TeaEntry.buildSkuUri("5011"),
+                new String[] { TeaEntry.COLUMN_TEA_PRICE, TeaEntry.COLUMN_TEA_QUANTITY },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(3.5, cursor.getDouble(0));
+        assertEquals(10, cursor.getInt(1));
+        cursor.close();
+    }
+
+    /**
+     * Listener counting chunks, which can cancel the import after the first one.
+     */
+    private static class RecordingListener implements CatalogImporter.Listener {
+        private final boolean mCancelAfterFirstChunk;
+        int chunks;
+
+        RecordingListener(boolean cancelAfterFirstChunk) {
+            mCancelAfterFirstChunk = cancelAfterFirstChunk;
+        }
+
+        @Override
+        public void onChunkImported(int written, int skipped) {
+            chunks++;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelAfterFirstChunk && chunks > 0;
+        }
+    }
+
+    private int countTeas() {
+        Cursor cursor = mResolver.query(TeaEntry.CONTENT_URI, new String[] { TeaEntry._ID },
+                null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
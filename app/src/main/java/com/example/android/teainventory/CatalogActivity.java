@@ -1,36 +1,244 @@
 package com.example.android.teainventory;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import com.example.android.teainventory.data.SaleQueue;
+import com.example.android.teainventory.data.SalesCompactionService;
+import com.example.android.teainventory.data.TeaContract.StatsEntry;
 import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.image.ThumbnailLoader;
+import com.example.android.teainventory.transfer.CatalogExportTask;
+import com.example.android.teainventory.transfer.CatalogExporter;
+import com.example.android.teainventory.transfer.CatalogImportTask;
+import com.example.android.teainventory.transfer.CatalogImporter;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Displays list of teas that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, CatalogChangeObserver.Callback,
+        SaleQueue.Listener, CatalogImportTask.Callback, CatalogExportTask.Callback {
+
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    /** Request code for picking the catalogue file to import */
+    private static final int PICK_CATALOGUE_REQUEST = 0;
+
+    /** Request code for picking the price list file to merge */
+    private static final int PICK_PRICE_LIST_REQUEST = 1;
+
+    /** Columns of the teas table shown in the catalog */
+    private static final String[] CATALOG_PROJECTION = {
+            TeaEntry._ID,
+            TeaEntry.COLUMN_TEA_NAME,
+            TeaEntry.COLUMN_TEA_PRICE,
+            TeaEntry.COLUMN_TEA_QUANTITY,
+            TeaEntry.COLUMN_TEA_IMAGE };
 
-    /** Identifier for the tea data loader */
+    /**
+     * Identifier for the loader of the first page of teas. Page n is loaded by the loader
+     * with the id TEA_LOADER + n.
+     */
     private static final int TEA_LOADER = 0;
 
-    /** Adapter for the ListView */
-    TeaCursorAdapter mCursorAdapter;
+    /** Identifier for the inventory statistics loader, negative so it never clashes with pages */
+    private static final int STATS_LOADER = -1;
+
+    /** Number of teas loaded per page */
+    private static final int PAGE_SIZE = 100;
+
+    /** Start loading the next page once the user scrolls within this many rows of the end */
+    private static final int PREFETCH_DISTANCE = 30;
+
+    /** Decode the thumbnails of this many rows ahead of the visible ones, in the scroll direction */
+    private static final int THUMBNAIL_PREFETCH_ROWS = 8;
+
+    /** Saved state key for the search text */
+    private static final String STATE_SEARCH_QUERY = "STATE_SEARCH_QUERY";
+
+    /** Saved state key for whether only low stock teas are shown */
+    private static final String STATE_LOW_STOCK_ONLY = "STATE_LOW_STOCK_ONLY";
+
+    /** Saved state keys for where each page after the first starts */
+    private static final String STATE_PAGE_AFTER_NAMES = "STATE_PAGE_AFTER_NAMES";
+    private static final String STATE_PAGE_AFTER_IDS = "STATE_PAGE_AFTER_IDS";
+
+    /** Loader argument holding the name of the last tea of the previous page */
+    private static final String ARG_AFTER_NAME = "after_name";
+
+    /** Loader argument holding the id of the last tea of the previous page */
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /** How long to wait after the last keystroke before searching */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+
+    /** Adapter for the RecyclerView */
+    TeaAdapter mAdapter;
+
+    /** Loads the thumbnails shown in the list */
+    private ThumbnailLoader mThumbnailLoader;
+
+    /** View shown instead of the list when there are no teas */
+    private View mEmptyView;
+
+    /** Queue the sales are made through, so rapid taps are written as one */
+    private SaleQueue mSaleQueue;
+
+    /** TextView showing the inventory statistics */
+    private TextView mStatsTextView;
+
+    /** Text currently typed into the search box, empty when not searching */
+    private String mSearchQuery = "";
+
+    /** Whether the list only shows the teas that need reordering */
+    private boolean mLowStockOnly;
+
+    /** Handler used to debounce searches while the user is typing */
+    private final Handler mHandler = new Handler();
+
+    /** Pages of teas shown in the list, in order */
+    private final List<Page> mPages = new ArrayList<Page>();
+
+    /** Thread on which changes to the teas are looked at and changed teas are fetched */
+    private HandlerThread mChangeThread;
+
+    /** Observer deciding whether a change can be patched into the list or needs a reload */
+    private CatalogChangeObserver mChangeObserver;
+
+    /** Catalogue import running in the background, null if there is none */
+    private CatalogImportTask mImportTask;
+
+    /** Dialog showing the progress of {@link #mImportTask} */
+    private ProgressDialog mImportDialog;
+
+    /** Inventory export running in the background, null if there is none */
+    private CatalogExportTask mExportTask;
+
+    /** Dialog showing the progress of {@link #mExportTask} */
+    private ProgressDialog mExportDialog;
+
+    /** Reloads the list from its first page, picking up the current search text */
+    private final Runnable mRestartLoader = new Runnable() {
+        @Override
+        public void run() {
+            reloadPages();
+        }
+    };
+
+    /**
+     * One page of teas: the position in the list it starts after, and the loader and cursor
+     * holding its rows once loaded.
+     */
+    private static class Page {
+        /** Name of the last tea of the previous page, null for the first page */
+        String afterName;
+        /** Id of the last tea of the previous page */
+        long afterId;
+        /** Loader that delivered {@link #cursor} */
+        Loader<Cursor> loader;
+        /** Rows of this page, or null while it is loading */
+        Cursor cursor;
+        /** Copy of {@link #cursor} with changed teas patched in, null if nothing changed */
+        Cursor patchedCursor;
+        /** Rows copied out of {@link #rowsSource} */
+        List<TeaRow> rows;
+        /** Cursor that {@link #rows} were copied from */
+        Cursor rowsSource;
+
+        Page(String afterName, long afterId) {
+            this.afterName = afterName;
+            this.afterId = afterId;
+        }
+
+        /** Returns the rows to show for this page, or null while it is loading */
+        Cursor shownCursor() {
+            return patchedCursor != null ? patchedCursor : cursor;
+        }
+
+        /**
+         * Returns the rows to show for this page, or null while it is loading. The rows are
+         * only copied out of the cursor again when the cursor changed.
+         */
+        List<TeaRow> shownRows(SaleQueue saleQueue) {
+            Cursor shown = shownCursor();
+            if (shown != rowsSource) {
+                rowsSource = shown;
+                rows = shown == null ? null : TeaRow.readAll(shown, saleQueue);
+            }
+            return rows;
+        }
+
+        /**
+         * Take the units now pending off the copied row of the given tea. Returns the new row,
+         * or null if the tea isn't on this page or its rows haven't been copied.
+         */
+        TeaRow updatePendingUnits(long teaId, SaleQueue saleQueue) {
+            if (rows == null) {
+                return null;
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                TeaRow row = rows.get(i);
+                if (row.id == teaId) {
+                    row = row.withPendingUnits(saleQueue.getPendingUnits(teaId));
+                    rows.set(i, row);
+                    return row;
+                }
+            }
+            return null;
+        }
+
+        /** Forget the patched copy of this page, returning it so it can be closed */
+        Cursor takePatchedCursor() {
+            Cursor patched = patchedCursor;
+            patchedCursor = null;
+            return patched;
+        }
+
+        /** Returns whether this page was loaded and came back full, so more may follow */
+        boolean isFull() {
+            return cursor != null && cursor.getCount() >= PAGE_SIZE;
+        }
+    }
+
+    /**
+     * Background tasks kept running while the activity is recreated for a change of
+     * configuration, null where there is none.
+     */
+    private static class RetainedTasks {
+        CatalogImportTask importTask;
+        CatalogExportTask exportTask;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,40 +255,337 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the tea data
-        ListView teaListView = (ListView) findViewById(R.id.list);
+        mStatsTextView = (TextView) findViewById(R.id.stats_summary);
+
+        mSaleQueue = SaleQueue.get(this);
+        mSaleQueue.setListener(this);
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        teaListView.setEmptyView(emptyView);
+        // Keep the sales ledger compacted in the background
+        SalesCompactionService.schedule(this);
+
+        // Find the RecyclerView which will be populated with the tea data
+        RecyclerView teaListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        teaListView.setLayoutManager(layoutManager);
+
+        // Find the empty view, shown by showPages() only when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
         // Setup an Adapter to create a list item for each row of tea data in the Cursor.
-        // There is no tea data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new TeaCursorAdapter(this, null);
-        teaListView.setAdapter(mCursorAdapter);
+        // There is no tea data yet (until the loader finishes), so the adapter starts empty.
+        mThumbnailLoader = new ThumbnailLoader(this,
+                getResources().getDimensionPixelSize(R.dimen.list_thumbnail_size));
+        mAdapter = new TeaAdapter(this, mThumbnailLoader,
+                new TeaAdapter.OnTeaClickListener() {
+                    @Override
+                    public void onTeaClick(long teaId) {
+                        // Create new intent to go to {@link EditorActivity}
+                        Intent intent = new Intent(CatalogActivity.this, com.example.android.teainventory.EditorActivity.class);
 
-        // Setup the item click listener
-        teaListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                // Create new intent to go to {@link EditorActivity}
-                Intent intent = new Intent(CatalogActivity.this, com.example.android.teainventory.EditorActivity.class);
+                        // Form the content URI that represents the specific tea that was clicked on,
+                        // by appending the "id" (passed as input to this method) onto the
+                        // {@link TeaEntry#CONTENT_URI}.
+                        Uri currentTeaUri = ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId);
 
-                // Form the content URI that represents the specific tea that was clicked on,
-                // by appending the "id" (passed as input to this method) onto the
-                // {@link TeaEntry#CONTENT_URI}.
-                Uri currentTeaUri = ContentUris.withAppendedId(TeaEntry.CONTENT_URI, id);
+                        // Set the URI on the data field of the intent
+                        intent.setData(currentTeaUri);
 
-                // Set the URI on the data field of the intent
-                intent.setData(currentTeaUri);
+                        // Launch the {@link EditorActivity} to display the data for the current tea.
+                        startActivity(intent);
+                    }
 
-                // Launch the {@link EditorActivity} to display the data for the current tea.
-                startActivity(intent);
+                    @Override
+                    public void onSaleClick(TeaRow row) {
+                        sellTea(row);
+                    }
+                });
+        teaListView.setAdapter(mAdapter);
+
+        // Load the next page of teas as the user scrolls towards the end of the list, and
+        // decode the thumbnails of the rows about to scroll into view
+        teaListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                int totalItemCount = mAdapter.getItemCount();
+                if (firstVisibleItem == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                if (lastVisibleItem >= totalItemCount - 1 - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+                if (dy > 0) {
+                    mAdapter.prefetchThumbnails(lastVisibleItem + 1,
+                            lastVisibleItem + THUMBNAIL_PREFETCH_ROWS);
+                } else if (dy < 0) {
+                    mAdapter.prefetchThumbnails(firstVisibleItem - THUMBNAIL_PREFETCH_ROWS,
+                            firstVisibleItem - 1);
+                }
             }
         });
 
-        // Kick off the loader
+        // Watch the teas ourselves rather than through the loaders' cursors, so a change to a
+        // single tea can be patched into the list instead of reloading every page
+        mChangeThread = new HandlerThread("CatalogChangeObserver");
+        mChangeThread.start();
+        mChangeObserver = new CatalogChangeObserver(new Handler(mChangeThread.getLooper()),
+                getContentResolver(), CATALOG_PROJECTION, this);
+        getContentResolver().registerContentObserver(TeaEntry.CONTENT_URI, true, mChangeObserver);
+
+        // Kick off the loaders for the first page, and for any further pages that were loaded
+        // before the activity was recreated, so their loaders are reconnected rather than leaked
+        mPages.add(new Page(null, 0));
+        if (savedInstanceState != null) {
+            mSearchQuery = savedInstanceState.getString(STATE_SEARCH_QUERY, "");
+            mLowStockOnly = savedInstanceState.getBoolean(STATE_LOW_STOCK_ONLY);
+            String[] afterNames = savedInstanceState.getStringArray(STATE_PAGE_AFTER_NAMES);
+            long[] afterIds = savedInstanceState.getLongArray(STATE_PAGE_AFTER_IDS);
+            if (afterNames != null && afterIds != null) {
+                for (int i = 0; i < afterNames.length; i++) {
+                    mPages.add(new Page(afterNames[i], afterIds[i]));
+                }
+            }
+        }
+        getLoaderManager().initLoader(STATS_LOADER, null, this);
         getLoaderManager().initLoader(TEA_LOADER, null, this);
+        for (int i = 1; i < mPages.size(); i++) {
+            getLoaderManager().initLoader(TEA_LOADER + i, pageArgs(mPages.get(i)), this);
+        }
+
+        // Pick up an import or export kept running while the activity was recreated
+        RetainedTasks retained = (RetainedTasks) getLastCustomNonConfigurationInstance();
+        if (retained != null && retained.importTask != null) {
+            mImportTask = retained.importTask;
+            showImportDialog(mImportTask.isMerge());
+            mImportTask.setCallback(this);
+        }
+        if (retained != null && retained.exportTask != null) {
+            mExportTask = retained.exportTask;
+            showExportDialog();
+            mExportTask.setCallback(this);
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        // Keep a running import and export going across the change of configuration
+        if (mImportTask == null && mExportTask == null) {
+            return null;
+        }
+        RetainedTasks retained = new RetainedTasks();
+        retained.importTask = mImportTask;
+        retained.exportTask = mExportTask;
+        return retained;
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SEARCH_QUERY, mSearchQuery);
+        outState.putBoolean(STATE_LOW_STOCK_ONLY, mLowStockOnly);
+
+        // Remember where every page after the first starts
+        int pageCount = mPages.size() - 1;
+        String[] afterNames = new String[pageCount];
+        long[] afterIds = new long[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            afterNames[i] = mPages.get(i + 1).afterName;
+            afterIds[i] = mPages.get(i + 1).afterId;
+        }
+        outState.putStringArray(STATE_PAGE_AFTER_NAMES, afterNames);
+        outState.putLongArray(STATE_PAGE_AFTER_IDS, afterIds);
+    }
+
+    /**
+     * Start loading the page after the last one, unless it is already loading or the last
+     * page showed that there are no more teas.
+     */
+    private void loadNextPage() {
+        Page lastPage = mPages.get(mPages.size() - 1);
+        if (!lastPage.isFull()) {
+            return;
+        }
+
+        Cursor lastPageCursor = lastPage.cursor;
+        lastPageCursor.moveToLast();
+        Page nextPage = new Page(
+                lastPageCursor.getString(lastPageCursor.getColumnIndex(TeaEntry.COLUMN_TEA_NAME)),
+                lastPageCursor.getLong(lastPageCursor.getColumnIndex(TeaEntry._ID)));
+        mPages.add(nextPage);
+        getLoaderManager().initLoader(TEA_LOADER + mPages.size() - 1, pageArgs(nextPage), this);
+    }
+
+    /**
+     * Drop every page but the first and reload the list from the top.
+     */
+    private void reloadPages() {
+        discardPagesAfter(0);
+        getLoaderManager().restartLoader(TEA_LOADER, null, this);
+    }
+
+    /**
+     * Stop loading and showing every page after the given one.
+     */
+    private void discardPagesAfter(int pageIndex) {
+        for (int i = mPages.size() - 1; i > pageIndex; i--) {
+            Cursor patched = mPages.remove(i).takePatchedCursor();
+            getLoaderManager().destroyLoader(TEA_LOADER + i);
+            if (patched != null) {
+                patched.close();
+            }
+        }
+    }
+
+    /**
+     * Reload every page that has been loaded, keeping the list where it is.
+     */
+    private void reloadAllPages() {
+        getLoaderManager().restartLoader(TEA_LOADER, null, this);
+        for (int i = 1; i < mPages.size(); i++) {
+            getLoaderManager().restartLoader(TEA_LOADER + i, pageArgs(mPages.get(i)), this);
+        }
+    }
+
+    @Override
+    public void onTeaChanged(long teaId, ContentValues values) {
+        // Changes may still be delivered after the activity has been destroyed. The low stock
+        // list is short and any change can move a tea onto or off it, so it is always reloaded.
+        if (mChangeObserver != null && (mLowStockOnly || !patchTea(teaId, values))) {
+            reloadAllPages();
+        }
+    }
+
+    @Override
+    public void onReloadRequired() {
+        if (mChangeObserver != null) {
+            reloadAllPages();
+        }
+    }
+
+    /**
+     * Show new values for a single tea without querying the other teas again, by swapping
+     * the page holding it for a copy with its row replaced. Returns false if the tea isn't
+     * shown, or if its name changed and it may belong somewhere else in the list.
+     */
+    private boolean patchTea(long teaId, ContentValues values) {
+        for (Page page : mPages) {
+            Cursor cursor = page.shownCursor();
+            if (cursor == null) {
+                return false;
+            }
+
+            int idColumnIndex = cursor.getColumnIndex(TeaEntry._ID);
+            int nameColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_NAME);
+            int position = -1;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                if (cursor.getLong(idColumnIndex) == teaId) {
+                    position = cursor.getPosition();
+                    break;
+                }
+            }
+            if (position == -1) {
+                continue;
+            }
+            if (!cursor.getString(nameColumnIndex).equals(
+                    values.getAsString(TeaEntry.COLUMN_TEA_NAME))) {
+                return false;
+            }
+
+            // Copy the page, taking the changed tea's row from the new values
+            String[] columnNames = cursor.getColumnNames();
+            MatrixCursor patched = new MatrixCursor(columnNames, cursor.getCount());
+            Object[] row = new Object[columnNames.length];
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                for (int i = 0; i < columnNames.length; i++) {
+                    row[i] = cursor.getPosition() == position && values.containsKey(columnNames[i])
+                            ? values.get(columnNames[i])
+                            : cursor.getString(i);
+                }
+                patched.addRow(row);
+            }
+
+            // The new values include every sale of the tea written so far
+            mSaleQueue.releaseWrittenUnits(teaId);
+            Cursor stale = page.takePatchedCursor();
+            page.patchedCursor = patched;
+            showPages();
+            if (stale != null) {
+                stale.close();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sell one unit of the given tea, if the stock shown for it allows. The sale is queued
+     * and shown straight away, and the queue writes it to the provider a moment later,
+     * together with any further sales of the tea. The provider decrements the stock itself,
+     * so the sale is still checked against the current quantity when it is written.
+     */
+    private void sellTea(TeaRow row) {
+        if (row.quantity <= 0) {
+            return;
+        }
+        mSaleQueue.sell(row.id, 1);
+        onPendingUnitsChanged(row.id);
+    }
+
+    @Override
+    public void onPendingUnitsChanged(long teaId) {
+        updatePendingUnits(teaId);
+    }
+
+    @Override
+    public void onSaleFailed(long teaId, int units) {
+        // The units were shown as sold, so the cashier has to know they weren't
+        TeaRow row = updatePendingUnits(teaId);
+        String message = row != null
+                ? getString(R.string.sale_failed, units, row.name)
+                : getString(R.string.sale_failed_tea_not_shown, units);
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Show the stock of the given tea with the units now pending taken off, updating only the
+     * tea's own row. Returns the row, or null if the tea isn't shown.
+     */
+    private TeaRow updatePendingUnits(long teaId) {
+        for (Page page : mPages) {
+            TeaRow row = page.updatePendingUnits(teaId, mSaleQueue);
+            if (row != null) {
+                mAdapter.updateRow(row);
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the loader arguments for the given page.
+     */
+    private static Bundle pageArgs(Page page) {
+        Bundle args = new Bundle();
+        args.putString(ARG_AFTER_NAME, page.afterName);
+        args.putLong(ARG_AFTER_ID, page.afterId);
+        return args;
+    }
+
+    /**
+     * Show all loaded pages, up to the first one that is still loading, in the list.
+     */
+    private void showPages() {
+        List<TeaRow> rows = new ArrayList<TeaRow>();
+        for (Page page : mPages) {
+            List<TeaRow> pageRows = page.shownRows(mSaleQueue);
+            if (pageRows == null) {
+                break;
+            }
+            rows.addAll(pageRows);
+        }
+        mAdapter.setRows(rows);
+        mEmptyView.setVisibility(rows.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     /**
@@ -103,12 +608,177 @@ public class CatalogActivity extends AppCompatActivity implements
         Uri newUri = getContentResolver().insert(TeaEntry.CONTENT_URI, values);
     }
 
+    /**
+     * Let the user pick a supplier's catalogue to import, or price list to merge, as given by
+     * the request code.
+     */
+    private void openCatalogueSelector(int requestCode) {
+        Intent intent;
+        if (Build.VERSION.SDK_INT < 19) {
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+        } else {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+        }
+        intent.setType("text/*");
+        int title = requestCode == PICK_PRICE_LIST_REQUEST
+                ? R.string.merge_choose_file : R.string.import_choose_file;
+        startActivityForResult(Intent.createChooser(intent, getString(title)), requestCode);
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent resultData) {
+        super.onActivityResult(requestCode, resultCode, resultData);
+        if ((requestCode == PICK_CATALOGUE_REQUEST || requestCode == PICK_PRICE_LIST_REQUEST)
+                && resultCode == RESULT_OK && resultData != null && resultData.getData() != null
+                && mImportTask == null) {
+            startImport(resultData.getData(), requestCode == PICK_PRICE_LIST_REQUEST);
+        }
+    }
+
+    /**
+     * Import the catalogue, or merge the price list, at the given URI in the background,
+     * showing its progress in a dialog that lets the user cancel it.
+     */
+    private void startImport(Uri catalogue, boolean merge) {
+        showImportDialog(merge);
+        mImportTask = merge
+                ? CatalogImportTask.startMerge(this, catalogue, this)
+                : CatalogImportTask.start(this, catalogue, this);
+    }
+
+    /**
+     * Show the dialog with the progress of {@link #mImportTask}, with a button to cancel it.
+     */
+    private void showImportDialog(boolean merge) {
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setTitle(merge ? R.string.merge_progress_title : R.string.import_progress_title);
+        mImportDialog.setMessage(getString(R.string.import_progress_message, 0));
+        mImportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mImportDialog.setMax(100);
+        mImportDialog.setCancelable(false);
+        mImportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mImportTask != null) {
+                            mImportTask.cancel(false);
+                        }
+                    }
+                });
+        mImportDialog.show();
+    }
+
+    @Override
+    public void onImportProgress(int written, int percent) {
+        mImportDialog.setIndeterminate(percent == CatalogImportTask.PROGRESS_UNKNOWN);
+        mImportDialog.setProgress(Math.max(percent, 0));
+        mImportDialog.setMessage(getString(R.string.import_progress_message, written));
+    }
+
+    @Override
+    public void onImportFinished(CatalogImporter.Result result) {
+        mImportTask = null;
+        mImportDialog.dismiss();
+        mImportDialog = null;
+
+        String message;
+        if (result.error != null) {
+            message = getString(R.string.import_failed, result.imported, result.error);
+        } else if (result.cancelled) {
+            message = getString(R.string.import_cancelled, result.imported);
+        } else if (result.updated != 0 || result.unchanged != 0) {
+            message = getString(R.string.merge_finished, result.updated, result.imported,
+                    result.unchanged, result.skipped);
+        } else {
+            message = getString(R.string.import_finished, result.imported, result.skipped);
+        }
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+        for (String reason : result.skipReasons) {
+            Log.w(LOG_TAG, "Skipped catalogue line " + reason);
+        }
+    }
+
+    /**
+     * Let the user pick the format to export the inventory in, then export it.
+     */
+    private void chooseExportFormat() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.export_choose_format);
+        // The formats are listed in the order of CatalogExporter.Format
+        builder.setItems(R.array.export_formats, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (mExportTask == null) {
+                    startExport(CatalogExporter.Format.values()[which]);
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Export every tea in the given format in the background, showing its progress in a
+     * dialog that lets the user cancel it.
+     */
+    private void startExport(CatalogExporter.Format format) {
+        showExportDialog();
+        mExportTask = CatalogExportTask.start(this, format, this);
+    }
+
+    /**
+     * Show the dialog with the progress of {@link #mExportTask}, with a button to cancel it.
+     */
+    private void showExportDialog() {
+        mExportDialog = new ProgressDialog(this);
+        mExportDialog.setTitle(R.string.export_progress_title);
+        mExportDialog.setMessage(getString(R.string.export_progress_message, 0));
+        mExportDialog.setIndeterminate(true);
+        mExportDialog.setCancelable(false);
+        mExportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mExportTask != null) {
+                            mExportTask.cancel(false);
+                        }
+                    }
+                });
+        mExportDialog.show();
+    }
+
+    @Override
+    public void onExportProgress(int exported) {
+        mExportDialog.setMessage(getString(R.string.export_progress_message, exported));
+    }
+
+    @Override
+    public void onExportFinished(Uri export, CatalogExporter.Format format) {
+        boolean cancelled = mExportTask.isCancelled();
+        mExportTask = null;
+        mExportDialog.dismiss();
+        mExportDialog = null;
+
+        if (export == null) {
+            if (!cancelled) {
+                Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        // Let the user send the file on, granting the receiving app access to it
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(format.mimeType);
+        intent.putExtra(Intent.EXTRA_STREAM, export);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.export_send)));
+    }
+
     /**
      * Helper method to delete all teas in the database.
      */
     private void deleteAllTeas() {
         int rowsDeleted = getContentResolver().delete(TeaEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from tea database");
+        Log.v(LOG_TAG, rowsDeleted + " rows deleted from tea database");
     }
 
     @Override
@@ -116,17 +786,116 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_low_stock).setChecked(mLowStockOnly);
+
+        // Search as the user types, restarting the loader once they pause
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        if (!TextUtils.isEmpty(mSearchQuery)) {
+            // Show the search that was running before the activity was recreated
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(mSearchQuery, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, SEARCH_DEBOUNCE_MILLIS);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Show the teas matching the given search text, after the given delay. Any search that
+     * is still waiting is replaced by this one.
+     */
+    private void search(String query, long delayMillis) {
+        String trimmedQuery = query == null ? "" : query.trim();
+        if (trimmedQuery.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = trimmedQuery;
+        mHandler.removeCallbacks(mRestartLoader);
+        mHandler.postDelayed(mRestartLoader, delayMillis);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't leave sales waiting while the app may be about to go away
+        mSaleQueue.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSaleQueue.setListener(null);
+        mHandler.removeCallbacks(mRestartLoader);
+        getContentResolver().unregisterContentObserver(mChangeObserver);
+        mChangeObserver = null;
+        mChangeThread.quit();
+        mThumbnailLoader.shutDown();
+        if (mImportTask != null) {
+            mImportTask.setCallback(null);
+            if (isFinishing()) {
+                // Nobody is left to report to, so stop after the chunk being written
+                mImportTask.cancel(false);
+            }
+            mImportTask = null;
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        if (mExportTask != null) {
+            mExportTask.setCallback(null);
+            if (isFinishing()) {
+                mExportTask.cancel(false);
+            }
+            mExportTask = null;
+            mExportDialog.dismiss();
+            mExportDialog = null;
+        }
+        for (Page page : mPages) {
+            Cursor patched = page.takePatchedCursor();
+            if (patched != null) {
+                patched.close();
+            }
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Low stock only" menu option
+            case R.id.action_low_stock:
+                mLowStockOnly = !mLowStockOnly;
+                item.setChecked(mLowStockOnly);
+                mHandler.removeCallbacks(mRestartLoader);
+                reloadPages();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertTea();
                 return true;
+            // Respond to a click on the "Import catalogue" menu option
+            case R.id.action_import_catalogue:
+                openCatalogueSelector(PICK_CATALOGUE_REQUEST);
+                return true;
+            // Respond to a click on the "Merge price list" menu option
+            case R.id.action_merge_price_list:
+                openCatalogueSelector(PICK_PRICE_LIST_REQUEST);
+                return true;
+            // Respond to a click on the "Export inventory" menu option
+            case R.id.action_export_inventory:
+                chooseExportFormat();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllTeas();
@@ -136,32 +905,144 @@ public class CatalogActivity extends AppCompatActivity implements
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                TeaEntry._ID,
-                TeaEntry.COLUMN_TEA_NAME,
-                TeaEntry.COLUMN_TEA_PRICE,
-                TeaEntry.COLUMN_TEA_QUANTITY };
+    public Loader<Cursor> onCreateLoader(int loaderId, Bundle bundle) {
+        if (loaderId == STATS_LOADER) {
+            // The statistics are a handful of rows, kept current by the database
+            return new CursorLoader(this, StatsEntry.CONTENT_URI, null, null, null, null);
+        }
+
+        // Query all teas, or only the ones matching the search text if there is any.
+        // In low stock mode, only the teas that need reordering are searched.
+        Uri uri;
+        if (mLowStockOnly) {
+            uri = TeaEntry.buildLowStockUri(TeaEntry.DEFAULT_REORDER_LEVEL);
+            if (!TextUtils.isEmpty(mSearchQuery)) {
+                uri = uri.buildUpon()
+                        .appendQueryParameter(TeaEntry.QUERY_PARAMETER_SEARCH, mSearchQuery)
+                        .build();
+            }
+        } else if (TextUtils.isEmpty(mSearchQuery)) {
+            uri = TeaEntry.CONTENT_URI;
+        } else {
+            uri = TeaEntry.buildSearchUri(mSearchQuery);
+        }
+
+        // Only load one page, starting after the last tea of the previous page
+        String afterName = bundle == null ? null : bundle.getString(ARG_AFTER_NAME);
+        long afterId = bundle == null ? 0 : bundle.getLong(ARG_AFTER_ID);
+        uri = TeaEntry.buildPageUri(uri, afterName, afterId, PAGE_SIZE);
+
+        // Changes are picked up by mChangeObserver, not by the loader's cursor
+        uri = uri.buildUpon().appendQueryParameter(TeaEntry.QUERY_PARAMETER_NOTIFY, "false").build();
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
-                TeaEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
+                uri,                    // Provider content URI to query
+                CATALOG_PROJECTION,     // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
-                null);                  // Default sort order
+                TeaEntry.PAGE_SORT_ORDER); // Sort order pages are keyed on
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link TeaCursorAdapter} with this new cursor containing updated tea data
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == STATS_LOADER) {
+            showStats(data);
+            return;
+        }
+
+        int pageIndex = loader.getId() - TEA_LOADER;
+        if (pageIndex >= mPages.size()) {
+            return;
+        }
+        Page page = mPages.get(pageIndex);
+        page.loader = loader;
+        page.cursor = data;
+
+        // The freshly loaded rows replace any teas patched in since the last load
+        Cursor stale = page.takePatchedCursor();
+
+        // A reloaded page may now end on a different tea. If so, the page after it has to
+        // start after that tea instead, or rows would be skipped or shown twice.
+        if (pageIndex + 1 < mPages.size()) {
+            if (!page.isFull()) {
+                discardPagesAfter(pageIndex);
+            } else {
+                data.moveToLast();
+                String lastName = data.getString(data.getColumnIndex(TeaEntry.COLUMN_TEA_NAME));
+                long lastId = data.getLong(data.getColumnIndex(TeaEntry._ID));
+                Page nextPage = mPages.get(pageIndex + 1);
+                if (nextPage.afterId != lastId || !lastName.equals(nextPage.afterName)) {
+                    nextPage.afterName = lastName;
+                    nextPage.afterId = lastId;
+                    getLoaderManager().restartLoader(TEA_LOADER + pageIndex + 1,
+                            pageArgs(nextPage), this);
+                }
+            }
+        }
+
+        // The loaded rows include every sale of their teas written so far
+        int idColumnIndex = data.getColumnIndex(TeaEntry._ID);
+        for (data.moveToFirst(); !data.isAfterLast(); data.moveToNext()) {
+            mSaleQueue.releaseWrittenUnits(data.getLong(idColumnIndex));
+        }
+
+        // Update {@link TeaAdapter} with the pages containing updated tea data
+        showPages();
+        if (stale != null) {
+            stale.close();
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == STATS_LOADER) {
+            mStatsTextView.setText("");
+            return;
+        }
+
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        int pageIndex = loader.getId() - TEA_LOADER;
+        Cursor stale = null;
+        if (pageIndex < mPages.size() && mPages.get(pageIndex).loader == loader) {
+            mPages.get(pageIndex).cursor = null;
+            stale = mPages.get(pageIndex).takePatchedCursor();
+        }
+        showPages();
+        if (stale != null) {
+            stale.close();
+        }
+    }
+
+    /**
+     * Show the inventory statistics: the totals over all teas, and the number of teas of
+     * each type.
+     */
+    private void showStats(Cursor stats) {
+        int[] teasPerType = new int[3];
+        int teaCount = 0;
+        long totalUnits = 0;
+        double stockValue = 0;
+
+        int typeColumnIndex = stats.getColumnIndex(StatsEntry.COLUMN_TEA_TYPE);
+        int countColumnIndex = stats.getColumnIndex(StatsEntry.COLUMN_TEA_COUNT);
+        int unitsColumnIndex = stats.getColumnIndex(StatsEntry.COLUMN_TOTAL_UNITS);
+        int valueColumnIndex = stats.getColumnIndex(StatsEntry.COLUMN_STOCK_VALUE);
+        for (stats.moveToFirst(); !stats.isAfterLast(); stats.moveToNext()) {
+            int type = stats.getInt(typeColumnIndex);
+            int count = stats.getInt(countColumnIndex);
+            if (TeaEntry.isValidType(type)) {
+                teasPerType[type] = count;
+            }
+            teaCount += count;
+            totalUnits += stats.getLong(unitsColumnIndex);
+            stockValue += stats.getDouble(valueColumnIndex);
+        }
+
+        mStatsTextView.setText(getString(R.string.catalog_stats, teaCount,
+                teasPerType[TeaEntry.TYPE_BLACK],
+                teasPerType[TeaEntry.TYPE_GREEN],
+                teasPerType[TeaEntry.TYPE_HERBAL],
+                totalUnits, stockValue));
     }
 }
@@ -0,0 +1,127 @@
+package com.example.android.teainventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.teainventory.data.TeaContract;
+
+import java.util.List;
+
+/**
+ * {@link CatalogChangeObserver} watches the teas on behalf of the catalog. When a single tea
+ * changes, only that tea is fetched, so the catalog can update its row in place. Any other
+ * change asks the catalog to reload.
+ *
+ * Changes are handled on the thread of the {@link Handler} passed in, and the results are
+ * delivered to the {@link Callback} on the main thread.
+ */
+public class CatalogChangeObserver extends ContentObserver {
+
+    /**
+     * Receives the changes seen by a {@link CatalogChangeObserver}, on the main thread.
+     */
+    public interface Callback {
+
+        /**
+         * A single tea changed, and these are its current values.
+         */
+        void onTeaChanged(long teaId, ContentValues values);
+
+        /**
+         * The teas changed in a way that needs the whole catalog to be reloaded.
+         */
+        void onReloadRequired();
+    }
+
+    private final ContentResolver mResolver;
+    private final String[] mProjection;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Constructs a new {@link CatalogChangeObserver}.
+     *
+     * @param handler    on whose thread changes are handled and single teas are fetched
+     * @param resolver   used to fetch changed teas
+     * @param projection columns to fetch for a changed tea
+     * @param callback   that receives the changes on the main thread
+     */
+    public CatalogChangeObserver(Handler handler, ContentResolver resolver, String[] projection,
+                                 Callback callback) {
+        super(handler);
+        mResolver = resolver;
+        mProjection = projection;
+        mCallback = callback;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        // Before Jelly Bean the changed URI isn't known, so the only option is a reload
+        onChange(selfChange, null);
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        final long teaId = teaIdOf(uri);
+        if (teaId == -1) {
+            postReloadRequired();
+            return;
+        }
+
+        // Fetch just the tea that changed
+        Cursor cursor = mResolver.query(uri, mProjection, null, null, null);
+        final ContentValues values = new ContentValues();
+        try {
+            if (cursor == null || !cursor.moveToFirst()) {
+                // The tea is gone, so rows have to be removed from the catalog
+                postReloadRequired();
+                return;
+            }
+            DatabaseUtils.cursorRowToContentValues(cursor, values);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onTeaChanged(teaId, values);
+            }
+        });
+    }
+
+    private void postReloadRequired() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onReloadRequired();
+            }
+        });
+    }
+
+    /**
+     * Returns the id of the tea a single tea content URI points at, or -1 for any other URI.
+     */
+    private static long teaIdOf(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !TeaContract.PATH_TEA.equals(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -9,23 +9,20 @@ import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.provider.MediaStore;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -36,16 +33,16 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.teainventory.data.TeaContract.TeaEntry;
-
-import java.io.FileDescriptor;
-import java.io.IOError;
-import java.io.IOException;
+import com.example.android.teainventory.image.BitmapLoadTask;
+import com.example.android.teainventory.image.ImageCache;
+import com.example.android.teainventory.image.ImageImportTask;
+import com.example.android.teainventory.image.ImageStore;
 
 /**
  * Allows user to create a new tea or edit an existing one.
  */
 public class EditorActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, ImageImportTask.Callback {
 
     private static final String LOG_TAG = EditorActivity.class.getSimpleName();
 
@@ -84,10 +81,45 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private EditText mQuantityEditText;
 
+    /**
+     * EditText field to enter the stock level below which the tea needs reordering
+     */
+    private EditText mReorderLevelEditText;
+
+    /**
+     * EditText field to enter the SKU of the tea
+     */
+    private EditText mSkuEditText;
+
     private TextView mImageTextView;
 
+    /** Background decode of the image shown in {@link #mImageView}, null if none is running */
+    private BitmapLoadTask mImageLoadTask;
+
+    /** URI of the image shown or loading in {@link #mImageView}, null if there is none */
+    private Uri mShownImageUri;
+
+    /** Import of the image the user picked, null if none is running */
+    private ImageImportTask mImageImportTask;
+
+    /** Image imported for this tea that hasn't been saved yet, null if there is none */
+    private Uri mUnsavedImageUri;
+
+    /** Image stored for the tea when it was loaded, null if it has none */
+    private String mLoadedImageUri;
+
     private String imageUri;
 
+    /**
+     * Image state carried over to the activity recreated for a change of configuration, so a
+     * picked image is neither lost nor imported twice.
+     */
+    private static class RetainedImage {
+        ImageImportTask importTask;
+        Uri unsavedImageUri;
+        String imageUri;
+    }
+
     private Button mIncrement;
 
     private Button mDecrement;
@@ -156,6 +188,8 @@ public class EditorActivity extends AppCompatActivity implements
         mTypeSpinner = (Spinner) findViewById(R.id.spinner_type);
         mPriceEditText = (EditText) findViewById(R.id.edit_tea_price);
         mQuantityEditText = (EditText) findViewById(R.id.edit_tea_quantity);
+        mReorderLevelEditText = (EditText) findViewById(R.id.edit_tea_reorder_level);
+        mSkuEditText = (EditText) findViewById(R.id.edit_tea_sku);
         mDecrement = (Button) findViewById(R.id.button_decrement);
         mIncrement = (Button) findViewById(R.id.button_increment);
         mOrder = (Button) findViewById(R.id.button_order);
@@ -180,6 +214,8 @@ public class EditorActivity extends AppCompatActivity implements
         mTypeSpinner.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
+        mReorderLevelEditText.setOnTouchListener(mTouchListener);
+        mSkuEditText.setOnTouchListener(mTouchListener);
 
         mIncrement.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -256,6 +292,30 @@ public class EditorActivity extends AppCompatActivity implements
 
 
         setupSpinner();
+
+        // Pick up the image picked before the activity was recreated
+        Object retained = getLastCustomNonConfigurationInstance();
+        if (retained instanceof RetainedImage) {
+            RetainedImage image = (RetainedImage) retained;
+            mUnsavedImageUri = image.unsavedImageUri;
+            imageUri = image.imageUri;
+            mImageImportTask = image.importTask;
+            if (mImageImportTask != null) {
+                loadImage(mImageImportTask.getSource());
+                mImageImportTask.setCallback(this);
+            } else if (imageUri != null) {
+                loadImage(Uri.parse(imageUri));
+            }
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        RetainedImage image = new RetainedImage();
+        image.importTask = mImageImportTask;
+        image.unsavedImageUri = mUnsavedImageUri;
+        image.imageUri = imageUri;
+        return image;
     }
 
     /**
@@ -306,6 +366,8 @@ public class EditorActivity extends AppCompatActivity implements
         String nameString = mNameEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
+        String reorderLevelString = mReorderLevelEditText.getText().toString().trim();
+        String skuString = mSkuEditText.getText().toString().trim();
 
         // Check if this is supposed to be a new tea
         // and check if all the fields in the editor are blank
@@ -327,6 +389,18 @@ public class EditorActivity extends AppCompatActivity implements
         values.put(TeaEntry.COLUMN_TEA_PRICE, priceString);
         values.put(TeaEntry.COLUMN_TEA_QUANTITY, quantityString);
         values.put(TeaEntry.COLUMN_TEA_IMAGE, imageUri);
+        // An empty reorder level means the tea uses the default threshold
+        if (TextUtils.isEmpty(reorderLevelString)) {
+            values.putNull(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+        } else {
+            values.put(TeaEntry.COLUMN_TEA_REORDER_LEVEL, reorderLevelString);
+        }
+        // An empty SKU means the tea has no barcode
+        if (TextUtils.isEmpty(skuString)) {
+            values.putNull(TeaEntry.COLUMN_TEA_SKU);
+        } else {
+            values.put(TeaEntry.COLUMN_TEA_SKU, skuString);
+        }
 
         // Determine if this is a new or existing tea by checking if mCurrentTeaUri is null or not
         if (mCurrentTeaUri == null) {
@@ -343,6 +417,7 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the insertion was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_insert_tea_successful),
                         Toast.LENGTH_SHORT).show();
+                onImageSaved();
             }
         } else {
             // Otherwise this is an EXISTING tea, so update the tea with content URI: mCurrentTeaUri
@@ -360,6 +435,7 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the update was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_update_tea_successful),
                         Toast.LENGTH_SHORT).show();
+                onImageSaved();
             }
         }
     }
@@ -384,6 +460,8 @@ public class EditorActivity extends AppCompatActivity implements
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
         }
+        // The tea can't be saved until the picked image has been imported
+        menu.findItem(R.id.action_save).setEnabled(mImageImportTask == null);
         return true;
     }
 
@@ -467,7 +545,9 @@ public class EditorActivity extends AppCompatActivity implements
                 TeaEntry.COLUMN_TEA_TYPE,
                 TeaEntry.COLUMN_TEA_PRICE,
                 TeaEntry.COLUMN_TEA_QUANTITY,
-                TeaEntry.COLUMN_TEA_IMAGE};
+                TeaEntry.COLUMN_TEA_IMAGE,
+                TeaEntry.COLUMN_TEA_REORDER_LEVEL,
+                TeaEntry.COLUMN_TEA_SKU};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -494,19 +574,21 @@ public class EditorActivity extends AppCompatActivity implements
             int priceColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_QUANTITY);
             int imageColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_IMAGE);
+            int reorderLevelColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+            int skuColumnIndex = cursor.getColumnIndex(TeaEntry.COLUMN_TEA_SKU);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
             int type = cursor.getInt(typeColumnIndex);
             float price = cursor.getFloat(priceColumnIndex);
             quantity = cursor.getInt(quantityColumnIndex);
-            try {
-                String picture = cursor.getString(imageColumnIndex);
-                Uri imageUri = Uri.parse(picture);
-                mImageView.setImageBitmap(getBitmapFromUri(imageUri));
-
-            } catch (NullPointerException e) {
-
+            // Keep showing an image the user has picked since
+            mLoadedImageUri = cursor.getString(imageColumnIndex);
+            if (mImageImportTask == null && mUnsavedImageUri == null) {
+                imageUri = mLoadedImageUri;
+                if (mLoadedImageUri != null) {
+                    loadImage(Uri.parse(mLoadedImageUri));
+                }
             }
 
             mQuantityEditText.setText(String.valueOf(quantity));
@@ -515,6 +597,10 @@ public class EditorActivity extends AppCompatActivity implements
             mNameEditText.setText(name);
             mPriceEditText.setText(Float.toString(price));
             mQuantityEditText.setText(Integer.toString(quantity));
+            mReorderLevelEditText.setText(cursor.isNull(reorderLevelColumnIndex)
+                    ? "" : Integer.toString(cursor.getInt(reorderLevelColumnIndex)));
+            mSkuEditText.setText(cursor.isNull(skuColumnIndex)
+                    ? "" : cursor.getString(skuColumnIndex));
 
 
             // Type is a dropdown spinner, so map the constant value from the database
@@ -540,7 +626,10 @@ public class EditorActivity extends AppCompatActivity implements
         mNameEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("");
+        mReorderLevelEditText.setText("");
+        mSkuEditText.setText("");
         mTypeSpinner.setSelection(0);
+        cancelImageLoad();
         mImageView.setImageBitmap(null);
     }
 
@@ -622,6 +711,9 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the delete was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_delete_tea_successful),
                         Toast.LENGTH_SHORT).show();
+                if (mLoadedImageUri != null) {
+                    ImageStore.delete(Uri.parse(mLoadedImageUri));
+                }
             }
         }
 
@@ -663,44 +755,112 @@ public class EditorActivity extends AppCompatActivity implements
         // provided to this method as a parameter.  Pull that uri using "resultData.getData()"
         if (requestCode == PICK_IMAGE_REQUEST && resultCode == RESULT_OK && resultData != null && resultData.getData() != null) {
             Uri uri = resultData.getData();
-            imageUri = uri.toString();
 
-            try {
-                Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), uri);
-                // Log.d(TAG, String.valueOf(bitmap));
+            // Show the picked image straight away, while a copy is imported into app storage
+            loadImage(uri);
+            mImageView.setVisibility(View.VISIBLE);
+            cancelImageImport();
+            mImageImportTask = ImageImportTask.start(this, uri, this);
+            invalidateOptionsMenu();
+        }
+    }
+
+    @Override
+    public void onImageImported(Uri image) {
+        mImageImportTask = null;
+        invalidateOptionsMenu();
+        if (image == null) {
+            Toast.makeText(this, getString(R.string.editor_image_import_failed),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-                ImageView productPicture = (ImageView) findViewById(R.id.image);
-                productPicture.setImageBitmap(bitmap);
-                productPicture.setVisibility(View.VISIBLE);
+        // The new image replaces any other one picked since the tea was loaded
+        discardUnsavedImage();
+        mUnsavedImageUri = image;
+        imageUri = image.toString();
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * The tea has been saved with {@link #imageUri}. Delete the image it had before, if that
+     * was imported and has been replaced.
+     */
+    private void onImageSaved() {
+        if (mLoadedImageUri != null && !mLoadedImageUri.equals(imageUri)) {
+            ImageStore.delete(Uri.parse(mLoadedImageUri));
         }
+        mLoadedImageUri = imageUri;
+        mUnsavedImageUri = null;
     }
 
-    public Bitmap getBitmapFromUri(Uri uri) {
-        ParcelFileDescriptor parcelFileDescriptor = null;
-        try {
-            parcelFileDescriptor =
-                    getContentResolver().openFileDescriptor(uri, "r");
-            FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-            Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-            parcelFileDescriptor.close();
-            return image;
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Failed to load image.", e);
-            return null;
-        } finally {
-            try {
-                if (parcelFileDescriptor != null) {
-                    parcelFileDescriptor.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(LOG_TAG, "Error closing ParcelFile Descriptor");
-            }
+    /**
+     * Stop importing the picked image, if that is still running.
+     */
+    private void cancelImageImport() {
+        if (mImageImportTask != null) {
+            mImageImportTask.cancel(false);
+            mImageImportTask = null;
+        }
+    }
+
+    /**
+     * Delete the image imported for this tea, if it was never saved.
+     */
+    private void discardUnsavedImage() {
+        if (mUnsavedImageUri != null) {
+            ImageStore.delete(mUnsavedImageUri);
+            mUnsavedImageUri = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        cancelImageLoad();
+        if (isFinishing()) {
+            cancelImageImport();
+            discardUnsavedImage();
+        } else if (mImageImportTask != null) {
+            // The recreated activity takes the import over
+            mImageImportTask.setCallback(null);
+        }
+    }
+
+    /**
+     * Show the image at the given URI, sized for the image view. Unless it is already in memory,
+     * it is loaded through the image cache on a background thread. An image that is still
+     * loading is cancelled.
+     */
+    private void loadImage(Uri uri) {
+        // The tea is reloaded on every change, don't decode the same image again
+        if (uri.equals(mShownImageUri)) {
+            return;
+        }
+        cancelImageLoad();
+        mShownImageUri = uri;
+        ViewGroup.LayoutParams params = mImageView.getLayoutParams();
+
+        // An image opened a moment ago is still decoded in memory
+        ImageCache cache = ImageCache.get(this);
+        Bitmap cached = cache.getFromMemory(uri, params.width, params.height);
+        if (cached != null) {
+            mImageView.setImageBitmap(cached);
+            return;
+        }
+        mImageLoadTask = new BitmapLoadTask(cache, getContentResolver(), uri, mImageView,
+                params.width, params.height);
+        mImageLoadTask.execute();
+    }
+
+    /**
+     * Cancel the image that is loading, if any, so it is never shown.
+     */
+    private void cancelImageLoad() {
+        if (mImageLoadTask != null) {
+            mImageLoadTask.cancel(false);
+            mImageLoadTask = null;
         }
+        mShownImageUri = null;
     }
 
 }
\ No newline at end of file
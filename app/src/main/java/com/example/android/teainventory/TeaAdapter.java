@@ -0,0 +1,288 @@
+package com.example.android.teainventory;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.teainventory.image.ThumbnailLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link TeaAdapter} is an adapter for a {@link RecyclerView} that shows the teas
+ * copied out of the catalog's cursors as {@link TeaRow}s. This adapter knows how to create
+ * list items for each row of tea data, including a thumbnail of the tea's image loaded by a
+ * {@link ThumbnailLoader}.
+ *
+ * New rows are compared with the shown ones on a background thread, by tea id and contents,
+ * so only the rows that were inserted, removed, moved or changed are bound again.
+ */
+public class TeaAdapter extends RecyclerView.Adapter<TeaAdapter.ViewHolder> {
+
+    /** Receives clicks on the list items */
+    public interface OnTeaClickListener {
+        /**
+         * Called when the list item of the tea with the given id is clicked.
+         */
+        void onTeaClick(long teaId);
+
+        /**
+         * Called when the sale button of the given tea's list item is clicked.
+         */
+        void onSaleClick(TeaRow row);
+    }
+
+    private final Context mContext;
+    private final ThumbnailLoader mThumbnailLoader;
+    private final OnTeaClickListener mClickListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The rows shown */
+    private List<TeaRow> mRows = Collections.emptyList();
+
+    /** Rows being compared with the shown ones, null if there are none */
+    private List<TeaRow> mComparedRows;
+
+    /** Incremented for every new list of rows, so only the latest comparison is applied */
+    private int mGeneration;
+
+    /**
+     * Holds the views of one list item, and the thumbnail requested for it.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameTextView;
+        final TextView summaryTextView;
+        final TextView quantityTextView;
+        final ImageView thumbnailView;
+        final Button saleButton;
+
+        /** Thumbnail shown or loading in {@link #thumbnailView}, null if the tea has no image */
+        ThumbnailLoader.Request thumbnailRequest;
+
+        ViewHolder(View view) {
+            super(view);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            summaryTextView = (TextView) view.findViewById(R.id.summary);
+            quantityTextView = (TextView) view.findViewById(R.id.quantity);
+            thumbnailView = (ImageView) view.findViewById(R.id.thumbnail);
+            saleButton = (Button) view.findViewById(R.id.button_sale);
+            view.setOnClickListener(this);
+            saleButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                // The row is on its way out of the list
+                return;
+            }
+            TeaRow row = mRows.get(position);
+            if (view == saleButton) {
+                mClickListener.onSaleClick(row);
+            } else {
+                mClickListener.onTeaClick(row.id);
+            }
+        }
+
+        /** Stop loading or showing the thumbnail, so its bitmap can be reused */
+        void clearThumbnail() {
+            if (thumbnailRequest != null) {
+                thumbnailRequest.cancel();
+                thumbnailRequest = null;
+            }
+        }
+    }
+
+    /**
+     * Constructs a new {@link TeaAdapter}.
+     *
+     * @param context         The context
+     * @param thumbnailLoader Loader for the thumbnails of the teas' images
+     * @param clickListener   Listener for clicks on the list items
+     */
+    public TeaAdapter(Context context, ThumbnailLoader thumbnailLoader,
+                            OnTeaClickListener clickListener) {
+        mContext = context;
+        mThumbnailLoader = thumbnailLoader;
+        mClickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the given rows. Unless the list is empty before or after, the rows are compared
+     * with the shown ones on a background thread first, and only the differences are applied.
+     * Rows replaced again before their comparison finished are never shown.
+     */
+    public void setRows(final List<TeaRow> rows) {
+        final int generation = ++mGeneration;
+        final List<TeaRow> oldRows = mRows;
+        if (oldRows.isEmpty() || rows.isEmpty()) {
+            mRows = rows;
+            mComparedRows = null;
+            notifyDataSetChanged();
+            return;
+        }
+
+        mComparedRows = rows;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new RowDiff(oldRows, rows));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            // Newer rows arrived in the meantime, and are compared on their own
+                            return;
+                        }
+                        mRows = rows;
+                        mComparedRows = null;
+                        diff.dispatchUpdatesTo(TeaAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the given row in place of the shown row of the same tea, binding only that row
+     * again. Does nothing if the tea isn't shown.
+     */
+    public void updateRow(TeaRow row) {
+        if (mComparedRows != null) {
+            // The shown rows are being compared with newer ones, which have to include the row
+            List<TeaRow> rows = new ArrayList<TeaRow>(mComparedRows);
+            int position = indexOf(rows, row.id);
+            if (position != -1) {
+                rows.set(position, row);
+                setRows(rows);
+            }
+            return;
+        }
+
+        int position = indexOf(mRows, row.id);
+        if (position != -1) {
+            mRows.set(position, row);
+            notifyItemChanged(position);
+        }
+    }
+
+    private static int indexOf(List<TeaRow> rows, long teaId) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).id == teaId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.get(position).id;
+    }
+
+    /**
+     * Makes a new blank list item view. No data is set (or bound) to the views yet.
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate a list item view using the layout specified in list_item.xml
+        return new ViewHolder(LayoutInflater.from(mContext)
+                .inflate(R.layout.list_item, parent, false));
+    }
+
+    /**
+     * This method binds the tea data at the given position to the given list item. Everything
+     * shown was worked out when the row was copied, so binding only sets it on the views.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        TeaRow row = mRows.get(position);
+
+        // Update the TextViews with the attributes for the current tea
+        holder.nameTextView.setText(row.name);
+        holder.summaryTextView.setText(row.priceText);
+        holder.quantityTextView.setText(row.quantityText);
+
+        // Show the thumbnail, unless the holder already shows this tea's image
+        if (row.image == null) {
+            holder.clearThumbnail();
+        } else if (holder.thumbnailRequest == null || !holder.thumbnailRequest.isFor(row.image)) {
+            holder.clearThumbnail();
+            holder.thumbnailRequest = mThumbnailLoader.load(row.image, holder.thumbnailView);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // The holder is going to show another tea, stop decoding this one's thumbnail
+        holder.clearThumbnail();
+    }
+
+    /**
+     * Start decoding the thumbnails of the teas at the given positions, ahead of them
+     * scrolling into view. Positions outside the list are ignored.
+     */
+    public void prefetchThumbnails(int fromPosition, int toPosition) {
+        int from = Math.max(fromPosition, 0);
+        int to = Math.min(toPosition, mRows.size() - 1);
+        for (int position = from; position <= to; position++) {
+            TeaRow row = mRows.get(position);
+            if (row.image != null) {
+                mThumbnailLoader.prefetch(row.image);
+            }
+        }
+    }
+
+    /**
+     * Compares two lists of rows: rows are the same item if they are for the same tea, and
+     * only need binding again if what they show changed.
+     */
+    private static class RowDiff extends DiffUtil.Callback {
+        private final List<TeaRow> mOldRows;
+        private final List<TeaRow> mNewRows;
+
+        RowDiff(List<TeaRow> oldRows, List<TeaRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).id == mNewRows.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).hasSameContents(mNewRows.get(newItemPosition));
+        }
+    }
+}
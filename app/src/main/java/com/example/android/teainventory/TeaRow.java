@@ -0,0 +1,99 @@
+package com.example.android.teainventory;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.teainventory.data.SaleQueue;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TeaRow} is an immutable copy of one row of the catalog, with its text ready to show.
+ * The catalog copies each page of teas out of its cursor once, so the rows can be compared on
+ * a background thread and bound without touching the cursor again.
+ */
+public final class TeaRow {
+
+    /** Id of the tea */
+    public final long id;
+
+    /** Name of the tea */
+    public final String name;
+
+    /** Price of the tea, as stored */
+    public final String price;
+
+    /** Quantity of the tea in stock, less the units sold but not shown as written yet */
+    public final int quantity;
+
+    /** Quantity of the tea in stock as read from the database */
+    final int stock;
+
+    /** Image of the tea, or null if it has none */
+    public final Uri image;
+
+    /** Text shown for the price */
+    final String priceText;
+
+    /** Text shown for the quantity */
+    final String quantityText;
+
+    TeaRow(long id, String name, String price, int stock, int pendingUnits, Uri image) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.stock = stock;
+        this.quantity = stock - pendingUnits;
+        this.image = image;
+        priceText = "Price: " + price + " GBP";
+        quantityText = "Currently in stock: " + quantity;
+    }
+
+    /**
+     * Copy every row of the given cursor, which must hold the catalog's columns, taking the
+     * units still queued in the given {@link SaleQueue} off the stock. The cursor is left after
+     * its last row.
+     */
+    public static List<TeaRow> readAll(Cursor cursor, SaleQueue saleQueue) {
+        // Look the columns up once for the whole cursor, not once per row
+        int idColumnIndex = cursor.getColumnIndexOrThrow(TeaEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(TeaEntry.COLUMN_TEA_NAME);
+        int priceColumnIndex = cursor.getColumnIndexOrThrow(TeaEntry.COLUMN_TEA_PRICE);
+        int quantityColumnIndex = cursor.getColumnIndexOrThrow(TeaEntry.COLUMN_TEA_QUANTITY);
+        int imageColumnIndex = cursor.getColumnIndexOrThrow(TeaEntry.COLUMN_TEA_IMAGE);
+
+        List<TeaRow> rows = new ArrayList<TeaRow>(cursor.getCount());
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            long id = cursor.getLong(idColumnIndex);
+            String image = cursor.getString(imageColumnIndex);
+            rows.add(new TeaRow(
+                    id,
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(priceColumnIndex),
+                    cursor.getInt(quantityColumnIndex),
+                    saleQueue.getPendingUnits(id),
+                    TextUtils.isEmpty(image) ? null : Uri.parse(image)));
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a copy of this row with the given number of units taken off its stock instead.
+     */
+    public TeaRow withPendingUnits(int pendingUnits) {
+        return new TeaRow(id, name, price, stock, pendingUnits, image);
+    }
+
+    /**
+     * Returns whether this row shows the same as the given row of the same tea.
+     */
+    public boolean hasSameContents(TeaRow other) {
+        return TextUtils.equals(name, other.name)
+                && TextUtils.equals(price, other.price)
+                && quantity == other.quantity
+                && (image == null ? other.image == null : image.equals(other.image));
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.android.teainventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Bounded cache of small query results for {@link TeaProvider}. Results are copied into memory
+ * and served as {@link MatrixCursor}s, evicting the least recently used once the cache is over
+ * its byte budget.
+ *
+ * Every result is either about a single tea, or about the teas table as a whole (lists,
+ * searches and statistics). A change to one tea only drops the results about that tea and the
+ * table-wide ones. A result read while a change was being made is not cached, see
+ * {@link #generation}.
+ *
+ * The cache is thread safe.
+ */
+class QueryCache {
+
+    /** Scope of results that depend on the whole teas table */
+    static final long SCOPE_ALL_TEAS = -1;
+
+    /** Results with more rows than this are not cached */
+    private static final int MAX_ROWS = 200;
+
+    /** Byte budget of the cache */
+    private static final int MAX_BYTES = 512 * 1024;
+
+    /** Rough overhead of an entry, a row and a cell, in bytes */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int ROW_OVERHEAD = 16;
+    private static final int CELL_OVERHEAD = 16;
+
+    /**
+     * A cached result: its columns, its rows, what it is about and how much memory it uses.
+     */
+    private static class Entry {
+        final String[] columnNames;
+        final List<Object[]> rows;
+        final long scope;
+        final int bytes;
+
+        Entry(String[] columnNames, List<Object[]> rows, long scope, int bytes) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.scope = scope;
+            this.bytes = bytes;
+        }
+
+        /** Returns a new cursor over this result */
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columnNames, rows.size());
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    /** Cached results in access order, least recently used first */
+    private final LinkedHashMap<List<String>, Entry> mEntries =
+            new LinkedHashMap<List<String>, Entry>(16, 0.75f, true);
+
+    private boolean mEnabled = true;
+    private int mBytes;
+    private int mHits;
+    private int mMisses;
+
+    /** Incremented on every invalidation */
+    private long mGeneration;
+
+    /**
+     * Returns the cache key for a query. The URI is normalized first: its query parameters are
+     * sorted, and the notify parameter, which doesn't change the result, is left out.
+     */
+    static List<String> key(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+        List<String> key = new ArrayList<String>();
+        key.add(uri.getPath());
+        for (String name : new TreeSet<String>(uri.getQueryParameterNames())) {
+            if (!TeaContract.TeaEntry.QUERY_PARAMETER_NOTIFY.equals(name)) {
+                key.add(name);
+                key.addAll(uri.getQueryParameters(name));
+            }
+        }
+        // Counts keep values from running into the next part of the key
+        addAll(key, projection);
+        key.add(selection);
+        addAll(key, selectionArgs);
+        key.add(sortOrder);
+        return key;
+    }
+
+    private static void addAll(List<String> key, String[] values) {
+        if (values == null) {
+            key.add(null);
+            return;
+        }
+        key.add(String.valueOf(values.length));
+        for (String value : values) {
+            key.add(value);
+        }
+    }
+
+    /**
+     * Returns a cursor over the cached result for the given key, or null if there is none.
+     */
+    synchronized Cursor get(List<String> key) {
+        Entry entry = mEnabled ? mEntries.get(key) : null;
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.newCursor();
+    }
+
+    /**
+     * Returns the current generation. Take it before querying the database and pass it to
+     * {@link #put}, so a result that may have been read before a change isn't cached after it.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache the result in the given cursor, if it is small enough and nothing was invalidated
+     * since the given generation. Returns the cursor to hand out instead: a copy of the result
+     * if it was copied, in which case the given cursor is closed, or the given cursor itself.
+     */
+    Cursor put(List<String> key, long scope, long generation, Cursor cursor) {
+        if (!isEnabled() || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+
+        // Copy the result outside the lock, it's the expensive part
+        String[] columnNames = cursor.getColumnNames();
+        List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        int bytes = ENTRY_OVERHEAD;
+        for (String part : key) {
+            bytes += part == null ? 0 : 2 * part.length();
+        }
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                Object[] row = new Object[columnNames.length];
+                bytes += ROW_OVERHEAD;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = valueOf(cursor, i);
+                    bytes += sizeOf(row[i]);
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Entry entry = new Entry(columnNames, rows, scope, bytes);
+        synchronized (this) {
+            if (mEnabled && generation == mGeneration && bytes <= MAX_BYTES) {
+                Entry replaced = mEntries.put(key, entry);
+                if (replaced != null) {
+                    mBytes -= replaced.bytes;
+                }
+                mBytes += bytes;
+                trim();
+            }
+        }
+        return entry.newCursor();
+    }
+
+    /**
+     * Drop the results about the given tea and the results about the whole table.
+     */
+    synchronized void invalidate(long teaId) {
+        mGeneration++;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.scope == teaId || entry.scope == SCOPE_ALL_TEAS) {
+                mBytes -= entry.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop every result.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Turn the cache on or off. Turning it off drops every result, and queries go straight to
+     * the database until it is turned on again.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            invalidateAll();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Returns the number of queries answered from the cache */
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Returns the number of queries that went to the database */
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /** Returns the share of queries answered from the cache, between 0 and 1 */
+    synchronized float getHitRatio() {
+        int lookups = mHits + mMisses;
+        return lookups == 0 ? 0 : (float) mHits / lookups;
+    }
+
+    /** Returns the estimated number of bytes held by the cache */
+    synchronized int getByteCount() {
+        return mBytes;
+    }
+
+    /** Returns the number of cached results */
+    synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryCache[enabled=" + mEnabled + ", hits=" + mHits + ", misses=" + mMisses
+                + ", entries=" + mEntries.size() + ", bytes=" + mBytes + "]";
+    }
+
+    /**
+     * Evict the least recently used results until the cache is within its budget.
+     */
+    private void trim() {
+        Iterator<Map.Entry<List<String>, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > MAX_BYTES && iterator.hasNext()) {
+            mBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static Object valueOf(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof String) {
+            return CELL_OVERHEAD + 2 * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return CELL_OVERHEAD + ((byte[]) value).length;
+        }
+        return value == null ? 0 : CELL_OVERHEAD;
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.android.teainventory.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Write-behind queue of sales. A sale is queued straight away and written to the provider a
+ * little later on a background thread, with all the sales of the same tea made in the meantime
+ * merged into one decrement. Until then, the queued units can be taken off the stock shown
+ * with {@link #getPendingUnits}. Written units stay pending until the catalog shows a row of
+ * the tea read after the write and calls {@link #releaseWrittenUnits}, so the stock shown
+ * never goes back up in between.
+ *
+ * Queued sales are journalled to {@link SharedPreferences} as they are made, and the journal is
+ * replayed the next time the queue is created, so sales survive the process being killed
+ * before they were written. Each write gets a token, journalled before the write is made and
+ * recorded by the provider in the same transaction as the decrement, so a sale the process
+ * was killed in the middle of is replayed with its token and isn't made a second time.
+ */
+public class SaleQueue {
+
+    private static final String LOG_TAG = SaleQueue.class.getSimpleName();
+
+    /** Name of the preferences file holding the journal */
+    private static final String JOURNAL_NAME = "sale_queue";
+
+    /** How long after the first queued sale the queue is written out */
+    private static final long FLUSH_DELAY_MILLIS = 500;
+
+    /**
+     * Separates the tea id from the token in the journal keys of sales being written. The
+     * keys of queued sales are just the tea id.
+     */
+    private static final char TOKEN_SEPARATOR = '@';
+
+    private static SaleQueue sInstance;
+
+    /**
+     * Writes merged sales.
+     */
+    public interface Seller {
+        /**
+         * Sell as many of the given number of units of a tea as are still in stock, unless a
+         * sale with the given token was made already. Returns the number of units sold, by
+         * that sale if there was one, 0 if none could be.
+         */
+        int sell(long teaId, int units, String token);
+    }
+
+    /**
+     * Receives changes to the pending units, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The units pending for a tea changed other than through {@link #sell} or
+         * {@link #releaseWrittenUnits}, so the stock shown for it has to be worked out again.
+         */
+        void onPendingUnitsChanged(long teaId);
+
+        /**
+         * The given number of units of a tea, sold since the last write, could not be written
+         * because somebody else sold the stock first. The rest of the units sold since were
+         * written. The units that weren't are no longer pending.
+         */
+        void onSaleFailed(long teaId, int units);
+    }
+
+    private final SharedPreferences mJournal;
+    private final Seller mSeller;
+    private final long mFlushDelayMillis;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Units queued per tea and not yet being written, in the order the teas were sold */
+    private final Map<Long, Integer> mQueued = new LinkedHashMap<Long, Integer>();
+
+    /**
+     * Units of the sales that were being written when the process was killed, by journal key.
+     * They are written again without being pending, as they may be in the stock already.
+     */
+    private final Map<String, Integer> mReplayed = new LinkedHashMap<String, Integer>();
+
+    /** Units per tea that are being written right now */
+    private final Map<Long, Integer> mInFlight = new HashMap<Long, Integer>();
+
+    /** Units per tea that were written, but may not be in the stock shown yet */
+    private final Map<Long, Integer> mWritten = new HashMap<Long, Integer>();
+
+    /** Teas whose row was shown while units were being written, and may include them */
+    private final Set<Long> mShownInFlight = new HashSet<Long>();
+
+    /** Whether a flush has been scheduled for the queued units */
+    private boolean mFlushScheduled;
+
+    private Listener mListener;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushQueued();
+        }
+    };
+
+    /**
+     * Returns the queue shared by the whole app, which sells through the provider.
+     */
+    public static synchronized SaleQueue get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            final ContentResolver resolver = appContext.getContentResolver();
+            HandlerThread thread = new HandlerThread(LOG_TAG);
+            thread.start();
+            sInstance = new SaleQueue(
+                    appContext.getSharedPreferences(JOURNAL_NAME, Context.MODE_PRIVATE),
+                    new Seller() {
+                        @Override
+                        public int sell(long teaId, int units, String token) {
+                            return TeaContract.sellAvailable(resolver, teaId, units, token);
+                        }
+                    },
+                    thread.getLooper(), FLUSH_DELAY_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new instance of {@link SaleQueue}, and schedules writing any sales left in
+     * the journal.
+     *
+     * @param journal          preferences to journal the queued sales in
+     * @param seller           writes the merged sales
+     * @param looper           of the thread the sales are written on
+     * @param flushDelayMillis how long after the first queued sale the queue is written out
+     */
+    SaleQueue(SharedPreferences journal, Seller seller, Looper looper, long flushDelayMillis) {
+        mJournal = journal;
+        mSeller = seller;
+        mHandler = new Handler(looper);
+        mFlushDelayMillis = flushDelayMillis;
+
+        synchronized (this) {
+            for (Map.Entry<String, ?> entry : journal.getAll().entrySet()) {
+                if (!(entry.getValue() instanceof Integer)) {
+                    continue;
+                }
+                String key = entry.getKey();
+                if (key.indexOf(TOKEN_SEPARATOR) != -1) {
+                    mReplayed.put(key, (Integer) entry.getValue());
+                } else {
+                    mQueued.put(Long.valueOf(key), (Integer) entry.getValue());
+                }
+            }
+            if (!mQueued.isEmpty() || !mReplayed.isEmpty()) {
+                Log.i(LOG_TAG, "Replaying " + (mQueued.size() + mReplayed.size())
+                        + " journalled sales");
+                scheduleFlush(0);
+            }
+        }
+    }
+
+    /**
+     * Set the listener told about changes to the pending units, or null for none.
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue the sale of the given number of units of a tea.
+     */
+    public synchronized void sell(long teaId, int units) {
+        if (units <= 0) {
+            throw new IllegalArgumentException("Sale quantity must be more than 0");
+        }
+        int queued = get(mQueued, teaId) + units;
+        mQueued.put(teaId, queued);
+        journal(teaId);
+        scheduleFlush(mFlushDelayMillis);
+    }
+
+    /**
+     * Returns the number of units of a tea that were sold but aren't in the stock shown yet.
+     */
+    public synchronized int getPendingUnits(long teaId) {
+        return get(mQueued, teaId) + get(mInFlight, teaId) + get(mWritten, teaId);
+    }
+
+    /**
+     * Stop counting the written units of a tea as pending, because a row of the tea read after
+     * they were written is about to be shown. The row may already include units that are
+     * still being written too, so those are dropped as soon as they have been written.
+     */
+    public synchronized void releaseWrittenUnits(long teaId) {
+        mWritten.remove(teaId);
+        if (mInFlight.containsKey(teaId)) {
+            mShownInFlight.add(teaId);
+        }
+    }
+
+    /**
+     * Write the queued sales now rather than after the delay, for example because the app is
+     * going into the background. The sales are still written on the queue's thread.
+     */
+    public synchronized void flush() {
+        if (!mQueued.isEmpty()) {
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+            scheduleFlush(0);
+        }
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, delayMillis);
+        }
+    }
+
+    /**
+     * Write every queued sale, one decrement per tea. Runs on the queue's thread.
+     */
+    private void flushQueued() {
+        Map<String, Integer> replayed;
+        Map<Long, Integer> sales;
+        Map<Long, String> tokens = new HashMap<Long, String>();
+        synchronized (this) {
+            mFlushScheduled = false;
+            replayed = new LinkedHashMap<String, Integer>(mReplayed);
+            mReplayed.clear();
+            sales = new LinkedHashMap<Long, Integer>(mQueued);
+            mQueued.clear();
+            if (!sales.isEmpty()) {
+                // Move the sales to their keys with a token in one edit, committed rather than
+                // applied so the tokens are on disk before any of the sales can be
+                SharedPreferences.Editor editor = mJournal.edit();
+                for (Map.Entry<Long, Integer> sale : sales.entrySet()) {
+                    String token = UUID.randomUUID().toString();
+                    tokens.put(sale.getKey(), token);
+                    mInFlight.put(sale.getKey(), sale.getValue());
+                    editor.remove(String.valueOf(sale.getKey()));
+                    editor.putInt(inFlightKey(sale.getKey(), token), sale.getValue());
+                }
+                editor.commit();
+            }
+        }
+
+        for (Map.Entry<String, Integer> sale : replayed.entrySet()) {
+            String key = sale.getKey();
+            int separator = key.indexOf(TOKEN_SEPARATOR);
+            long teaId = Long.parseLong(key.substring(0, separator));
+            int units = sale.getValue();
+            int sold = write(teaId, units, key.substring(separator + 1));
+            synchronized (this) {
+                mJournal.edit().remove(key).apply();
+                if (sold < units) {
+                    notifyListener(teaId, units - sold);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Integer> sale : sales.entrySet()) {
+            long teaId = sale.getKey();
+            int units = sale.getValue();
+            String token = tokens.get(teaId);
+            int sold = write(teaId, units, token);
+            synchronized (this) {
+                mInFlight.remove(teaId);
+                mJournal.edit().remove(inFlightKey(teaId, token)).apply();
+                boolean shown = mShownInFlight.remove(teaId);
+                if (!shown && sold > 0) {
+                    // Keep taking the units off until the catalog shows the written stock
+                    mWritten.put(teaId, get(mWritten, teaId) + sold);
+                }
+                if (sold < units) {
+                    notifyListener(teaId, units - sold);
+                } else if (shown) {
+                    notifyListener(teaId, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write one merged sale with the given token. Sells what is left if someone else sold
+     * some of the stock first, rather than failing every merged unit. Returns the units sold.
+     */
+    private int write(long teaId, int units, String token) {
+        int sold = mSeller.sell(teaId, units, token);
+        if (sold < units) {
+            Log.w(LOG_TAG, "Could not sell " + (units - sold) + " of " + units
+                    + " units of tea " + teaId);
+        }
+        return sold;
+    }
+
+    /**
+     * Record the units of a tea queued and not being written yet in the journal. The write is
+     * applied in the background, and waited for by the framework before an activity stops.
+     */
+    private void journal(long teaId) {
+        String key = String.valueOf(teaId);
+        int queued = get(mQueued, teaId);
+        if (queued == 0) {
+            mJournal.edit().remove(key).apply();
+        } else {
+            mJournal.edit().putInt(key, queued).apply();
+        }
+    }
+
+    /**
+     * Tell the listener on the main thread that the pending units of a tea changed, or that
+     * the given number of units of it could not be sold if that is more than 0.
+     */
+    private void notifyListener(final long teaId, final int unitsNotSold) {
+        if (mListener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Only tell the listener that is current by the time this runs
+                Listener listener;
+                synchronized (SaleQueue.this) {
+                    listener = mListener;
+                }
+                if (listener == null) {
+                    return;
+                }
+                if (unitsNotSold > 0) {
+                    listener.onSaleFailed(teaId, unitsNotSold);
+                } else {
+                    listener.onPendingUnitsChanged(teaId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the journal key of the sale of a tea being written with the given token.
+     */
+    static String inFlightKey(long teaId, String token) {
+        return String.valueOf(teaId) + TOKEN_SEPARATOR + token;
+    }
+
+    private static int get(Map<Long, Integer> units, long teaId) {
+        Integer value = units.get(teaId);
+        return value == null ? 0 : value;
+    }
+}
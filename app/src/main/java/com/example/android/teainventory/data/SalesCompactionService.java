@@ -0,0 +1,53 @@
+package com.example.android.teainventory.data;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Compacts the sales ledger in the background, folding the entries older than
+ * {@link #HISTORY_MILLIS} into the snapshots of their teas. Runs about once a day, on an
+ * inexact alarm the system can line up with the wake-ups of other apps, and never wakes the
+ * device itself.
+ */
+public class SalesCompactionService extends IntentService {
+
+    private static final String LOG_TAG = SalesCompactionService.class.getSimpleName();
+
+    /** How long ledger entries are kept before they are folded into snapshots */
+    static final long HISTORY_MILLIS = 90 * AlarmManager.INTERVAL_DAY;
+
+    public SalesCompactionService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Schedule the daily compaction, unless it is scheduled already. The alarm doesn't
+     * survive a reboot, so this is called whenever the app starts.
+     */
+    public static void schedule(Context context) {
+        Context appContext = context.getApplicationContext();
+        Intent intent = new Intent(appContext, SalesCompactionService.class);
+        // Setting the alarm again would push the next compaction back
+        if (PendingIntent.getService(appContext, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent operation = PendingIntent.getService(appContext, 0, intent, 0);
+        AlarmManager alarmManager =
+                (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_DAY, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long before = System.currentTimeMillis() - HISTORY_MILLIS;
+        int folded = TeaContract.compactSales(getContentResolver(), before);
+        Log.i(LOG_TAG, "Folded " + folded + " sales ledger entries into snapshots");
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.android.teainventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+/**
+ * Writes to the sales ledger that its triggers on the teas table leave to the provider: the
+ * source the triggers record changes with, and the compaction of old entries into snapshots.
+ *
+ * Compaction keeps the ledger from growing without end. The entries recorded before a given
+ * time are added to the snapshot of their tea and deleted, oldest first, in chunks of
+ * {@link #COMPACT_CHUNK_SIZE} with a transaction each, so sales waiting for the write lock
+ * are held up by one chunk at most. A tea's stock level is its snapshot plus its entries
+ * before, during and after a compaction.
+ */
+final class SalesLedger {
+
+    /** Number of entries folded into the snapshots per transaction */
+    static final int COMPACT_CHUNK_SIZE = 1000;
+
+    private static final String SQL_SET_SOURCE = "UPDATE " + TeaDbHelper.TABLE_SALES_SOURCE
+            + " SET " + TeaDbHelper.COLUMN_SOURCE + " = ?, " + TeaDbHelper.COLUMN_TOKEN + " = ?";
+
+    /** Query for the change of stock recorded with the token ?1 */
+    private static final String SQL_QUERY_TOKEN_DELTA = "SELECT " + SalesEntry.COLUMN_DELTA
+            + " FROM " + SalesEntry.TABLE_NAME + " WHERE " + SalesEntry.COLUMN_TOKEN + " = ?";
+
+    /**
+     * Query for the oldest chunk of entries recorded before ?1, of up to ?2 entries. The order
+     * is that of {@link TeaDbHelper#INDEX_SALES_TIMESTAMP}, which ends in the id, so the chunk
+     * is read straight from the index and is the same chunk every time it is asked for.
+     */
+    private static final String SQL_OLDEST = "SELECT " + SalesEntry._ID + ", "
+            + SalesEntry.COLUMN_TEA_ID + ", "
+            + SalesEntry.COLUMN_DELTA + ", "
+            + SalesEntry.COLUMN_TIMESTAMP + " FROM " + SalesEntry.TABLE_NAME
+            + " WHERE " + SalesEntry.COLUMN_TIMESTAMP + " < ?1"
+            + " ORDER BY " + SalesEntry.COLUMN_TIMESTAMP + ", " + SalesEntry._ID + " LIMIT ?2";
+
+    /** Statement adding the entries of {@link #SQL_OLDEST} to the snapshots of their teas */
+    private static final String SQL_FOLD = "INSERT OR REPLACE INTO "
+            + SalesSnapshotEntry.TABLE_NAME + " ("
+            + SalesSnapshotEntry.COLUMN_TEA_ID + ", "
+            + SalesSnapshotEntry.COLUMN_QUANTITY + ", "
+            + SalesSnapshotEntry.COLUMN_TIMESTAMP + ")"
+            + " SELECT s." + SalesEntry.COLUMN_TEA_ID + ","
+            + " IFNULL(p." + SalesSnapshotEntry.COLUMN_QUANTITY + ", 0)"
+            + " + SUM(s." + SalesEntry.COLUMN_DELTA + "),"
+            + " MAX(IFNULL(p." + SalesSnapshotEntry.COLUMN_TIMESTAMP + ", 0),"
+            + " MAX(s." + SalesEntry.COLUMN_TIMESTAMP + "))"
+            + " FROM (" + SQL_OLDEST + ") s"
+            + " LEFT JOIN " + SalesSnapshotEntry.TABLE_NAME + " p"
+            + " ON p." + SalesSnapshotEntry.COLUMN_TEA_ID + " = s." + SalesEntry.COLUMN_TEA_ID
+            + " GROUP BY s." + SalesEntry.COLUMN_TEA_ID;
+
+    /** Statement deleting the entries of {@link #SQL_OLDEST} once they are folded */
+    private static final String SQL_DELETE_FOLDED = "DELETE FROM " + SalesEntry.TABLE_NAME
+            + " WHERE " + SalesEntry._ID + " IN (SELECT " + SalesEntry._ID
+            + " FROM (" + SQL_OLDEST + "))";
+
+    /**
+     * Selection of the snapshots of deleted teas whose entries have all been folded. Their
+     * stock was removed along with them, so the snapshots hold nothing.
+     */
+    private static final String SELECTION_EMPTY_SNAPSHOTS = SalesSnapshotEntry.COLUMN_QUANTITY
+            + " = 0 AND " + SalesSnapshotEntry.COLUMN_TEA_ID + " NOT IN (SELECT "
+            + TeaEntry._ID + " FROM " + TeaEntry.TABLE_NAME + ")";
+
+    private SalesLedger() {
+    }
+
+    /**
+     * Set the source, one of the {@link SalesEntry} SOURCE_* values, that the ledger records
+     * the changes of stock that follow with. Must be called in the transaction making the
+     * changes, or the changes of another thread could be recorded with it instead.
+     */
+    static void setSource(SQLiteDatabase database, String source) {
+        setSource(database, source, null);
+    }
+
+    /**
+     * Set the source and the token of a queued sale, or null for none, that the ledger
+     * records the changes of stock that follow with. Only one change can be recorded with a
+     * token. Must be called in the transaction making the changes.
+     */
+    static void setSource(SQLiteDatabase database, String source, String token) {
+        if (!database.inTransaction()) {
+            throw new IllegalStateException("The ledger source must be set in a transaction");
+        }
+        database.execSQL(SQL_SET_SOURCE, new Object[] { source, token });
+    }
+
+    /**
+     * Returns the change of stock recorded with the given token, or null if there is none
+     * because the sale with that token wasn't made yet, or was compacted since.
+     */
+    static Integer findTokenDelta(SQLiteDatabase database, String token) {
+        Cursor cursor = database.rawQuery(SQL_QUERY_TOKEN_DELTA, new String[] { token });
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fold every entry recorded before the given time, in milliseconds since the epoch, into
+     * the snapshot of its tea, and delete it. Returns the number of entries folded.
+     */
+    static int compact(SQLiteDatabase database, long before) {
+        int folded = 0;
+        SQLiteStatement fold = database.compileStatement(SQL_FOLD);
+        SQLiteStatement delete = database.compileStatement(SQL_DELETE_FOLDED);
+        try {
+            int count;
+            do {
+                database.beginTransaction();
+                try {
+                    fold.bindLong(1, before);
+                    fold.bindLong(2, COMPACT_CHUNK_SIZE);
+                    fold.execute();
+                    delete.bindLong(1, before);
+                    delete.bindLong(2, COMPACT_CHUNK_SIZE);
+                    count = delete.executeUpdateDelete();
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                folded += count;
+            } while (count == COMPACT_CHUNK_SIZE);
+
+            if (folded != 0) {
+                database.delete(SalesSnapshotEntry.TABLE_NAME, SELECTION_EMPTY_SNAPSHOTS, null);
+            }
+        } finally {
+            fold.close();
+            delete.close();
+        }
+        return folded;
+    }
+}
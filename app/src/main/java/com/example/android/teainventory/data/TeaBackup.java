@@ -0,0 +1,312 @@
+package com.example.android.teainventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up the tea database to a gzipped SQLite file, and restores it from one, while the app
+ * keeps using the database.
+ *
+ * A backup is taken on a connection of its own to a new snapshot database, with the current
+ * schema, that has the live database attached. The tables are copied by INSERT ... SELECT in
+ * one deferred transaction, so they are read from a single consistent state of the live
+ * database. Only a read lock is taken on it: in WAL mode, readers and writers carry on while
+ * the copy runs. The platform offers neither the SQLite backup API nor VACUUM INTO on older
+ * devices, which is why the snapshot is built this way.
+ *
+ * A restore replaces the rows of the live database with those of the backup in one write
+ * transaction on the provider's own connection, rather than swapping the database file. The
+ * helper's connections, and the cursors loaders hold on them, stay valid, and readers see the
+ * old teas until the transaction commits.
+ */
+final class TeaBackup {
+
+    /**
+     * Tables holding the inventory itself. The others, the search index and the statistics,
+     * are derived from these by triggers. The sales ledger comes after the teas, because
+     * writing the teas appends to it.
+     */
+    private static final String[] TABLES = {
+            TeaEntry.TABLE_NAME, SalesEntry.TABLE_NAME, SalesSnapshotEntry.TABLE_NAME };
+
+    /** Table SQLite keeps the last id handed out by each AUTOINCREMENT table in */
+    private static final String TABLE_SEQUENCE = "sqlite_sequence";
+
+    /** Flags of the connections to snapshots, which have no use for the platform's locale */
+    private static final int SNAPSHOT_FLAGS = SQLiteDatabase.OPEN_READWRITE
+            | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TeaBackup() {
+    }
+
+    /**
+     * Write a gzipped snapshot of the given live database to the given file, replacing it.
+     * Returns the number of teas backed up.
+     */
+    static int backup(File database, File target) throws IOException {
+        File snapshot = new File(database.getPath() + "-backup");
+        deleteDatabase(snapshot);
+        int teaCount;
+        try {
+            teaCount = copyToSnapshot(database, snapshot);
+            // Written next to the target first, so a failed backup never replaces a good one
+            File partial = new File(target.getPath() + ".partial");
+            compress(snapshot, partial);
+            if (!partial.renameTo(target)) {
+                partial.delete();
+                throw new IOException("Cannot write " + target);
+            }
+        } finally {
+            deleteDatabase(snapshot);
+        }
+        return teaCount;
+    }
+
+    private static int copyToSnapshot(File database, File snapshot) throws IOException {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(snapshot.getPath(), null, SNAPSHOT_FLAGS);
+        } catch (SQLiteException e) {
+            throw new IOException("Cannot create " + snapshot, e);
+        }
+        try {
+            db.beginTransaction();
+            try {
+                TeaDbHelper.createSchema(db);
+                db.setVersion(TeaDbHelper.DATABASE_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            db.execSQL("ATTACH DATABASE ? AS source", new Object[] { database.getPath() });
+            // A SAVEPOINT outside a transaction starts a deferred one. The platform's own
+            // transactions start with BEGIN EXCLUSIVE, which would take the write lock of the
+            // attached live database too. If anything fails, closing the connection rolls the
+            // copy back.
+            db.execSQL("SAVEPOINT backup");
+            for (String table : TABLES) {
+                // Emptied first, of what the triggers of the tables before wrote to it
+                db.execSQL("DELETE FROM main." + table);
+                db.execSQL("INSERT INTO main." + table + " SELECT * FROM source." + table);
+            }
+            db.execSQL("DELETE FROM main." + TABLE_SEQUENCE);
+            db.execSQL("INSERT INTO main." + TABLE_SEQUENCE
+                    + " SELECT * FROM source." + TABLE_SEQUENCE);
+            int teaCount = (int) DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM main." + TeaEntry.TABLE_NAME, null);
+            db.execSQL("RELEASE backup");
+            db.execSQL("DETACH DATABASE source");
+            return teaCount;
+        } catch (SQLiteException e) {
+            throw new IOException("Cannot copy " + database + " to " + snapshot, e);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Replace every row of the given live database with those of the gzipped backup in the
+     * given file, in one transaction. A backup taken by an older version of the app is
+     * upgraded first. Returns the number of teas restored.
+     *
+     * @throws IOException if the file can't be read or isn't a backup of the tea database
+     */
+    static int restore(File source, SQLiteDatabase database) throws IOException {
+        File restored = new File(database.getPath() + "-restore");
+        deleteDatabase(restored);
+        try {
+            decompress(source, restored);
+            SQLiteDatabase backup;
+            try {
+                backup = SQLiteDatabase.openDatabase(restored.getPath(), null, SNAPSHOT_FLAGS);
+            } catch (SQLiteException e) {
+                throw new IOException(source + " is not a database", e);
+            }
+            try {
+                prepare(backup, source);
+                return copyFromBackup(backup, database);
+            } catch (SQLiteException e) {
+                throw new IOException("Cannot restore " + source, e);
+            } finally {
+                backup.close();
+            }
+        } finally {
+            deleteDatabase(restored);
+        }
+    }
+
+    /**
+     * Check that the given backup is an intact tea database, and bring it up to the current
+     * schema.
+     */
+    private static void prepare(SQLiteDatabase backup, File source) throws IOException {
+        int version = backup.getVersion();
+        if (version < 1 || version > TeaDbHelper.DATABASE_VERSION) {
+            throw new IOException(source + " has unknown version " + version);
+        }
+        String check = DatabaseUtils.stringForQuery(backup, "PRAGMA quick_check", null);
+        if (!"ok".equals(check)) {
+            throw new IOException(source + " is damaged: " + check);
+        }
+        if (version < TeaDbHelper.DATABASE_VERSION) {
+            backup.beginTransaction();
+            try {
+                TeaDbHelper.upgrade(backup, version);
+                backup.setVersion(TeaDbHelper.DATABASE_VERSION);
+                backup.setTransactionSuccessful();
+            } finally {
+                backup.endTransaction();
+            }
+        }
+    }
+
+    private static int copyFromBackup(SQLiteDatabase backup, SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            for (String table : TABLES) {
+                database.delete(table, null, null);
+                copyRows(backup, database, table);
+
+                // Keep handing out ids from where the backup left off
+                database.delete(TABLE_SEQUENCE, "name = ?", new String[] { table });
+                Cursor cursor = backup.query(TABLE_SEQUENCE, new String[] { "seq" },
+                        "name = ?", new String[] { table }, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        database.execSQL("INSERT INTO " + TABLE_SEQUENCE + " (name, seq)"
+                                + " VALUES (?, ?)", new Object[] { table, cursor.getLong(0) });
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            // The triggers have applied every delete and insert to the totals, but summing
+            // the prices again avoids carrying the rounding of all those steps
+            TeaDbHelper.rebuildStats(database);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return (int) DatabaseUtils.queryNumEntries(database, TeaEntry.TABLE_NAME);
+    }
+
+    /**
+     * Insert every row of the given table of one database into the same table of another,
+     * through one compiled statement binding the values with their own types.
+     */
+    private static void copyRows(SQLiteDatabase from, SQLiteDatabase to, String table) {
+        Cursor cursor = from.query(table, null, null, null, null, null, null);
+        SQLiteStatement insert = null;
+        try {
+            String[] columns = cursor.getColumnNames();
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            insert = to.compileStatement(sql.append(")").toString());
+
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            insert.bindNull(i + 1);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            insert.bindLong(i + 1, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            insert.bindDouble(i + 1, cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            insert.bindBlob(i + 1, cursor.getBlob(i));
+                            break;
+                        default:
+                            insert.bindString(i + 1, cursor.getString(i));
+                            break;
+                    }
+                }
+                insert.executeInsert();
+            }
+        } finally {
+            cursor.close();
+            if (insert != null) {
+                insert.close();
+            }
+        }
+    }
+
+    private static void compress(File from, File to) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(from), BUFFER_SIZE);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void decompress(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            // Throws straight away if the file isn't gzipped
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(to), BUFFER_SIZE);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Delete the given database file along with the journal files SQLite may have left next
+     * to it.
+     */
+    private static void deleteDatabase(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+}
@@ -2,8 +2,12 @@ package com.example.android.teainventory.data;
 
 import android.net.Uri;
 import android.content.ContentResolver;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 
+import java.io.File;
+import java.util.Arrays;
+
 /**
  * API Contract for the Tea app.
  */
@@ -32,6 +36,406 @@ public final class TeaContract {
      */
     public static final String PATH_TEA = "teas";
 
+    /**
+     * Path appended to the teas URI to search teas by name
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path appended to the teas URI to read the inventory statistics
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path appended to the teas URI to list the teas that are running low
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * Path appended to the teas URI to look a tea up by its SKU
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Path appended to the teas URI to read the ledger of stock movements
+     */
+    public static final String PATH_SALES = "sales";
+
+    /**
+     * Path appended to the sales ledger URI to read the snapshots compacted ledger entries are
+     * folded into
+     */
+    public static final String PATH_SNAPSHOTS = "snapshots";
+
+    /**
+     * Name of the provider call() method that sells stock of a single tea. The id of the tea is
+     * passed in {@link #EXTRA_TEA_ID} and the number of units in {@link #EXTRA_QUANTITY}.
+     * The new stock level is returned in {@link #EXTRA_STOCK}, or -1 if the tea doesn't
+     * exist or doesn't have enough units in stock.
+     */
+    public static final String METHOD_SELL = "sell";
+
+    /** Extra holding the id of a tea, as a long */
+    public static final String EXTRA_TEA_ID = "tea_id";
+
+    /** Extra holding a number of units of a tea, as an int */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /** Extra holding the stock level of a tea after an operation, as an int */
+    public static final String EXTRA_STOCK = "stock";
+
+    /**
+     * Name of the provider call() method that sells as many units of a single tea as it has
+     * in stock, up to the number asked for. The id of the tea is passed in
+     * {@link #EXTRA_TEA_ID} and the number of units in {@link #EXTRA_QUANTITY}. The number of
+     * units sold is returned in {@link #EXTRA_QUANTITY}, 0 if the tea doesn't exist or is out
+     * of stock, and the new stock level in {@link #EXTRA_STOCK}. If a token is passed in
+     * {@link #EXTRA_SALE_TOKEN} and a sale with the same token was already made, nothing is
+     * sold again and the units that sale sold are returned.
+     */
+    public static final String METHOD_SELL_AVAILABLE = "sell_available";
+
+    /** Extra holding the token identifying one sale, as a String */
+    public static final String EXTRA_SALE_TOKEN = "sale_token";
+
+    /**
+     * Name of the provider call() method that sells stock of the tea with a given SKU, as read
+     * by a barcode scanner. The SKU is passed in {@link #EXTRA_SKU} and the number of units in
+     * {@link #EXTRA_QUANTITY}. The tea is looked up and decremented in a single statement; the
+     * new stock level is returned in {@link #EXTRA_STOCK} and the id of the tea in
+     * {@link #EXTRA_TEA_ID}, or -1 for both if no tea has the SKU or there are not enough
+     * units in stock.
+     */
+    public static final String METHOD_SELL_SKU = "sell_sku";
+
+    /** Extra holding the SKU of a tea, as a String */
+    public static final String EXTRA_SKU = "sku";
+
+    /**
+     * Name of the provider call() method that sells a basket of teas in one transaction. The
+     * lines of the basket are passed as the tea ids in {@link #EXTRA_TEA_IDS} and the numbers
+     * of units in {@link #EXTRA_QUANTITIES}. Either every line is sold or none is: whether the
+     * basket was sold is returned in {@link #EXTRA_CHECKED_OUT}, and the stock level of each
+     * line's tea afterwards in {@link #EXTRA_STOCKS}, with -1 for the lines that couldn't be
+     * sold.
+     */
+    public static final String METHOD_CHECKOUT = "checkout";
+
+    /** Extra holding numbers of units of teas, as an int array */
+    public static final String EXTRA_QUANTITIES = "quantities";
+
+    /** Extra holding stock levels of teas, as an int array */
+    public static final String EXTRA_STOCKS = "stocks";
+
+    /** Extra holding whether a checkout went through, as a boolean */
+    public static final String EXTRA_CHECKED_OUT = "checked_out";
+
+    /**
+     * Result of a {@link #checkout}.
+     */
+    public static final class CheckoutResult {
+        /** Whether every line of the basket was sold */
+        public final boolean checkedOut;
+
+        /**
+         * Stock level of each line's tea after the checkout, unchanged if the basket wasn't
+         * sold. -1 for the lines that couldn't be sold, because the tea doesn't exist or
+         * doesn't have enough units in stock.
+         */
+        public final int[] stocks;
+
+        CheckoutResult(boolean checkedOut, int[] stocks) {
+            this.checkedOut = checkedOut;
+            this.stocks = stocks;
+        }
+    }
+
+    /**
+     * Atomically sell a basket of teas through the provider: the given number of units of
+     * the tea with the same index, for every line. Either all lines are sold or none is.
+     */
+    public static CheckoutResult checkout(ContentResolver resolver, long[] teaIds,
+                                          int[] quantities) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(EXTRA_TEA_IDS, teaIds);
+        extras.putIntArray(EXTRA_QUANTITIES, quantities);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_CHECKOUT, null, extras);
+        if (result == null) {
+            int[] stocks = new int[teaIds.length];
+            Arrays.fill(stocks, -1);
+            return new CheckoutResult(false, stocks);
+        }
+        return new CheckoutResult(result.getBoolean(EXTRA_CHECKED_OUT),
+                result.getIntArray(EXTRA_STOCKS));
+    }
+
+    /**
+     * Name of the provider call() method that inserts a {@link TeaRecord.Batch} of teas, with
+     * the source for the sales ledger in {@link #EXTRA_SALES_SOURCE}. The ids of the new teas
+     * are returned in {@link #EXTRA_TEA_IDS}.
+     */
+    public static final String METHOD_INSERT_TEAS = "insert_teas";
+
+    /**
+     * Name of the provider call() method that updates every field of the teas in a
+     * {@link TeaRecord.Batch}, each by its id, with the source for the sales ledger in
+     * {@link #EXTRA_SALES_SOURCE}. The number of teas updated is returned in
+     * {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_UPDATE_TEAS = "update_teas";
+
+    /** Extra holding the ids of teas, as a long array */
+    public static final String EXTRA_TEA_IDS = "tea_ids";
+
+    /** Extra holding a number of teas, as an int */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Extra holding the source the sales ledger records the changes of stock of a batch with,
+     * one of the {@link SalesEntry} SOURCE_* values, as a String. The changes are recorded as
+     * {@link SalesEntry#SOURCE_EDIT} without it.
+     */
+    public static final String EXTRA_SALES_SOURCE = "sales_source";
+
+    /**
+     * Insert every tea in the given batch through the provider, in one transaction, as an
+     * edit. See {@link #insertTeas(ContentResolver, TeaRecord.Batch, String)}.
+     */
+    public static long[] insertTeas(ContentResolver resolver, TeaRecord.Batch batch) {
+        return insertTeas(resolver, batch, SalesEntry.SOURCE_EDIT);
+    }
+
+    /**
+     * Insert every tea in the given batch through the provider, in one transaction, with the
+     * given source for the sales ledger. The teas are checked like an insert through
+     * ContentValues, and an invalid tea fails the whole batch with an
+     * {@link IllegalArgumentException}. Returns the ids of the new teas, in batch order, with
+     * -1 for any tea the database refused.
+     */
+    public static long[] insertTeas(ContentResolver resolver, TeaRecord.Batch batch,
+            String source) {
+        Bundle extras = new Bundle();
+        batch.writeTo(extras);
+        extras.putString(EXTRA_SALES_SOURCE, source);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_INSERT_TEAS, null, extras);
+        return result == null ? new long[0] : result.getLongArray(EXTRA_TEA_IDS);
+    }
+
+    /**
+     * Replace every field of the teas in the given batch through the provider, each by its id,
+     * in one transaction, as an edit. See
+     * {@link #updateTeas(ContentResolver, TeaRecord.Batch, String)}.
+     */
+    public static int updateTeas(ContentResolver resolver, TeaRecord.Batch batch) {
+        return updateTeas(resolver, batch, SalesEntry.SOURCE_EDIT);
+    }
+
+    /**
+     * Replace every field of the teas in the given batch through the provider, each by its id,
+     * in one transaction, with the given source for the sales ledger. The teas are checked
+     * like an insert, and an invalid tea fails the whole batch with an
+     * {@link IllegalArgumentException}. Returns the number of teas updated.
+     */
+    public static int updateTeas(ContentResolver resolver, TeaRecord.Batch batch,
+            String source) {
+        Bundle extras = new Bundle();
+        batch.writeTo(extras);
+        extras.putString(EXTRA_SALES_SOURCE, source);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_UPDATE_TEAS, null, extras);
+        return result == null ? 0 : result.getInt(EXTRA_COUNT);
+    }
+
+    /**
+     * Name of the provider call() method that merges a supplier's price list, given as a
+     * {@link TeaRecord.Batch}, into the teas in one transaction. Each line is matched to the
+     * teas with its SKU, or with its name (ignoring case) if it has no SKU. Matching teas take
+     * the line's price, and its quantity too if {@link #EXTRA_MERGE_QUANTITY} is set; a line
+     * matching no tea is inserted as a new tea. The numbers of lines that inserted, updated or
+     * left teas unchanged are returned in {@link #EXTRA_INSERTED}, {@link #EXTRA_UPDATED} and
+     * {@link #EXTRA_UNCHANGED}, and lines for new teas without a valid type, or that the
+     * database refused, in {@link #EXTRA_SKIPPED}.
+     *
+     * A long price list is merged in several calls. Setting {@link #EXTRA_NOTIFY} to false
+     * keeps each call from notifying observers, so the caller can notify
+     * {@link TeaEntry#CONTENT_URI} once at the end.
+     */
+    public static final String METHOD_MERGE_TEAS = "merge_teas";
+
+    /** Extra holding whether a merge sets the quantity as well as the price, as a boolean */
+    public static final String EXTRA_MERGE_QUANTITY = "merge_quantity";
+
+    /** Extra holding whether a change notifies observers, as a boolean, true by default */
+    public static final String EXTRA_NOTIFY = "notify";
+
+    /** Extras holding the numbers of lines of a merge by outcome, as ints */
+    public static final String EXTRA_INSERTED = "inserted";
+    public static final String EXTRA_UPDATED = "updated";
+    public static final String EXTRA_UNCHANGED = "unchanged";
+    public static final String EXTRA_SKIPPED = "skipped";
+
+    /**
+     * Result of a {@link #mergeTeas}: the number of lines by outcome.
+     */
+    public static final class MergeResult {
+        public final int inserted;
+        public final int updated;
+        public final int unchanged;
+        public final int skipped;
+
+        MergeResult(int inserted, int updated, int unchanged, int skipped) {
+            this.inserted = inserted;
+            this.updated = updated;
+            this.unchanged = unchanged;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Merge the price list in the given batch into the teas through the provider, in one
+     * transaction. The lines are checked like an insert, except that the type only has to be
+     * valid for new teas, and an invalid line fails the whole batch with an
+     * {@link IllegalArgumentException}.
+     *
+     * @param mergeQuantity whether matching teas take the quantity of their line too
+     * @param notify        whether to notify observers of the change
+     */
+    public static MergeResult mergeTeas(ContentResolver resolver, TeaRecord.Batch batch,
+                                        boolean mergeQuantity, boolean notify) {
+        Bundle extras = new Bundle();
+        batch.writeTo(extras);
+        extras.putBoolean(EXTRA_MERGE_QUANTITY, mergeQuantity);
+        extras.putBoolean(EXTRA_NOTIFY, notify);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_MERGE_TEAS, null, extras);
+        if (result == null) {
+            return new MergeResult(0, 0, 0, 0);
+        }
+        return new MergeResult(result.getInt(EXTRA_INSERTED), result.getInt(EXTRA_UPDATED),
+                result.getInt(EXTRA_UNCHANGED), result.getInt(EXTRA_SKIPPED));
+    }
+
+    /**
+     * Name of the provider call() method that writes a gzipped snapshot of the database to the
+     * file whose absolute path is the arg, replacing it. The teas stay readable and writable
+     * while the snapshot is taken. The number of teas backed up is returned in
+     * {@link #EXTRA_COUNT}, or -1 if the backup failed.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Name of the provider call() method that replaces every tea with those of the backup in
+     * the file whose absolute path is the arg, in one transaction. The number of teas restored
+     * is returned in {@link #EXTRA_COUNT}, or -1 if the file couldn't be restored, in which
+     * case the teas are left as they were.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Back the database up to the given file through the provider. Returns the number of teas
+     * backed up, or -1 if the backup failed.
+     */
+    public static int backup(ContentResolver resolver, File target) {
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_BACKUP,
+                target.getAbsolutePath(), null);
+        return result == null ? -1 : result.getInt(EXTRA_COUNT, -1);
+    }
+
+    /**
+     * Restore the database from the backup in the given file through the provider. Returns
+     * the number of teas restored, or -1 if the file couldn't be restored.
+     */
+    public static int restore(ContentResolver resolver, File source) {
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_RESTORE,
+                source.getAbsolutePath(), null);
+        return result == null ? -1 : result.getInt(EXTRA_COUNT, -1);
+    }
+
+    /**
+     * Name of the provider call() method that compacts the sales ledger: the entries recorded
+     * before the time in milliseconds given as the arg are folded into one
+     * {@link SalesSnapshotEntry} per tea and deleted. The number of entries folded is
+     * returned in {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_COMPACT_SALES = "compact_sales";
+
+    /**
+     * Fold the sales ledger entries recorded before the given time, in milliseconds since the
+     * epoch, into their teas' snapshots through the provider. Returns the number of entries
+     * folded.
+     */
+    public static int compactSales(ContentResolver resolver, long before) {
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_COMPACT_SALES,
+                String.valueOf(before), null);
+        return result == null ? 0 : result.getInt(EXTRA_COUNT);
+    }
+
+    /**
+     * Name of the provider call() method that turns the provider's query result cache on or
+     * off, for comparing the two. The arg is "true" or "false".
+     */
+    public static final String METHOD_SET_QUERY_CACHE_ENABLED = "set_query_cache_enabled";
+
+    /**
+     * Name of the provider call() method that returns the statistics of the provider's query
+     * result cache, in {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES},
+     * {@link #EXTRA_CACHE_HIT_RATIO}, {@link #EXTRA_CACHE_ENTRIES} and
+     * {@link #EXTRA_CACHE_BYTES}.
+     */
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "get_query_cache_stats";
+
+    /** Extra holding the number of queries answered from the cache, as an int */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    /** Extra holding the number of queries that went to the database, as an int */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /** Extra holding the share of queries answered from the cache, as a float */
+    public static final String EXTRA_CACHE_HIT_RATIO = "cache_hit_ratio";
+
+    /** Extra holding the number of cached results, as an int */
+    public static final String EXTRA_CACHE_ENTRIES = "cache_entries";
+
+    /** Extra holding the estimated memory used by the cache in bytes, as an int */
+    public static final String EXTRA_CACHE_BYTES = "cache_bytes";
+
+    /**
+     * Atomically sell the given number of units of a tea through the provider.
+     * Returns the new stock level, or -1 if the sale could not be made.
+     */
+    public static int sellTea(ContentResolver resolver, long teaId, int quantity) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_TEA_ID, teaId);
+        extras.putInt(EXTRA_QUANTITY, quantity);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_SELL, null, extras);
+        return result == null ? -1 : result.getInt(EXTRA_STOCK, -1);
+    }
+
+    /**
+     * Atomically sell up to the given number of units of a tea through the provider, as many
+     * as it has in stock. Returns the number of units sold. A sale with a token that was
+     * already made, or null for none, isn't made again.
+     */
+    public static int sellAvailable(ContentResolver resolver, long teaId, int quantity,
+            String token) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_TEA_ID, teaId);
+        extras.putInt(EXTRA_QUANTITY, quantity);
+        extras.putString(EXTRA_SALE_TOKEN, token);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_SELL_AVAILABLE, null, extras);
+        return result == null ? 0 : result.getInt(EXTRA_QUANTITY, 0);
+    }
+
+    /**
+     * Atomically sell the given number of units of the tea with the given SKU through the
+     * provider. Returns the new stock level, or -1 if the sale could not be made.
+     */
+    public static int sellTeaBySku(ContentResolver resolver, String sku, int quantity) {
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_SKU, sku);
+        extras.putInt(EXTRA_QUANTITY, quantity);
+        Bundle result = resolver.call(TeaEntry.CONTENT_URI, METHOD_SELL_SKU, null, extras);
+        return result == null ? -1 : result.getInt(EXTRA_STOCK, -1);
+    }
+
     /**
      * Inner class that defines constant values for the tea database table.
      * Each entry in the table represents a single tea.
@@ -41,6 +445,46 @@ public final class TeaContract {
         /** The content URI to access tea data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TEA);
 
+        /**
+         * The content URI to search teas by name. The search text is passed in the
+         * {@link #QUERY_PARAMETER_SEARCH} query parameter, see {@link #buildSearchUri}.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI to look a tea up by its {@link #COLUMN_TEA_SKU}. The SKU is appended
+         * as the last path segment, see {@link #buildSkuUri}.
+         */
+        public static final Uri CONTENT_SKU_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SKU);
+
+        /**
+         * Query parameter holding the text to search for. Every word of the text matches
+         * tea names containing a word that starts with it.
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The content URI to list the teas that need reordering: the teas with a
+         * {@link #COLUMN_TEA_REORDER_LEVEL} whose quantity has dropped below it, and the teas
+         * without one whose quantity is below a global threshold. The threshold is passed in the
+         * {@link #QUERY_PARAMETER_THRESHOLD} query parameter and defaults to
+         * {@link #DEFAULT_REORDER_LEVEL}, see {@link #buildLowStockUri}. The list can be
+         * narrowed down by name with {@link #QUERY_PARAMETER_SEARCH}.
+         */
+        public static final Uri CONTENT_LOW_STOCK_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * Query parameter holding the global stock threshold, as an int, for teas that don't
+         * have a reorder level of their own.
+         */
+        public static final String QUERY_PARAMETER_THRESHOLD = "threshold";
+
+        /**
+         * Global stock threshold used by {@link #CONTENT_LOW_STOCK_URI} when none is given.
+         */
+        public static final int DEFAULT_REORDER_LEVEL = 5;
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of teas.
          */
@@ -101,6 +545,22 @@ public final class TeaContract {
          */
         public final static String COLUMN_TEA_IMAGE = "image";
 
+        /**
+         * Stock level below which the tea needs reordering, or null to use the global
+         * threshold of {@link #CONTENT_LOW_STOCK_URI}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TEA_REORDER_LEVEL = "reorder_level";
+
+        /**
+         * Stock keeping unit of the tea, usually the code on its barcode, or null if it has
+         * none. No two teas have the same SKU.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_TEA_SKU = "sku";
+
         /**
          * Possible values for the type of the tea.
          */
@@ -108,6 +568,71 @@ public final class TeaContract {
         public static final int TYPE_GREEN = 1;
         public static final int TYPE_HERBAL = 2;
 
+        /**
+         * Query parameter limiting the number of teas returned by {@link #CONTENT_URI},
+         * {@link #CONTENT_SEARCH_URI} or {@link #CONTENT_LOW_STOCK_URI}. Without an explicit
+         * sort order, the teas are returned in {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter asking for the teas that come after the given position in
+         * {@link #PAGE_SORT_ORDER}. The position is the name and the id of the last tea of the
+         * previous page, see {@link #buildPageUri}.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter that, set to "false", stops the provider from registering the
+         * returned cursor for change notifications. For callers that observe
+         * {@link #CONTENT_URI} themselves and decide how to refresh.
+         */
+        public static final String QUERY_PARAMETER_NOTIFY = "notify";
+
+        /**
+         * Order in which pages of teas are returned: by name ignoring case, then by id.
+         */
+        public static final String PAGE_SORT_ORDER = COLUMN_TEA_NAME + " COLLATE NOCASE, " + _ID;
+
+        /**
+         * Returns the given teas URI limited to one page of teas. Pass a null name for the
+         * first page, otherwise the name and id of the last tea of the previous page.
+         */
+        public static Uri buildPageUri(Uri uri, String afterName, long afterId, int limit) {
+            Uri.Builder builder = uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (afterName != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterName + "," + afterId);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the content URI searching for teas whose names match the given text.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, query)
+                    .build();
+        }
+
+        /**
+         * Returns the content URI of the tea with the given SKU.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return Uri.withAppendedPath(CONTENT_SKU_URI, Uri.encode(sku));
+        }
+
+        /**
+         * Returns the content URI listing the teas that are below their own reorder level, or
+         * below the given threshold if they don't have one.
+         */
+        public static Uri buildLowStockUri(int threshold) {
+            return CONTENT_LOW_STOCK_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_THRESHOLD, String.valueOf(threshold))
+                    .build();
+        }
+
         /**
          * Returns whether or not the given type is {@link #TYPE_BLACK}, {@link #TYPE_GREEN},
          * or {@link #TYPE_HERBAL}.
@@ -120,5 +645,168 @@ public final class TeaContract {
         }
     }
 
-}
+    /**
+     * Inner class that defines constant values for the inventory statistics table.
+     * Each entry in the table holds the totals of all teas of one type. The table is kept
+     * up to date by the database, so it can only be read.
+     */
+    public static final class StatsEntry {
+
+        /** The content URI to read the inventory statistics from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(TeaEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the statistics of every tea type.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_TEA + "/" + PATH_STATS;
+
+        /** Name of database table for the inventory statistics */
+        public final static String TABLE_NAME = "tea_stats";
+
+        /**
+         * Type of the teas counted in this entry, one of the TeaEntry.TYPE_* values.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TEA_TYPE = "type";
+
+        /**
+         * Number of teas of this type.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TEA_COUNT = "tea_count";
+
+        /**
+         * Units in stock over all teas of this type.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_UNITS = "total_units";
 
+        /**
+         * Value of the stock (price times quantity) over all teas of this type.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+    }
+
+    /**
+     * Inner class that defines constant values for the sales ledger. Every change to the stock
+     * of a tea appends an entry holding the change, and the teas table keeps the current stock
+     * level. The ledger is written by the database itself and can only be read through the
+     * provider.
+     *
+     * The stock level of a tea is the quantity of its {@link SalesSnapshotEntry}, if it has
+     * one, plus the deltas of all of its entries.
+     */
+    public static final class SalesEntry implements BaseColumns {
+
+        /** The content URI to read the sales ledger from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(TeaEntry.CONTENT_URI, PATH_SALES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of ledger entries.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_TEA + "/" + PATH_SALES;
+
+        /** Name of database table for the sales ledger */
+        public final static String TABLE_NAME = "sales";
+
+        /**
+         * Unique ID number for the entry, increasing in the order the entries were appended.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the tea whose stock changed. Entries outlive their tea: deleting one appends
+         * the removal of its remaining stock.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TEA_ID = "tea_id";
+
+        /**
+         * Change of the stock level, negative for units that left.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELTA = "delta";
+
+        /**
+         * Time of the change, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TIMESTAMP = "timestamp";
+
+        /**
+         * What changed the stock, one of the SOURCE_* values.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_SOURCE = "source";
+
+        /**
+         * Token of the queued sale that made the change, passed in {@link #EXTRA_SALE_TOKEN},
+         * or NULL. No two entries have the same token, so a sale replayed after the app was
+         * killed is only made once. Tokens go with their entries when those are compacted.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_TOKEN = "token";
+
+        /**
+         * Possible values for the source of a change.
+         */
+        public static final String SOURCE_SALE = "sale";
+        public static final String SOURCE_EDIT = "edit";
+        public static final String SOURCE_IMPORT = "import";
+    }
+
+    /**
+     * Inner class that defines constant values for the snapshots of the sales ledger. Each
+     * holds the sum of the compacted entries of one tea.
+     */
+    public static final class SalesSnapshotEntry {
+
+        /** The content URI to read the ledger snapshots from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(SalesEntry.CONTENT_URI,
+                PATH_SNAPSHOTS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of snapshots.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_TEA + "/" + PATH_SALES + "/" + PATH_SNAPSHOTS;
+
+        /** Name of database table for the ledger snapshots */
+        public final static String TABLE_NAME = "sales_snapshots";
+
+        /**
+         * ID of the tea the snapshot is of, one snapshot per tea.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TEA_ID = "tea_id";
+
+        /**
+         * Sum of the deltas of the tea's compacted entries.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Time of the latest entry folded in, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TIMESTAMP = "timestamp";
+    }
+}
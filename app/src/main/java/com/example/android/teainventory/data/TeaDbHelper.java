@@ -1,8 +1,14 @@
 package com.example.android.teainventory.data;
 
+import android.annotation.TargetApi;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.StatsEntry;
 import com.example.android.teainventory.data.TeaContract.TeaEntry;
 
 /**
@@ -18,7 +24,47 @@ public class TeaDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 8;
+
+    /** Index for looking up and sorting teas by name, ignoring case */
+    static final String INDEX_TEAS_NAME = "teas_name_idx";
+
+    /** Index for filtering teas by type and stock level */
+    static final String INDEX_TEAS_TYPE_QUANTITY = "teas_type_quantity_idx";
+
+    /** Index for finding the teas that have dropped below their own reorder level */
+    static final String INDEX_TEAS_REORDER = "teas_reorder_idx";
+
+    /** Unique index for looking up teas by SKU */
+    static final String INDEX_TEAS_SKU = "teas_sku_idx";
+
+    /** Full-text index over tea names, kept in sync with the teas table by triggers */
+    static final String TABLE_TEAS_FTS = "teas_fts";
+
+    /** Index for scanning the sales ledger of one tea in time order */
+    static final String INDEX_SALES_TEA = "sales_tea_idx";
+
+    /** Index for scanning the sales ledger by time, such as the entries to compact */
+    static final String INDEX_SALES_TIMESTAMP = "sales_timestamp_idx";
+
+    /** Unique index over the tokens of queued sales, so each is only recorded once */
+    static final String INDEX_SALES_TOKEN = "sales_token_idx";
+
+    /**
+     * One row table holding the source the ledger triggers record changes with. Set by the
+     * provider in the transaction making the changes, see {@link SalesLedger#setSource}.
+     */
+    static final String TABLE_SALES_SOURCE = "sales_source";
+
+    /** Column of {@link #TABLE_SALES_SOURCE} */
+    static final String COLUMN_SOURCE = "source";
+
+    /** Column of {@link #TABLE_SALES_SOURCE} */
+    static final String COLUMN_TOKEN = "token";
+
+    /** SQL expression for the current time in milliseconds since the epoch */
+    private static final String SQL_NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
 
     /**
      * Constructs a new instance of {@link TeaDbHelper}.
@@ -26,7 +72,58 @@ public class TeaDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public TeaDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link TeaDbHelper} backed by the given database file.
+     *
+     * @param context of the app
+     * @param name    of the database file, or null for an in-memory database
+     */
+    TeaDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Use write-ahead logging, so the catalog can keep reading while sales and edits are
+        // written. On Jelly Bean and above this also gives the database a pool of read
+        // connections, sized by the platform, that readers use alongside the one writer.
+        // Older versions switch it on in onOpen() instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database connection is being configured, before the schema is
+     * created or upgraded. Only called on Jelly Bean and above.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (db.isWriteAheadLoggingEnabled()) {
+            configureWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * This is called when the database has been opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()
+                && db.enableWriteAheadLogging()) {
+            configureWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * In WAL mode a commit only has to reach the log, and the log is synced at checkpoints,
+     * so NORMAL keeps the database consistent after a crash without an fsync per commit.
+     */
+    private static void configureWriteAheadLogging(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous = NORMAL");
     }
 
     /**
@@ -34,6 +131,14 @@ public class TeaDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createSchema(db);
+    }
+
+    /**
+     * Create every table, index and trigger of the current schema in the given empty
+     * database. Used for new databases and for backup snapshots.
+     */
+    static void createSchema(SQLiteDatabase db) {
         // Create a String that contains the SQL statement to create the teas table
         String SQL_CREATE_TEAS_TABLE =  "CREATE TABLE " + TeaEntry.TABLE_NAME + " ("
                 + TeaEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -45,13 +150,299 @@ public class TeaDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_TEAS_TABLE);
+
+        // That is the version 1 schema, bring it up to date with the same steps that are used
+        // to upgrade existing databases
+        upgrade(db, 1);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Every schema change since
+     * version 1 is applied in order, so a database of any older version ends up on the
+     * current schema with its data kept in place.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        upgrade(db, oldVersion);
+    }
+
+    /**
+     * Bring the schema of the given database from the given version up to
+     * {@link #DATABASE_VERSION}. Also used for backups taken by an older version of the app.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+        }
+    }
+
+    /**
+     * Version 2 adds secondary indexes matching the provider's query shapes.
+     */
+    private static void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_TEAS_NAME + " ON " + TeaEntry.TABLE_NAME + " ("
+                + TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX " + INDEX_TEAS_TYPE_QUANTITY + " ON " + TeaEntry.TABLE_NAME + " ("
+                + TeaEntry.COLUMN_TEA_TYPE + ", "
+                + TeaEntry.COLUMN_TEA_QUANTITY + ");");
+    }
+
+    /**
+     * Version 3 adds a full-text index over tea names. The FTS rows use the tea's _id as their
+     * docid, and triggers on the teas table keep them up to date.
+     */
+    private static void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_TEAS_FTS + " USING fts4("
+                + TeaEntry.COLUMN_TEA_NAME + ");");
+
+        // Index the teas that are already there
+        db.execSQL("INSERT INTO " + TABLE_TEAS_FTS + " (docid, " + TeaEntry.COLUMN_TEA_NAME + ")"
+                + " SELECT " + TeaEntry._ID + ", " + TeaEntry.COLUMN_TEA_NAME
+                + " FROM " + TeaEntry.TABLE_NAME + ";");
+
+        db.execSQL("CREATE TRIGGER " + TABLE_TEAS_FTS + "_insert AFTER INSERT ON "
+                + TeaEntry.TABLE_NAME + " BEGIN"
+                + " INSERT INTO " + TABLE_TEAS_FTS + " (docid, " + TeaEntry.COLUMN_TEA_NAME + ")"
+                + " VALUES (new." + TeaEntry._ID + ", new." + TeaEntry.COLUMN_TEA_NAME + ");"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + TABLE_TEAS_FTS + "_update AFTER UPDATE OF "
+                + TeaEntry.COLUMN_TEA_NAME + " ON " + TeaEntry.TABLE_NAME + " BEGIN"
+                + " UPDATE " + TABLE_TEAS_FTS + " SET " + TeaEntry.COLUMN_TEA_NAME
+                + " = new." + TeaEntry.COLUMN_TEA_NAME + " WHERE docid = old." + TeaEntry._ID + ";"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + TABLE_TEAS_FTS + "_delete AFTER DELETE ON "
+                + TeaEntry.TABLE_NAME + " BEGIN"
+                + " DELETE FROM " + TABLE_TEAS_FTS + " WHERE docid = old." + TeaEntry._ID + ";"
+                + " END;");
+    }
+
+    /**
+     * Version 4 adds the inventory statistics table, holding one row of totals per tea type.
+     * Triggers on the teas table apply every insert, update and delete to those totals, so
+     * reading the statistics never has to scan the teas.
+     */
+    private static void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " ("
+                + StatsEntry.COLUMN_TEA_TYPE + " INTEGER PRIMARY KEY, "
+                + StatsEntry.COLUMN_TEA_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_TOTAL_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_STOCK_VALUE + " REAL NOT NULL DEFAULT 0);");
+
+        // Start from the totals of the teas that are already there
+        rebuildStats(db);
+
+        db.execSQL("CREATE TRIGGER " + StatsEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                + TeaEntry.TABLE_NAME + " BEGIN "
+                + addToStats("new", "+")
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + StatsEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                + TeaEntry.COLUMN_TEA_TYPE + ", "
+                + TeaEntry.COLUMN_TEA_PRICE + ", "
+                + TeaEntry.COLUMN_TEA_QUANTITY + " ON " + TeaEntry.TABLE_NAME + " BEGIN "
+                + addToStats("old", "-")
+                + addToStats("new", "+")
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + StatsEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                + TeaEntry.TABLE_NAME + " BEGIN "
+                + addToStats("old", "-")
+                + " END;");
+    }
+
+    /**
+     * Recompute the statistics table from the teas, replacing the totals the triggers have
+     * kept. For when the teas have been replaced wholesale.
+     */
+    static void rebuildStats(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + StatsEntry.TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " ("
+                + StatsEntry.COLUMN_TEA_TYPE + ", "
+                + StatsEntry.COLUMN_TEA_COUNT + ", "
+                + StatsEntry.COLUMN_TOTAL_UNITS + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + ")"
+                + " SELECT " + TeaEntry.COLUMN_TEA_TYPE + ", COUNT(*), "
+                + "SUM(" + TeaEntry.COLUMN_TEA_QUANTITY + "), "
+                + "SUM(" + TeaEntry.COLUMN_TEA_PRICE + " * " + TeaEntry.COLUMN_TEA_QUANTITY + ")"
+                + " FROM " + TeaEntry.TABLE_NAME
+                + " GROUP BY " + TeaEntry.COLUMN_TEA_TYPE + ";");
+    }
+
+    /**
+     * Version 5 adds the per-tea reorder level, and an index for finding the teas below it.
+     */
+    private static void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TeaEntry.TABLE_NAME + " ADD COLUMN "
+                + TeaEntry.COLUMN_TEA_REORDER_LEVEL + " INTEGER;");
+
+        if (supportsPartialIndexes(db)) {
+            // Only the teas that need reordering are in the index, so listing them reads a
+            // handful of index entries however large the table grows
+            db.execSQL("CREATE INDEX " + INDEX_TEAS_REORDER + " ON " + TeaEntry.TABLE_NAME + " ("
+                    + TeaEntry.COLUMN_TEA_QUANTITY + ") WHERE "
+                    + TeaEntry.COLUMN_TEA_QUANTITY + " < " + TeaEntry.COLUMN_TEA_REORDER_LEVEL + ";");
+        } else {
+            // Without partial indexes, index every tea by its reorder level instead. The teas
+            // without one sort first and are skipped, and the quantity is read from the index.
+            db.execSQL("CREATE INDEX " + INDEX_TEAS_REORDER + " ON " + TeaEntry.TABLE_NAME + " ("
+                    + TeaEntry.COLUMN_TEA_REORDER_LEVEL + ", "
+                    + TeaEntry.COLUMN_TEA_QUANTITY + ");");
+        }
+    }
+
+    /**
+     * Version 6 adds the SKU of each tea, with a unique index so a scanned code finds its tea
+     * with one index lookup. Teas without a SKU hold NULL, which the index allows any number of.
+     */
+    private static void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TeaEntry.TABLE_NAME + " ADD COLUMN "
+                + TeaEntry.COLUMN_TEA_SKU + " TEXT;");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_TEAS_SKU + " ON " + TeaEntry.TABLE_NAME + " ("
+                + TeaEntry.COLUMN_TEA_SKU + ");");
+    }
+
+    /**
+     * Version 7 adds the sales ledger. Triggers on the teas table append an entry for every
+     * change of a tea's stock, so no write to the teas can leave it out, and each append is a
+     * single insert at the end of the table and its indexes. Reading the stock level still
+     * only reads the teas table.
+     *
+     * The stock of the teas that are already there, with no history, becomes their snapshot.
+     */
+    private static void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SalesEntry.TABLE_NAME + " ("
+                + SalesEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SalesEntry.COLUMN_TEA_ID + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_SOURCE + " TEXT NOT NULL);");
+        db.execSQL("CREATE INDEX " + INDEX_SALES_TEA + " ON " + SalesEntry.TABLE_NAME + " ("
+                + SalesEntry.COLUMN_TEA_ID + ", "
+                + SalesEntry.COLUMN_TIMESTAMP + ");");
+        db.execSQL("CREATE INDEX " + INDEX_SALES_TIMESTAMP + " ON " + SalesEntry.TABLE_NAME + " ("
+                + SalesEntry.COLUMN_TIMESTAMP + ");");
+
+        db.execSQL("CREATE TABLE " + SalesSnapshotEntry.TABLE_NAME + " ("
+                + SalesSnapshotEntry.COLUMN_TEA_ID + " INTEGER PRIMARY KEY, "
+                + SalesSnapshotEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                + SalesSnapshotEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + SalesSnapshotEntry.TABLE_NAME + " ("
+                + SalesSnapshotEntry.COLUMN_TEA_ID + ", "
+                + SalesSnapshotEntry.COLUMN_QUANTITY + ", "
+                + SalesSnapshotEntry.COLUMN_TIMESTAMP + ")"
+                + " SELECT " + TeaEntry._ID + ", " + TeaEntry.COLUMN_TEA_QUANTITY + ", "
+                + SQL_NOW_MILLIS + " FROM " + TeaEntry.TABLE_NAME
+                + " WHERE " + TeaEntry.COLUMN_TEA_QUANTITY + " <> 0;");
+
+        db.execSQL("CREATE TABLE " + TABLE_SALES_SOURCE + " ("
+                + COLUMN_SOURCE + " TEXT NOT NULL);");
+        db.execSQL("INSERT INTO " + TABLE_SALES_SOURCE + " (" + COLUMN_SOURCE + ")"
+                + " VALUES ('" + SalesEntry.SOURCE_EDIT + "');");
+
+        createSalesTriggers(db, false);
+    }
+
+    /**
+     * Version 8 records the token of a queued sale with its ledger entry, see
+     * {@link SalesEntry#COLUMN_TOKEN}. The token is set next to the source, and the ledger
+     * triggers are created again to record it.
+     */
+    private static void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + SalesEntry.TABLE_NAME + " ADD COLUMN "
+                + SalesEntry.COLUMN_TOKEN + " TEXT;");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_SALES_TOKEN + " ON " + SalesEntry.TABLE_NAME
+                + " (" + SalesEntry.COLUMN_TOKEN + ");");
+        db.execSQL("ALTER TABLE " + TABLE_SALES_SOURCE + " ADD COLUMN " + COLUMN_TOKEN + " TEXT;");
+
+        db.execSQL("DROP TRIGGER " + SalesEntry.TABLE_NAME + "_insert;");
+        db.execSQL("DROP TRIGGER " + SalesEntry.TABLE_NAME + "_update;");
+        db.execSQL("DROP TRIGGER " + SalesEntry.TABLE_NAME + "_delete;");
+        createSalesTriggers(db, true);
+    }
+
+    /**
+     * Create the triggers appending every change of a tea's stock to the sales ledger, with
+     * the token currently set too if the given flag is true.
+     */
+    private static void createSalesTriggers(SQLiteDatabase db, boolean withToken) {
+        db.execSQL("CREATE TRIGGER " + SalesEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                + TeaEntry.TABLE_NAME + " WHEN new." + TeaEntry.COLUMN_TEA_QUANTITY + " <> 0 BEGIN "
+                + appendToSales("new", "new." + TeaEntry.COLUMN_TEA_QUANTITY, withToken)
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + SalesEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                + TeaEntry.COLUMN_TEA_QUANTITY + " ON " + TeaEntry.TABLE_NAME
+                + " WHEN new." + TeaEntry.COLUMN_TEA_QUANTITY
+                + " <> old." + TeaEntry.COLUMN_TEA_QUANTITY + " BEGIN "
+                + appendToSales("new", "new." + TeaEntry.COLUMN_TEA_QUANTITY
+                        + " - old." + TeaEntry.COLUMN_TEA_QUANTITY, withToken)
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + SalesEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                + TeaEntry.TABLE_NAME + " WHEN old." + TeaEntry.COLUMN_TEA_QUANTITY + " <> 0 BEGIN "
+                + appendToSales("old", "-old." + TeaEntry.COLUMN_TEA_QUANTITY, withToken)
+                + " END;");
+    }
+
+    /**
+     * Returns the trigger statement appending the given change of stock of the "new" or "old"
+     * tea row to the sales ledger, with the source, and the token if asked for, currently set.
+     */
+    private static String appendToSales(String row, String delta, boolean withToken) {
+        String columns = SalesEntry.COLUMN_TEA_ID + ", "
+                + SalesEntry.COLUMN_DELTA + ", "
+                + SalesEntry.COLUMN_TIMESTAMP + ", "
+                + SalesEntry.COLUMN_SOURCE;
+        String values = row + "." + TeaEntry._ID + ", " + delta + ", " + SQL_NOW_MILLIS + ","
+                + " (SELECT " + COLUMN_SOURCE + " FROM " + TABLE_SALES_SOURCE + ")";
+        if (withToken) {
+            columns += ", " + SalesEntry.COLUMN_TOKEN;
+            values += ", (SELECT " + COLUMN_TOKEN + " FROM " + TABLE_SALES_SOURCE + ")";
+        }
+        return "INSERT INTO " + SalesEntry.TABLE_NAME + " (" + columns + ") VALUES (" + values
+                + "); ";
+    }
+
+    /**
+     * Returns whether the SQLite library behind the given database can create partial indexes,
+     * which it can from version 3.8.0 (shipped with Lollipop).
+     */
+    static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return major > 3 || (major == 3 && minor >= 8);
+    }
+
+    /**
+     * Returns the trigger statements adding ("+") or removing ("-") the "new" or "old" tea row
+     * to or from the totals of its type.
+     */
+    private static String addToStats(String row, String sign) {
+        return "INSERT OR IGNORE INTO " + StatsEntry.TABLE_NAME + " (" + StatsEntry.COLUMN_TEA_TYPE
+                + ") VALUES (" + row + "." + TeaEntry.COLUMN_TEA_TYPE + "); "
+                + "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TEA_COUNT + " = " + StatsEntry.COLUMN_TEA_COUNT + " " + sign + " 1, "
+                + StatsEntry.COLUMN_TOTAL_UNITS + " = " + StatsEntry.COLUMN_TOTAL_UNITS + " " + sign + " "
+                + row + "." + TeaEntry.COLUMN_TEA_QUANTITY + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + " = " + StatsEntry.COLUMN_STOCK_VALUE + " " + sign + " "
+                + row + "." + TeaEntry.COLUMN_TEA_PRICE + " * " + row + "." + TeaEntry.COLUMN_TEA_QUANTITY
+                + " WHERE " + StatsEntry.COLUMN_TEA_TYPE + " = " + row + "." + TeaEntry.COLUMN_TEA_TYPE
+                + "; ";
     }
 }
\ No newline at end of file
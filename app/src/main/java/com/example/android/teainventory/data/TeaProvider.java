@@ -1,15 +1,35 @@
 package com.example.android.teainventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.SalesSnapshotEntry;
+import com.example.android.teainventory.data.TeaContract.StatsEntry;
 import com.example.android.teainventory.data.TeaContract.TeaEntry;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * {@link ContentProvider} for Tea Inventory app.
  */
@@ -24,6 +44,24 @@ public class TeaProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single tea in the teas table */
     private static final int TEA_ID = 101;
 
+    /** URI matcher code for the content URI searching the teas table by name */
+    private static final int TEAS_SEARCH = 102;
+
+    /** URI matcher code for the content URI for the inventory statistics */
+    private static final int STATS = 103;
+
+    /** URI matcher code for the content URI for the teas that need reordering */
+    private static final int LOW_STOCK = 104;
+
+    /** URI matcher code for the content URI for the tea with a given SKU */
+    private static final int TEA_SKU = 105;
+
+    /** URI matcher code for the content URI for the sales ledger */
+    private static final int SALES = 106;
+
+    /** URI matcher code for the content URI for the snapshots of the sales ledger */
+    private static final int SALES_SNAPSHOTS = 107;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -48,11 +86,157 @@ public class TeaProvider extends ContentProvider {
         // of the teas table.
         sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
                 com.example.android.teainventory.data.TeaContract.PATH_TEA + "/#", TEA_ID);
+
+        // The content URI of the form "content://com.example.android.teainventory/teas/search"
+        // will map to the integer code {@link #TEAS_SEARCH}. This URI is used to find the teas
+        // whose names match the text in its query parameter.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_SEARCH, TEAS_SEARCH);
+
+        // The content URI of the form "content://com.example.android.teainventory/teas/stats"
+        // will map to the integer code {@link #STATS}. This URI is used to read the totals
+        // kept for every tea type.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_STATS, STATS);
+
+        // The content URI of the form "content://com.example.android.teainventory/teas/low_stock"
+        // will map to the integer code {@link #LOW_STOCK}. This URI is used to list the teas
+        // whose stock is below their reorder level or the threshold in its query parameter.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_LOW_STOCK, LOW_STOCK);
+
+        // The content URI of the form "content://com.example.android.teainventory/teas/sku/*"
+        // will map to the integer code {@link #TEA_SKU}. This URI is used to find the one tea
+        // whose SKU is the last path segment, such as a code read by a barcode scanner.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_SKU + "/*", TEA_SKU);
+
+        // The content URI of the form "content://com.example.android.teainventory/teas/sales"
+        // will map to the integer code {@link #SALES}. This URI is used to read the ledger of
+        // changes to the stock of the teas.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_SALES, SALES);
+
+        // The content URI of the form
+        // "content://com.example.android.teainventory/teas/sales/snapshots" will map to the
+        // integer code {@link #SALES_SNAPSHOTS}. This URI is used to read the sums of the
+        // ledger entries that have been compacted.
+        sUriMatcher.addURI(com.example.android.teainventory.data.TeaContract.CONTENT_AUTHORITY,
+                com.example.android.teainventory.data.TeaContract.PATH_TEA + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_SALES + "/"
+                        + com.example.android.teainventory.data.TeaContract.PATH_SNAPSHOTS,
+                SALES_SNAPSHOTS);
     }
 
+    /** Insert statement used by {@link #bulkInsert}, binding every column of the teas table */
+    private static final String SQL_INSERT_TEA = "INSERT INTO " + TeaEntry.TABLE_NAME + " ("
+            + TeaEntry.COLUMN_TEA_NAME + ", "
+            + TeaEntry.COLUMN_TEA_TYPE + ", "
+            + TeaEntry.COLUMN_TEA_PRICE + ", "
+            + TeaEntry.COLUMN_TEA_QUANTITY + ", "
+            + TeaEntry.COLUMN_TEA_IMAGE + ", "
+            + TeaEntry.COLUMN_TEA_REORDER_LEVEL + ", "
+            + TeaEntry.COLUMN_TEA_SKU + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /** Update statement used by {@link #updateTeaRecords}, replacing every column of one tea */
+    private static final String SQL_UPDATE_TEA = "UPDATE " + TeaEntry.TABLE_NAME + " SET "
+            + TeaEntry.COLUMN_TEA_NAME + " = ?, "
+            + TeaEntry.COLUMN_TEA_TYPE + " = ?, "
+            + TeaEntry.COLUMN_TEA_PRICE + " = ?, "
+            + TeaEntry.COLUMN_TEA_QUANTITY + " = ?, "
+            + TeaEntry.COLUMN_TEA_IMAGE + " = ?, "
+            + TeaEntry.COLUMN_TEA_REORDER_LEVEL + " = ?, "
+            + TeaEntry.COLUMN_TEA_SKU + " = ? WHERE " + TeaEntry._ID + " = ?";
+
+    /**
+     * Decrement statement used to sell stock. The quantity check is part of the WHERE clause,
+     * so the read and the write happen in one step and concurrent sales can't oversell.
+     */
+    private static final String SQL_SELL_TEA = "UPDATE " + TeaEntry.TABLE_NAME
+            + " SET " + TeaEntry.COLUMN_TEA_QUANTITY + " = " + TeaEntry.COLUMN_TEA_QUANTITY + " - ?"
+            + " WHERE " + TeaEntry._ID + " = ? AND " + TeaEntry.COLUMN_TEA_QUANTITY + " >= ?";
+
+    /**
+     * Decrement statement used to sell stock of the tea with a given SKU. Like
+     * {@link #SQL_SELL_TEA}, the quantity check is part of the WHERE clause, and the tea is
+     * found through {@link TeaDbHelper#INDEX_TEAS_SKU} by the same statement that sells it.
+     */
+    private static final String SQL_SELL_SKU = "UPDATE " + TeaEntry.TABLE_NAME
+            + " SET " + TeaEntry.COLUMN_TEA_QUANTITY + " = " + TeaEntry.COLUMN_TEA_QUANTITY + " - ?"
+            + " WHERE " + TeaEntry.COLUMN_TEA_SKU + " = ? AND " + TeaEntry.COLUMN_TEA_QUANTITY + " >= ?";
+
+    /**
+     * Query for the ids of the teas that need reordering, taking the global threshold as its
+     * argument. Each half is written so that it can be answered from an index alone:
+     * the teas below their own reorder level come from {@link TeaDbHelper#INDEX_TEAS_REORDER},
+     * and the teas without one are range scans of the type and quantity index, one per type.
+     */
+    static final String SQL_LOW_STOCK_IDS = "SELECT " + TeaEntry._ID
+            + " FROM " + TeaEntry.TABLE_NAME
+            + " WHERE " + TeaEntry.COLUMN_TEA_REORDER_LEVEL + " >= 0"
+            + " AND " + TeaEntry.COLUMN_TEA_QUANTITY + " < " + TeaEntry.COLUMN_TEA_REORDER_LEVEL
+            + " UNION ALL SELECT " + TeaEntry._ID
+            + " FROM " + TeaEntry.TABLE_NAME
+            + " WHERE " + TeaEntry.COLUMN_TEA_TYPE + " IN (" + TeaEntry.TYPE_BLACK + ", "
+            + TeaEntry.TYPE_GREEN + ", " + TeaEntry.TYPE_HERBAL + ")"
+            + " AND " + TeaEntry.COLUMN_TEA_QUANTITY + " < ?"
+            + " AND " + TeaEntry.COLUMN_TEA_REORDER_LEVEL + " IS NULL";
+
+    /** Query for the id and current stock level of the tea with a given SKU */
+    private static final String SQL_QUERY_SKU = "SELECT " + TeaEntry._ID + ", "
+            + TeaEntry.COLUMN_TEA_QUANTITY + " FROM " + TeaEntry.TABLE_NAME
+            + " WHERE " + TeaEntry.COLUMN_TEA_SKU + " = ?";
+
+    /** Key clauses a price list line is matched to the teas by, through their indexes */
+    private static final String KEY_SKU = TeaEntry.COLUMN_TEA_SKU + " = ?";
+    private static final String KEY_NAME = TeaEntry.COLUMN_TEA_NAME + " = ? COLLATE NOCASE";
+
+    /**
+     * Update statement used by {@link #mergeTeaRecords} to set the price, and the quantity if
+     * asked to, of the teas matching a key. Teas that already have the values aren't written,
+     * so the number of rows changed tells an update from an unchanged line.
+     */
+    private static String buildMergeUpdate(String key, boolean withQuantity) {
+        if (withQuantity) {
+            return "UPDATE " + TeaEntry.TABLE_NAME + " SET "
+                    + TeaEntry.COLUMN_TEA_PRICE + " = ?1, "
+                    + TeaEntry.COLUMN_TEA_QUANTITY + " = ?2"
+                    + " WHERE " + key.replace("?", "?3")
+                    + " AND (" + TeaEntry.COLUMN_TEA_PRICE + " <> ?1"
+                    + " OR " + TeaEntry.COLUMN_TEA_QUANTITY + " <> ?2)";
+        }
+        return "UPDATE " + TeaEntry.TABLE_NAME + " SET "
+                + TeaEntry.COLUMN_TEA_PRICE + " = ?1"
+                + " WHERE " + key.replace("?", "?2")
+                + " AND " + TeaEntry.COLUMN_TEA_PRICE + " <> ?1";
+    }
+
+    /** Query for whether any tea matches a key, used by {@link #mergeTeaRecords} */
+    private static String buildMergeExists(String key) {
+        return "SELECT EXISTS (SELECT 1 FROM " + TeaEntry.TABLE_NAME + " WHERE " + key + ")";
+    }
+
+    /** Query for the current stock level of a single tea */
+    private static final String SQL_QUERY_QUANTITY = "SELECT " + TeaEntry.COLUMN_TEA_QUANTITY
+            + " FROM " + TeaEntry.TABLE_NAME + " WHERE " + TeaEntry._ID + " = ?";
+
     /** Database helper object */
     private com.example.android.teainventory.data.TeaDbHelper mDbHelper;
 
+    /**
+     * URIs changed by the {@link #applyBatch} running on the current thread, or null if no batch
+     * is running. Notifications for these URIs are held back until the batch has committed.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
+    /** Small query results, dropped as the teas they are about change */
+    private final QueryCache mQueryCache = new QueryCache();
+
     @Override
     public boolean onCreate() {
         mDbHelper = new com.example.android.teainventory.data.TeaDbHelper(getContext());
@@ -62,21 +246,73 @@ public class TeaProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+
+        // Answer from the cache if the same query was made since the teas it reads last
+        // changed. Queries made inside a batch may see rows that are rolled back later, so
+        // they neither read nor fill the cache.
+        List<String> cacheKey = null;
+        Cursor cursor = null;
+        if (mBatchChanges.get() == null && mQueryCache.isEnabled()) {
+            cacheKey = QueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
+            cursor = mQueryCache.get(cacheKey);
+        }
+        if (cursor == null) {
+            long generation = mQueryCache.generation();
+            cursor = queryDatabase(match, uri, projection, selection, selectionArgs, sortOrder);
+            if (cacheKey != null) {
+                long scope = match == TEA_ID ? ContentUris.parseId(uri) : QueryCache.SCOPE_ALL_TEAS;
+                cursor = mQueryCache.put(cacheKey, scope, generation, cursor);
+            }
+        }
+
+        // Set notification URI on the Cursor,
+        // so we know what content URI the Cursor was created for.
+        // If the data at this URI changes, then we know we need to update the Cursor.
+        // Callers that watch for changes themselves can opt out.
+        if (!"false".equals(uri.getQueryParameter(TeaEntry.QUERY_PARAMETER_NOTIFY))) {
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    notificationUri(match, uri));
+        }
+
+        // Return the cursor
+        return cursor;
+    }
+
+    /**
+     * Returns the URI whose changes update the cursor of a query of the given URI.
+     */
+    private static Uri notificationUri(int match, Uri uri) {
+        switch (match) {
+            case TEAS:
+            case TEA_ID:
+                // Changes to the data at this URI will update the cursor
+                return uri;
+            default:
+                // Search results, low stock teas, the statistics and the sales ledger can
+                // change whenever any tea changes
+                return TeaEntry.CONTENT_URI;
+        }
+    }
+
+    /**
+     * Run a query against the database, for the URI matcher code of the given URI.
+     */
+    private Cursor queryDatabase(int match, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case TEAS:
                 // For the TEAS code, query the teas table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the teas table.
-                cursor = database.query(TeaEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryTeas(database, uri, projection, selection, selectionArgs, sortOrder);
                 break;
             case TEA_ID:
                 // For the TEA_ID code, extract out the ID from the URI.
@@ -95,17 +331,155 @@ public class TeaProvider extends ContentProvider {
                 cursor = database.query(TeaEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case TEA_SKU:
+                // For the TEA_SKU code, look the tea up by the SKU in the last path segment.
+                // The SKU index is unique, so this is one index lookup returning at most one row.
+                selection = TeaEntry.COLUMN_TEA_SKU + "=?";
+                selectionArgs = new String[] { uri.getLastPathSegment() };
+                cursor = database.query(TeaEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case LOW_STOCK:
+                // For the LOW_STOCK code, restrict the query to the ids of the teas that need
+                // reordering. There are usually only a few of them, so they are looked up by id.
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        TeaEntry._ID + " IN (" + SQL_LOW_STOCK_IDS + ")");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { String.valueOf(parseThreshold(uri)) });
+                // The list can be searched like all teas, so carry on as a search
+            case TEAS_SEARCH:
+                // For the TEAS_SEARCH code, look the search text up in the full-text index of
+                // tea names and restrict the query to the matching ids. Without any words to
+                // search for, every tea matches.
+                String matchQuery = buildMatchQuery(
+                        uri.getQueryParameter(TeaEntry.QUERY_PARAMETER_SEARCH));
+                if (matchQuery.length() != 0) {
+                    selection = DatabaseUtils.concatenateWhere(selection, TeaEntry._ID
+                            + " IN (SELECT docid FROM " + TeaDbHelper.TABLE_TEAS_FTS
+                            + " WHERE " + TeaDbHelper.TABLE_TEAS_FTS + " MATCH ?)");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { matchQuery });
+                }
+                cursor = queryTeas(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case STATS:
+                // For the STATS code, read the statistics table directly. It only holds one
+                // row per tea type, and the database keeps it up to date as teas change.
+                cursor = database.query(StatsEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SALES:
+                // For the SALES code, read the ledger directly. Selections on the tea and on
+                // the time are range scans of its indexes.
+                cursor = database.query(SalesEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SALES_SNAPSHOTS:
+                cursor = database.query(SalesSnapshotEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
+        return cursor;
+    }
 
-        // Set notification URI on the Cursor,
-        // so we know what content URI the Cursor was created for.
-        // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+    /**
+     * Query rows of the teas table, applying the paging query parameters of the given URI.
+     *
+     * {@link TeaEntry#QUERY_PARAMETER_LIMIT} caps the number of rows returned. If no sort order
+     * is given, the rows come in {@link TeaEntry#PAGE_SORT_ORDER}.
+     *
+     * {@link TeaEntry#QUERY_PARAMETER_AFTER} asks for the rows that come after the given
+     * position in {@link TeaEntry#PAGE_SORT_ORDER}. That is a keyset condition on the name
+     * index rather than an OFFSET, so a page deep into the list costs as much as the first.
+     */
+    private static Cursor queryTeas(SQLiteDatabase database, Uri uri, String[] projection,
+                                    String selection, String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(TeaEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new IllegalArgumentException("Page limit must be more than 0: " + uri);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page limit: " + uri);
+            }
+            if (sortOrder == null) {
+                sortOrder = TeaEntry.PAGE_SORT_ORDER;
+            }
+        }
 
-        // Return the cursor
-        return cursor;
+        String after = uri.getQueryParameter(TeaEntry.QUERY_PARAMETER_AFTER);
+        if (after != null) {
+            // The position is "<name>,<id>". Names may contain commas, ids can't.
+            int separator = after.lastIndexOf(',');
+            String afterName;
+            String afterId;
+            try {
+                afterName = after.substring(0, separator);
+                afterId = String.valueOf(Long.parseLong(after.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid page position: " + uri);
+            }
+
+            // Written as a range on the name plus a tie-break on the id, so SQLite can seek
+            // the name index straight to the start of the page
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE >= ? AND ("
+                            + TeaEntry.COLUMN_TEA_NAME + " COLLATE NOCASE > ? OR "
+                            + TeaEntry._ID + " > ?)");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { afterName, afterName, afterId });
+            sortOrder = TeaEntry.PAGE_SORT_ORDER;
+        }
+
+        return database.query(TeaEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, sortOrder, limit);
+    }
+
+    /**
+     * Returns the global stock threshold given in the query parameter of the low stock URI,
+     * or {@link TeaEntry#DEFAULT_REORDER_LEVEL} if there is none.
+     */
+    private static int parseThreshold(Uri uri) {
+        String threshold = uri.getQueryParameter(TeaEntry.QUERY_PARAMETER_THRESHOLD);
+        if (threshold == null) {
+            return TeaEntry.DEFAULT_REORDER_LEVEL;
+        }
+        try {
+            return Integer.parseInt(threshold);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid stock threshold: " + uri);
+        }
+    }
+
+    /**
+     * Turn the search text typed by the user into a full-text MATCH query. Every word becomes
+     * a prefix term, and anything that isn't a letter or a digit is dropped so the text can't
+     * be read as query syntax. Returns an empty string if there is nothing to search for.
+     */
+    private static String buildMatchQuery(String searchText) {
+        if (searchText == null) {
+            return "";
+        }
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : searchText.split("\\s+")) {
+            StringBuilder term = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    term.append(c);
+                }
+            }
+            if (term.length() != 0) {
+                if (matchQuery.length() != 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append(term).append('*');
+            }
+        }
+        return matchQuery.toString();
     }
 
     @Override
@@ -124,6 +498,41 @@ public class TeaProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertTea(Uri uri, ContentValues values) {
+        validateTea(values);
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Insert the new tea with the given values. Its stock is recorded in the ledger as an
+        // edit, in the same transaction.
+        long id;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_EDIT);
+            id = database.insert(TeaEntry.TABLE_NAME, null, values);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Notify all listeners that the new tea has been added
+        Uri teaUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(teaUri);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return teaUri;
+    }
+
+    /**
+     * Check that the given content values describe a valid new tea, throwing an
+     * {@link IllegalArgumentException} otherwise.
+     */
+    private void validateTea(ContentValues values) {
         // Check that the name is not null
         String name = values.getAsString(TeaEntry.COLUMN_TEA_NAME);
         if (name == null) {
@@ -136,9 +545,9 @@ public class TeaProvider extends ContentProvider {
             throw new IllegalArgumentException("Tea requires valid type");
         }
 
-        // Check that price is not null
+        // Check that price, if given, is not negative (the column defaults to 0)
         Float price = values.getAsFloat(TeaEntry.COLUMN_TEA_PRICE);
-        if (price == null && price < 0) {
+        if (price != null && price < 0) {
             throw new IllegalArgumentException("Tea requires valid price");
         }
 
@@ -148,24 +557,110 @@ public class TeaProvider extends ContentProvider {
             throw new IllegalArgumentException("Tea quantity must be more than 0");
         }
 
+        // Check that the reorder level, if given, is not negative
+        Integer reorderLevel = values.getAsInteger(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+        if (reorderLevel != null && reorderLevel < 0) {
+            throw new IllegalArgumentException("Tea reorder level must not be negative");
+        }
+
+        // Check that the SKU, if given, is not empty
+        TeaRecord.validateSku(values.getAsString(TeaEntry.COLUMN_TEA_SKU));
+
         // Picture input is optional
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case TEAS:
+                return bulkInsertTeas(uri, values);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert all of the given teas in a single transaction. Every row goes through the same
+     * checks as {@link #insertTea}, but the rows are written through one reused compiled
+     * statement and listeners are notified once at the end instead of once per row.
+     * Return the number of rows that were inserted.
+     */
+    private int bulkInsertTeas(Uri uri, ContentValues[] values) {
+        // Validate every row first, so a bad row fails the batch before anything is written
+        for (ContentValues teaValues : values) {
+            validateTea(teaValues);
+        }
 
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert the new tea with the given values
-        long id = database.insert(TeaEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        int rowsInserted = 0;
+        SQLiteStatement statement = database.compileStatement(SQL_INSERT_TEA);
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_EDIT);
+            for (ContentValues teaValues : values) {
+                bindTea(statement, teaValues);
+                if (executeInsert(statement) != -1) {
+                    rowsInserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
         }
 
-        // Notify all listeners that the data has changed for the tea content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Notify all listeners once that the data has changed for the tea content URI
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+        // Return the number of rows inserted
+        return rowsInserted;
+    }
+
+    /**
+     * Bind the given (already validated) content values onto {@link #SQL_INSERT_TEA}.
+     * A missing price falls back to the column default of 0, a missing quantity is bound as
+     * NULL so the NOT NULL constraint rejects the row just like {@link #insertTea} would.
+     */
+    private static void bindTea(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        statement.bindString(1, values.getAsString(TeaEntry.COLUMN_TEA_NAME));
+        statement.bindLong(2, values.getAsInteger(TeaEntry.COLUMN_TEA_TYPE));
+
+        Double price = values.getAsDouble(TeaEntry.COLUMN_TEA_PRICE);
+        statement.bindDouble(3, price == null ? 0 : price);
+
+        Integer quantity = values.getAsInteger(TeaEntry.COLUMN_TEA_QUANTITY);
+        if (quantity == null) {
+            statement.bindNull(4);
+        } else {
+            statement.bindLong(4, quantity);
+        }
+
+        String image = values.getAsString(TeaEntry.COLUMN_TEA_IMAGE);
+        if (image == null) {
+            statement.bindNull(5);
+        } else {
+            statement.bindString(5, image);
+        }
+
+        Integer reorderLevel = values.getAsInteger(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+        if (reorderLevel == null) {
+            statement.bindNull(6);
+        } else {
+            statement.bindLong(6, reorderLevel);
+        }
+
+        String sku = values.getAsString(TeaEntry.COLUMN_TEA_SKU);
+        if (sku == null) {
+            statement.bindNull(7);
+        } else {
+            statement.bindString(7, sku);
+        }
     }
 
     @Override
@@ -229,6 +724,19 @@ public class TeaProvider extends ContentProvider {
             }
         }
 
+        if (values.containsKey(TeaEntry.COLUMN_TEA_REORDER_LEVEL)) {
+            // Check that the reorder level, if given, is not negative (null clears it)
+            Integer reorderLevel = values.getAsInteger(TeaEntry.COLUMN_TEA_REORDER_LEVEL);
+            if (reorderLevel != null && reorderLevel < 0) {
+                throw new IllegalArgumentException("Tea reorder level must not be negative");
+            }
+        }
+
+        if (values.containsKey(TeaEntry.COLUMN_TEA_SKU)) {
+            // Check that the SKU, if given, is not empty (null clears it)
+            TeaRecord.validateSku(values.getAsString(TeaEntry.COLUMN_TEA_SKU));
+        }
+
         // No need to check the picture, any value is valid (including null).
 
         // If there are no values to update, then don't try to update the database
@@ -239,13 +747,30 @@ public class TeaProvider extends ContentProvider {
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(TeaEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. Like a
+        // failed insert, a SKU that already belongs to another tea updates nothing. A failed
+        // statement leaves nothing behind, so the transaction, which only keeps the ledger
+        // source together with the changes, is committed either way.
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_EDIT);
+            try {
+                rowsUpdated = database.update(TeaEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+            } catch (SQLiteConstraintException e) {
+                Log.e(LOG_TAG, "Failed to update rows for " + uri, e);
+                rowsUpdated = 0;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows updated
@@ -257,43 +782,772 @@ public class TeaProvider extends ContentProvider {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Track the number of rows that were deleted
-        int rowsDeleted;
-
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case TEAS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(TeaEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case TEA_ID:
                 // Delete a single row given by the ID in the URI
                 selection = TeaEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(TeaEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
+        // Track the number of rows that were deleted. The stock they still held is recorded
+        // in the ledger as an edit, in the same transaction.
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_EDIT);
+            rowsDeleted = database.delete(TeaEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /** Methods of {@link #call} that read their parameters from the extras */
+    private static final Set<String> METHODS_WITH_EXTRAS = new HashSet<String>(Arrays.asList(
+            TeaContract.METHOD_SELL,
+            TeaContract.METHOD_SELL_AVAILABLE,
+            TeaContract.METHOD_SELL_SKU,
+            TeaContract.METHOD_CHECKOUT,
+            TeaContract.METHOD_INSERT_TEAS,
+            TeaContract.METHOD_UPDATE_TEAS,
+            TeaContract.METHOD_MERGE_TEAS));
+
+    /** Methods of {@link #call} that take their parameter as the argument */
+    private static final Set<String> METHODS_WITH_ARG = new HashSet<String>(Arrays.asList(
+            TeaContract.METHOD_BACKUP,
+            TeaContract.METHOD_RESTORE,
+            TeaContract.METHOD_COMPACT_SALES));
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // Check the parameters are there before any method reads them
+        if (extras == null && METHODS_WITH_EXTRAS.contains(method)) {
+            throw new IllegalArgumentException(method + " requires extras");
+        }
+        if (TextUtils.isEmpty(arg) && METHODS_WITH_ARG.contains(method)) {
+            throw new IllegalArgumentException(method + " requires an argument");
+        }
+
+        if (TeaContract.METHOD_SELL.equals(method)) {
+            long teaId = extras.getLong(TeaContract.EXTRA_TEA_ID, -1);
+            int quantity = extras.getInt(TeaContract.EXTRA_QUANTITY, 1);
+
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_STOCK, sellTea(teaId, quantity));
+            return result;
+        } else if (TeaContract.METHOD_SELL_AVAILABLE.equals(method)) {
+            long teaId = extras.getLong(TeaContract.EXTRA_TEA_ID, -1);
+            int quantity = extras.getInt(TeaContract.EXTRA_QUANTITY, 1);
+            String token = extras.getString(TeaContract.EXTRA_SALE_TOKEN);
+            int[] sold = sellAvailable(teaId, quantity, token);
+
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_QUANTITY, sold[0]);
+            result.putInt(TeaContract.EXTRA_STOCK, sold[1]);
+            return result;
+        } else if (TeaContract.METHOD_SELL_SKU.equals(method)) {
+            String sku = extras.getString(TeaContract.EXTRA_SKU);
+            int quantity = extras.getInt(TeaContract.EXTRA_QUANTITY, 1);
+            long[] sold = sellTeaBySku(sku, quantity);
+
+            Bundle result = new Bundle();
+            result.putLong(TeaContract.EXTRA_TEA_ID, sold[0]);
+            result.putInt(TeaContract.EXTRA_STOCK, (int) sold[1]);
+            return result;
+        } else if (TeaContract.METHOD_CHECKOUT.equals(method)) {
+            long[] teaIds = extras.getLongArray(TeaContract.EXTRA_TEA_IDS);
+            int[] quantities = extras.getIntArray(TeaContract.EXTRA_QUANTITIES);
+            int[] stocks = new int[teaIds == null ? 0 : teaIds.length];
+
+            Bundle result = new Bundle();
+            result.putBoolean(TeaContract.EXTRA_CHECKED_OUT, checkout(teaIds, quantities, stocks));
+            result.putIntArray(TeaContract.EXTRA_STOCKS, stocks);
+            return result;
+        } else if (TeaContract.METHOD_INSERT_TEAS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLongArray(TeaContract.EXTRA_TEA_IDS,
+                    insertTeaRecords(TeaRecord.Batch.readFrom(extras), salesSourceOf(extras)));
+            return result;
+        } else if (TeaContract.METHOD_UPDATE_TEAS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_COUNT,
+                    updateTeaRecords(TeaRecord.Batch.readFrom(extras), salesSourceOf(extras)));
+            return result;
+        } else if (TeaContract.METHOD_MERGE_TEAS.equals(method)) {
+            int[] counts = mergeTeaRecords(TeaRecord.Batch.readFrom(extras),
+                    extras.getBoolean(TeaContract.EXTRA_MERGE_QUANTITY),
+                    extras.getBoolean(TeaContract.EXTRA_NOTIFY, true));
+
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_INSERTED, counts[MERGE_INSERTED]);
+            result.putInt(TeaContract.EXTRA_UPDATED, counts[MERGE_UPDATED]);
+            result.putInt(TeaContract.EXTRA_UNCHANGED, counts[MERGE_UNCHANGED]);
+            result.putInt(TeaContract.EXTRA_SKIPPED, counts[MERGE_SKIPPED]);
+            return result;
+        } else if (TeaContract.METHOD_BACKUP.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_COUNT, backup(new File(arg)));
+            return result;
+        } else if (TeaContract.METHOD_RESTORE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_COUNT, restore(new File(arg)));
+            return result;
+        } else if (TeaContract.METHOD_COMPACT_SALES.equals(method)) {
+            Bundle result = new Bundle();
+            long before;
+            try {
+                before = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(method + " requires a time, not " + arg);
+            }
+            result.putInt(TeaContract.EXTRA_COUNT, compactSales(before));
+            return result;
+        } else if (TeaContract.METHOD_SET_QUERY_CACHE_ENABLED.equals(method)) {
+            mQueryCache.setEnabled(Boolean.parseBoolean(arg));
+            return null;
+        } else if (TeaContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(TeaContract.EXTRA_CACHE_HITS, mQueryCache.getHitCount());
+            result.putInt(TeaContract.EXTRA_CACHE_MISSES, mQueryCache.getMissCount());
+            result.putFloat(TeaContract.EXTRA_CACHE_HIT_RATIO, mQueryCache.getHitRatio());
+            result.putInt(TeaContract.EXTRA_CACHE_ENTRIES, mQueryCache.getEntryCount());
+            result.putInt(TeaContract.EXTRA_CACHE_BYTES, mQueryCache.getByteCount());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Sell the given number of units of a tea, decrementing its stock in SQL so that concurrent
+     * sales can't lose updates. Return the new stock level, or -1 if the tea doesn't exist or
+     * there are not enough units in stock.
+     */
+    private int sellTea(long teaId, int quantity) {
+        // Check that we are selling at least one unit
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Sale quantity must be more than 0");
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int stock = -1;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_SALE);
+            SQLiteStatement sell = database.compileStatement(SQL_SELL_TEA);
+            try {
+                sell.bindLong(1, quantity);
+                sell.bindLong(2, teaId);
+                sell.bindLong(3, quantity);
+                if (sell.executeUpdateDelete() != 0) {
+                    stock = (int) DatabaseUtils.longForQuery(database, SQL_QUERY_QUANTITY,
+                            new String[] { String.valueOf(teaId) });
+                }
+            } finally {
+                sell.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If the sale went through, notify all listeners that this tea has changed
+        if (stock != -1) {
+            notifyChange(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId));
+        }
+        return stock;
+    }
+
+    /**
+     * Sell as many of the given number of units of a tea as it has in stock. The stock is read
+     * and decremented in one transaction, so no other sale can take the units in between.
+     * Return the number of units sold and the new stock level, or 0 and -1 if the tea doesn't
+     * exist. A sale with a token, or null for none, is recorded in the ledger with it; if the
+     * token was recorded already, nothing is sold and the units sold then are returned.
+     */
+    private int[] sellAvailable(long teaId, int quantity, String token) {
+        // Check that we are selling at least one unit
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Sale quantity must be more than 0");
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int[] sold = { 0, -1 };
+        boolean made = false;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_SALE, token);
+            String[] teaIdArgs = { String.valueOf(teaId) };
+            Cursor cursor = database.rawQuery(SQL_QUERY_QUANTITY, teaIdArgs);
+            try {
+                if (cursor.moveToFirst()) {
+                    sold[1] = cursor.getInt(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            // The ledger entry holding the token is written with the decrement, so a sale
+            // replayed after it was made finds it and isn't made twice
+            Integer madeDelta = token == null ? null : SalesLedger.findTokenDelta(database, token);
+            if (madeDelta != null) {
+                sold[0] = -madeDelta;
+                made = true;
+            } else {
+                sold[0] = Math.max(0, Math.min(quantity, sold[1]));
+            }
+            if (!made && sold[0] > 0) {
+                SQLiteStatement sell = database.compileStatement(SQL_SELL_TEA);
+                try {
+                    sell.bindLong(1, sold[0]);
+                    sell.bindLong(2, teaId);
+                    sell.bindLong(3, sold[0]);
+                    sell.executeUpdateDelete();
+                } finally {
+                    sell.close();
+                }
+                sold[1] -= sold[0];
+            }
+            // Clear the token, so no later change can be recorded with it
+            SalesLedger.setSource(database, SalesEntry.SOURCE_SALE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (!made && sold[0] > 0) {
+            notifyChange(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaId));
+        }
+        return sold;
+    }
+
+    /**
+     * Sell the given number of units of the tea with the given SKU. The tea is found and
+     * decremented by one statement, {@link #SQL_SELL_SKU}, so a scan costs one index lookup
+     * and no query has to find the tea first. Only once the sale went through is the tea read
+     * back, in the same transaction, for its id and new stock level. Return both, or -1 for
+     * both if no tea has the SKU or there are not enough units in stock.
+     */
+    private long[] sellTeaBySku(String sku, int quantity) {
+        // Check that we are selling at least one unit of a valid SKU
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Sale quantity must be more than 0");
+        }
+        if (sku == null) {
+            throw new IllegalArgumentException("Sale requires a SKU");
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long[] sold = { -1, -1 };
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_SALE);
+            SQLiteStatement sell = database.compileStatement(SQL_SELL_SKU);
+            try {
+                sell.bindLong(1, quantity);
+                sell.bindString(2, sku);
+                sell.bindLong(3, quantity);
+                if (sell.executeUpdateDelete() != 0) {
+                    Cursor cursor = database.rawQuery(SQL_QUERY_SKU, new String[] { sku });
+                    try {
+                        cursor.moveToFirst();
+                        sold[0] = cursor.getLong(0);
+                        sold[1] = cursor.getLong(1);
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            } finally {
+                sell.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If the sale went through, notify all listeners that this tea has changed
+        if (sold[0] != -1) {
+            notifyChange(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, sold[0]));
+        }
+        return sold;
+    }
+
+    /**
+     * Sell a basket of teas in a single transaction: the given number of units of the tea with
+     * the same index, for every line. Every line is decremented with {@link #SQL_SELL_TEA}, so
+     * the stock checks and the writes of the whole basket happen under one write lock, and a
+     * single change is notified once it commits. If any line can't be sold, the transaction is
+     * rolled back and nothing is sold.
+     *
+     * The stock level of each line's tea afterwards is put into the given array, with -1 for
+     * the lines that couldn't be sold. Returns whether the basket was sold.
+     */
+    private boolean checkout(long[] teaIds, int[] quantities, int[] stocks) {
+        // Check the whole basket before touching the database
+        if (teaIds == null || quantities == null || teaIds.length != quantities.length) {
+            throw new IllegalArgumentException("Checkout needs a quantity for every tea");
+        }
+        if (teaIds.length == 0) {
+            throw new IllegalArgumentException("Checkout needs at least one tea");
+        }
+        for (int quantity : quantities) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Sale quantity must be more than 0");
+            }
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        boolean checkedOut = true;
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_SALE);
+            SQLiteStatement sell = database.compileStatement(SQL_SELL_TEA);
+            SQLiteStatement queryQuantity = database.compileStatement(SQL_QUERY_QUANTITY);
+            try {
+                // Go through every line even after one fails, to report all that can't be sold
+                for (int i = 0; i < teaIds.length; i++) {
+                    sell.bindLong(1, quantities[i]);
+                    sell.bindLong(2, teaIds[i]);
+                    sell.bindLong(3, quantities[i]);
+                    if (sell.executeUpdateDelete() == 0) {
+                        stocks[i] = -1;
+                        checkedOut = false;
+                    } else if (checkedOut) {
+                        queryQuantity.bindLong(1, teaIds[i]);
+                        stocks[i] = (int) queryQuantity.simpleQueryForLong();
+                    }
+                }
+            } finally {
+                sell.close();
+                queryQuantity.close();
+            }
+            if (checkedOut) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+
+        if (!checkedOut) {
+            // Nothing was sold, report the stock of the lines that could have been
+            for (int i = 0; i < teaIds.length; i++) {
+                if (stocks[i] != -1) {
+                    stocks[i] = (int) DatabaseUtils.longForQuery(database, SQL_QUERY_QUANTITY,
+                            new String[] { String.valueOf(teaIds[i]) });
+                }
+            }
+            return false;
+        }
+
+        // Notify the listeners once for the whole basket
+        notifyChange(isSingleTea(teaIds)
+                ? ContentUris.withAppendedId(TeaEntry.CONTENT_URI, teaIds[0])
+                : TeaEntry.CONTENT_URI);
+        return true;
+    }
+
+    /** Returns whether every line of a basket is for the same tea */
+    private static boolean isSingleTea(long[] teaIds) {
+        for (long teaId : teaIds) {
+            if (teaId != teaIds[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the source for the sales ledger passed in {@link TeaContract#EXTRA_SALES_SOURCE},
+     * {@link SalesEntry#SOURCE_EDIT} if there is none. Throws an
+     * {@link IllegalArgumentException} for anything other than one of the SOURCE_* values.
+     */
+    private static String salesSourceOf(Bundle extras) {
+        String source = extras.getString(TeaContract.EXTRA_SALES_SOURCE);
+        if (source == null) {
+            return SalesEntry.SOURCE_EDIT;
+        }
+        if (!SalesEntry.SOURCE_EDIT.equals(source) && !SalesEntry.SOURCE_IMPORT.equals(source)
+                && !SalesEntry.SOURCE_SALE.equals(source)) {
+            throw new IllegalArgumentException("Unknown sales ledger source " + source);
+        }
+        return source;
+    }
+
+    /**
+     * Insert every tea in the given batch in a single transaction, binding the typed fields
+     * straight onto {@link #SQL_INSERT_TEA}. The teas go through the same checks as
+     * {@link #insertTea}, all of them before anything is written. The changes of stock are
+     * recorded in the sales ledger with the given source. Return the ids of the new teas, -1
+     * for any the database refused.
+     */
+    private long[] insertTeaRecords(TeaRecord.Batch batch, String source) {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            validateTeaRecord(batch, i);
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long[] ids = new long[size];
+        SQLiteStatement statement = database.compileStatement(SQL_INSERT_TEA);
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, source);
+            for (int i = 0; i < size; i++) {
+                bindTeaRecord(statement, batch, i);
+                ids[i] = executeInsert(statement);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+
+        // Notify listeners of a single tea by its own URI, so they can patch it in
+        if (size == 1 && ids[0] != -1) {
+            notifyChange(ContentUris.withAppendedId(TeaEntry.CONTENT_URI, ids[0]));
+        } else if (size > 1) {
+            notifyChange(TeaEntry.CONTENT_URI);
+        }
+        return ids;
+    }
+
+    /**
+     * Replace every field of the teas in the given batch, each by its id, in a single
+     * transaction through {@link #SQL_UPDATE_TEA}. The teas go through the same checks as
+     * {@link #insertTea}, all of them before anything is written. The changes of stock are
+     * recorded in the sales ledger with the given source. Return the number of teas updated.
+     */
+    private int updateTeaRecords(TeaRecord.Batch batch, String source) {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            validateTeaRecord(batch, i);
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int rowsUpdated = 0;
+        SQLiteStatement statement = database.compileStatement(SQL_UPDATE_TEA);
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, source);
+            for (int i = 0; i < size; i++) {
+                bindTeaRecord(statement, batch, i);
+                statement.bindLong(8, batch.id(i));
+                rowsUpdated += executeUpdateDelete(statement);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+
+        // Notify listeners of a single tea by its own URI, so they can patch it in
+        if (rowsUpdated != 0) {
+            notifyChange(size == 1
+                    ? ContentUris.withAppendedId(TeaEntry.CONTENT_URI, batch.id(0))
+                    : TeaEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Write a gzipped snapshot of the database to the given file with {@link TeaBackup}.
+     * Return the number of teas backed up, or -1 if the backup failed.
+     */
+    private int backup(File target) {
+        // Opening the database here makes sure it exists, on the current schema
+        File database = new File(mDbHelper.getWritableDatabase().getPath());
+        try {
+            return TeaBackup.backup(database, target);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to back up to " + target, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Replace every tea with those of the backup in the given file with {@link TeaBackup}.
+     * Return the number of teas restored, or -1 if the file couldn't be restored.
+     */
+    private int restore(File source) {
+        int teaCount;
+        try {
+            teaCount = TeaBackup.restore(source, mDbHelper.getWritableDatabase());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to restore from " + source, e);
+            return -1;
+        }
+        // Any tea may have changed, so this drops every cached result
+        notifyChange(TeaEntry.CONTENT_URI);
+        return teaCount;
+    }
+
+    /**
+     * Fold the sales ledger entries recorded before the given time into the snapshots of their
+     * teas with {@link SalesLedger}. Return the number of entries folded.
+     */
+    private int compactSales(long before) {
+        int folded = SalesLedger.compact(mDbHelper.getWritableDatabase(), before);
+        // Only the ledger has changed, but that can't be told apart from the teas in the cache
+        if (folded != 0) {
+            notifyChange(SalesEntry.CONTENT_URI);
+        }
+        return folded;
+    }
+
+    /** Positions of the outcome counts returned by {@link #mergeTeaRecords} */
+    private static final int MERGE_INSERTED = 0;
+    private static final int MERGE_UPDATED = 1;
+    private static final int MERGE_UNCHANGED = 2;
+    private static final int MERGE_SKIPPED = 3;
+
+    /**
+     * Merge the price list in the given batch into the teas in a single transaction. Each line
+     * is matched by its SKU through {@link TeaDbHelper#INDEX_TEAS_SKU}, or by its name through
+     * {@link TeaDbHelper#INDEX_TEAS_NAME} if it has none. The matching teas take the line's
+     * price, and its quantity if mergeQuantity is set; a line matching no tea is inserted
+     * through {@link #SQL_INSERT_TEA}, unless it has no valid type or the database refuses it.
+     *
+     * SQLite only has an upsert from 3.24, which older devices don't ship, so each line is an
+     * update that skips teas already holding its values, followed by an existence check only
+     * when nothing was updated, and an insert only when nothing exists. Every statement is
+     * compiled once per batch. Return the number of lines by outcome, indexed by the MERGE_*
+     * positions.
+     */
+    private int[] mergeTeaRecords(TeaRecord.Batch batch, boolean mergeQuantity, boolean notify) {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            TeaRecord.validateMergeLine(batch.name(i), batch.type(i), batch.price(i),
+                    batch.quantity(i), batch.reorderLevel(i), batch.sku(i));
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int[] counts = new int[4];
+        SQLiteStatement updateBySku =
+                database.compileStatement(buildMergeUpdate(KEY_SKU, mergeQuantity));
+        SQLiteStatement updateByName =
+                database.compileStatement(buildMergeUpdate(KEY_NAME, mergeQuantity));
+        SQLiteStatement existsBySku = database.compileStatement(buildMergeExists(KEY_SKU));
+        SQLiteStatement existsByName = database.compileStatement(buildMergeExists(KEY_NAME));
+        SQLiteStatement insert = database.compileStatement(SQL_INSERT_TEA);
+        database.beginTransaction();
+        try {
+            SalesLedger.setSource(database, SalesEntry.SOURCE_IMPORT);
+            for (int i = 0; i < size; i++) {
+                String sku = batch.sku(i);
+                String key = sku == null ? batch.name(i) : sku;
+                SQLiteStatement update = sku == null ? updateByName : updateBySku;
+                SQLiteStatement exists = sku == null ? existsByName : existsBySku;
+
+                update.bindDouble(1, batch.price(i));
+                if (mergeQuantity) {
+                    update.bindLong(2, batch.quantity(i));
+                    update.bindString(3, key);
+                } else {
+                    update.bindString(2, key);
+                }
+                if (update.executeUpdateDelete() != 0) {
+                    counts[MERGE_UPDATED]++;
+                    continue;
+                }
+
+                exists.bindString(1, key);
+                if (exists.simpleQueryForLong() != 0) {
+                    counts[MERGE_UNCHANGED]++;
+                } else if (TeaEntry.isValidType(batch.type(i))) {
+                    bindTeaRecord(insert, batch, i);
+                    counts[executeInsert(insert) != -1 ? MERGE_INSERTED : MERGE_SKIPPED]++;
+                } else {
+                    counts[MERGE_SKIPPED]++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            updateBySku.close();
+            updateByName.close();
+            existsBySku.close();
+            existsByName.close();
+            insert.close();
+        }
+
+        // A caller merging a long price list in several batches notifies once at the end, but
+        // the cache mustn't keep serving the old prices in between
+        if (counts[MERGE_INSERTED] != 0 || counts[MERGE_UPDATED] != 0) {
+            if (notify) {
+                notifyChange(TeaEntry.CONTENT_URI);
+            } else {
+                mQueryCache.invalidateAll();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Run the given compiled insert of one tea. Return the id of the new tea, or -1 if the
+     * database refused it, such as a tea with the SKU of another. Like
+     * {@link SQLiteDatabase#insert}, only that tea is given up: the statement is rolled back on
+     * its own, and the transaction around it carries on.
+     */
+    private static long executeInsert(SQLiteStatement statement) {
+        try {
+            return statement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            Log.w(LOG_TAG, "Tea refused by the database: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Run the given compiled update of one tea. Return the number of teas updated, 0 if the
+     * database refused the change, with the same rollback as {@link #executeInsert}.
+     */
+    private static int executeUpdateDelete(SQLiteStatement statement) {
+        try {
+            return statement.executeUpdateDelete();
+        } catch (SQLiteConstraintException e) {
+            Log.w(LOG_TAG, "Tea change refused by the database: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Check that the tea at the given position of the batch is valid, with the same rules as
+     * {@link #validateTea}, throwing an {@link IllegalArgumentException} otherwise.
+     */
+    private static void validateTeaRecord(TeaRecord.Batch batch, int position) {
+        TeaRecord.validate(batch.name(position), batch.type(position), batch.price(position),
+                batch.quantity(position), batch.reorderLevel(position), batch.sku(position));
+    }
+
+    /**
+     * Bind the tea at the given position of the (already validated) batch onto the first seven
+     * parameters of {@link #SQL_INSERT_TEA} or {@link #SQL_UPDATE_TEA}, which take the columns
+     * in the same order.
+     */
+    private static void bindTeaRecord(SQLiteStatement statement, TeaRecord.Batch batch,
+                                      int position) {
+        statement.bindString(1, batch.name(position));
+        statement.bindLong(2, batch.type(position));
+        statement.bindDouble(3, batch.price(position));
+        statement.bindLong(4, batch.quantity(position));
+
+        String image = batch.image(position);
+        if (image == null) {
+            statement.bindNull(5);
+        } else {
+            statement.bindString(5, image);
+        }
+
+        int reorderLevel = batch.reorderLevel(position);
+        if (reorderLevel == TeaRecord.NO_REORDER_LEVEL) {
+            statement.bindNull(6);
+        } else {
+            statement.bindLong(6, reorderLevel);
+        }
+
+        String sku = batch.sku(position);
+        if (sku == null) {
+            statement.bindNull(7);
+        } else {
+            statement.bindString(7, sku);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Run every operation inside one transaction. The operations still go through
+        // insert/update/delete one by one, so back-references keep working, but their
+        // notifications are collected instead of being sent straight away.
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        mBatchChanges.set(changedUris);
+        ContentProviderResult[] results;
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        // The batch has committed, so notify every affected URI exactly once
+        for (Uri changedUri : changedUris) {
+            notifyChange(changedUri);
+        }
+        return results;
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed, and drop the cached
+     * results it affects. If an {@link #applyBatch} is running on this thread, both are
+     * deferred until the batch commits.
+     *
+     * This is only called once the change has committed. A reader could otherwise still see
+     * the old rows after the cache was invalidated, and cache them again.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+            return;
+        }
+        if (sUriMatcher.match(uri) == TEA_ID) {
+            mQueryCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mQueryCache.invalidateAll();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case TEAS:
+            case TEAS_SEARCH:
+            case LOW_STOCK:
                 return TeaEntry.CONTENT_LIST_TYPE;
             case TEA_ID:
+            case TEA_SKU:
                 return TeaEntry.CONTENT_ITEM_TYPE;
+            case STATS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case SALES:
+                return SalesEntry.CONTENT_LIST_TYPE;
+            case SALES_SNAPSHOTS:
+                return SalesSnapshotEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
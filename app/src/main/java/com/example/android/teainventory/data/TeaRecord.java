@@ -0,0 +1,304 @@
+package com.example.android.teainventory.data;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * A tea as plain typed fields, for writers that save many teas at a high rate, such as
+ * scanners and imports. Unlike {@link android.content.ContentValues}, nothing is boxed or
+ * keyed by column name. Teas are written in a {@link Batch}, which packs the fields of every
+ * tea into one array per column and is sent to the provider through
+ * {@link TeaContract#insertTeas} or {@link TeaContract#updateTeas}.
+ */
+public class TeaRecord {
+
+    /** Value of {@link #reorderLevel} for a tea that uses the default threshold */
+    public static final int NO_REORDER_LEVEL = -1;
+
+    /**
+     * Value of {@link #type} for a price list line that doesn't give one. Only merges accept
+     * it, for lines matching teas that already exist.
+     */
+    public static final int NO_TYPE = -1;
+
+    /** Id of the tea, only used for updates */
+    public long id;
+
+    /** Name of the tea, required */
+    public String name;
+
+    /** Type of the tea, one of the TeaEntry.TYPE_* values, or {@link #NO_TYPE} in a merge */
+    public int type;
+
+    /** Price of the tea, not negative */
+    public double price;
+
+    /** Number of units in stock, not negative */
+    public int quantity;
+
+    /** URI of the tea's image, or null if it has none */
+    public String image;
+
+    /** Reorder level of the tea, or {@link #NO_REORDER_LEVEL} */
+    public int reorderLevel = NO_REORDER_LEVEL;
+
+    /** SKU of the tea, or null if it has none */
+    public String sku;
+
+    /**
+     * Check that this tea can be written, by the same rules the provider applies to every tea
+     * it is sent, throwing an {@link IllegalArgumentException} otherwise. Lets a writer drop
+     * an invalid tea instead of having the provider reject its whole batch.
+     */
+    public void validate() {
+        validate(name, type, price, quantity, reorderLevel, sku);
+    }
+
+    /**
+     * Check that this price list line can be merged, by the rules the provider applies to
+     * every line it is sent, throwing an {@link IllegalArgumentException} otherwise. The type
+     * may be {@link #NO_TYPE}.
+     */
+    public void validateMergeLine() {
+        validateMergeLine(name, type, price, quantity, reorderLevel, sku);
+    }
+
+    /**
+     * Check that a tea with the given fields can be written, throwing an
+     * {@link IllegalArgumentException} otherwise.
+     */
+    static void validate(String name, int type, double price, int quantity, int reorderLevel,
+                         String sku) {
+        validate(name, type, price, quantity, reorderLevel, sku, false);
+    }
+
+    /**
+     * Check that a price list line with the given fields can be merged, throwing an
+     * {@link IllegalArgumentException} otherwise. The rules are those of
+     * {@link #validate(String, int, double, int, int, String)}, except that the type may be
+     * {@link #NO_TYPE}; such a line can only update teas that exist.
+     */
+    static void validateMergeLine(String name, int type, double price, int quantity,
+                                  int reorderLevel, String sku) {
+        validate(name, type, price, quantity, reorderLevel, sku, true);
+    }
+
+    private static void validate(String name, int type, double price, int quantity,
+                                 int reorderLevel, String sku, boolean allowNoType) {
+        if (name == null) {
+            throw new IllegalArgumentException("Tea requires a name");
+        }
+        if (!TeaContract.TeaEntry.isValidType(type) && !(allowNoType && type == NO_TYPE)) {
+            throw new IllegalArgumentException("Tea requires valid type");
+        }
+        if (price < 0) {
+            throw new IllegalArgumentException("Tea requires valid price");
+        }
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Tea quantity must be more than 0");
+        }
+        if (reorderLevel < 0 && reorderLevel != NO_REORDER_LEVEL) {
+            throw new IllegalArgumentException("Tea reorder level must not be negative");
+        }
+        validateSku(sku);
+    }
+
+    /**
+     * Check that the given SKU is either null or a code, throwing an
+     * {@link IllegalArgumentException} otherwise.
+     */
+    static void validateSku(String sku) {
+        if (sku != null && sku.trim().length() == 0) {
+            throw new IllegalArgumentException("Tea SKU must not be empty");
+        }
+    }
+
+    /**
+     * Teas packed into one array per column. A batch can be cleared and filled again, so a
+     * writer can reuse the same arrays for every batch it sends.
+     */
+    public static class Batch {
+
+        /** Bundle keys of the packed columns */
+        static final String KEY_SIZE = "size";
+        static final String KEY_IDS = "ids";
+        static final String KEY_NAMES = "names";
+        static final String KEY_TYPES = "types";
+        static final String KEY_PRICES = "prices";
+        static final String KEY_QUANTITIES = "quantities";
+        static final String KEY_IMAGES = "images";
+        static final String KEY_REORDER_LEVELS = "reorder_levels";
+        static final String KEY_SKUS = "skus";
+
+        private int mSize;
+        private long[] mIds;
+        private String[] mNames;
+        private int[] mTypes;
+        private double[] mPrices;
+        private int[] mQuantities;
+        private String[] mImages;
+        private int[] mReorderLevels;
+        private String[] mSkus;
+
+        /** Constructs a batch whose arrays are filled in by {@link #readFrom} */
+        private Batch() {}
+
+        /**
+         * Constructs a new, empty {@link Batch} with room for the given number of teas. It
+         * grows as needed.
+         */
+        public Batch(int capacity) {
+            int initialCapacity = Math.max(capacity, 1);
+            mIds = new long[initialCapacity];
+            mNames = new String[initialCapacity];
+            mTypes = new int[initialCapacity];
+            mPrices = new double[initialCapacity];
+            mQuantities = new int[initialCapacity];
+            mImages = new String[initialCapacity];
+            mReorderLevels = new int[initialCapacity];
+            mSkus = new String[initialCapacity];
+        }
+
+        /** Returns the number of teas in the batch */
+        public int size() {
+            return mSize;
+        }
+
+        /** Empty the batch, keeping its arrays */
+        public void clear() {
+            // Drop the strings, so they can be collected
+            Arrays.fill(mNames, 0, mSize, null);
+            Arrays.fill(mImages, 0, mSize, null);
+            Arrays.fill(mSkus, 0, mSize, null);
+            mSize = 0;
+        }
+
+        /** Add a copy of the given tea to the batch */
+        public void add(TeaRecord record) {
+            add(record.id, record.name, record.type, record.price, record.quantity, record.image,
+                    record.reorderLevel, record.sku);
+        }
+
+        /** Add a tea with the given fields to the batch */
+        public void add(long id, String name, int type, double price, int quantity, String image,
+                        int reorderLevel, String sku) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            mIds[mSize] = id;
+            mNames[mSize] = name;
+            mTypes[mSize] = type;
+            mPrices[mSize] = price;
+            mQuantities[mSize] = quantity;
+            mImages[mSize] = image;
+            mReorderLevels[mSize] = reorderLevel;
+            mSkus[mSize] = sku;
+            mSize++;
+        }
+
+        /** Copy the tea at the given position into the given record */
+        public void get(int position, TeaRecord record) {
+            if (position < 0 || position >= mSize) {
+                throw new IndexOutOfBoundsException("Position " + position + " of " + mSize);
+            }
+            record.id = mIds[position];
+            record.name = mNames[position];
+            record.type = mTypes[position];
+            record.price = mPrices[position];
+            record.quantity = mQuantities[position];
+            record.image = mImages[position];
+            record.reorderLevel = mReorderLevels[position];
+            record.sku = mSkus[position];
+        }
+
+        /**
+         * Put the batch into the given bundle. The arrays are shared, not copied, so the batch
+         * must not change until the bundle has been used.
+         */
+        void writeTo(Bundle bundle) {
+            bundle.putInt(KEY_SIZE, mSize);
+            bundle.putLongArray(KEY_IDS, mIds);
+            bundle.putStringArray(KEY_NAMES, mNames);
+            bundle.putIntArray(KEY_TYPES, mTypes);
+            bundle.putDoubleArray(KEY_PRICES, mPrices);
+            bundle.putIntArray(KEY_QUANTITIES, mQuantities);
+            bundle.putStringArray(KEY_IMAGES, mImages);
+            bundle.putIntArray(KEY_REORDER_LEVELS, mReorderLevels);
+            bundle.putStringArray(KEY_SKUS, mSkus);
+        }
+
+        /**
+         * Returns the batch in the given bundle, sharing its arrays. Throws an
+         * {@link IllegalArgumentException} if the bundle doesn't hold a whole batch.
+         */
+        static Batch readFrom(Bundle bundle) {
+            Batch batch = new Batch();
+            batch.mSize = bundle.getInt(KEY_SIZE, -1);
+            batch.mIds = bundle.getLongArray(KEY_IDS);
+            batch.mNames = bundle.getStringArray(KEY_NAMES);
+            batch.mTypes = bundle.getIntArray(KEY_TYPES);
+            batch.mPrices = bundle.getDoubleArray(KEY_PRICES);
+            batch.mQuantities = bundle.getIntArray(KEY_QUANTITIES);
+            batch.mImages = bundle.getStringArray(KEY_IMAGES);
+            batch.mReorderLevels = bundle.getIntArray(KEY_REORDER_LEVELS);
+            batch.mSkus = bundle.getStringArray(KEY_SKUS);
+            if (batch.mSize < 0 || batch.mIds == null || batch.mNames == null
+                    || batch.mTypes == null || batch.mPrices == null || batch.mQuantities == null
+                    || batch.mImages == null || batch.mReorderLevels == null || batch.mSkus == null
+                    || batch.mIds.length < batch.mSize || batch.mNames.length < batch.mSize
+                    || batch.mTypes.length < batch.mSize || batch.mPrices.length < batch.mSize
+                    || batch.mQuantities.length < batch.mSize
+                    || batch.mImages.length < batch.mSize
+                    || batch.mReorderLevels.length < batch.mSize
+                    || batch.mSkus.length < batch.mSize) {
+                throw new IllegalArgumentException("Incomplete tea batch");
+            }
+            return batch;
+        }
+
+        long id(int position) {
+            return mIds[position];
+        }
+
+        String name(int position) {
+            return mNames[position];
+        }
+
+        int type(int position) {
+            return mTypes[position];
+        }
+
+        double price(int position) {
+            return mPrices[position];
+        }
+
+        int quantity(int position) {
+            return mQuantities[position];
+        }
+
+        String image(int position) {
+            return mImages[position];
+        }
+
+        int reorderLevel(int position) {
+            return mReorderLevels[position];
+        }
+
+        String sku(int position) {
+            return mSkus[position];
+        }
+
+        private void grow() {
+            int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mNames = Arrays.copyOf(mNames, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mPrices = Arrays.copyOf(mPrices, capacity);
+            mQuantities = Arrays.copyOf(mQuantities, capacity);
+            mImages = Arrays.copyOf(mImages, capacity);
+            mReorderLevels = Arrays.copyOf(mReorderLevels, capacity);
+            mSkus = Arrays.copyOf(mSkus, capacity);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.teainventory.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes tea photos at the size they are shown at, rather than at the full resolution of the
+ * camera. Decoding reads from the content resolver, so it must not run on the main thread.
+ */
+public final class BitmapDecoder {
+
+    private static final String LOG_TAG = BitmapDecoder.class.getSimpleName();
+
+    private BitmapDecoder() {}
+
+    /**
+     * Decode the image at the given URI, downsampled as far as possible while staying at least
+     * the given width and height. Returns null if the image can't be read.
+     */
+    public static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int reqWidth,
+                                       int reqHeight) {
+        // Read the dimensions of the image first, without allocating any pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(resolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Then decode only every n-th pixel, so the bitmap is about the size of the view
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        return decode(resolver, uri, options);
+    }
+
+    /**
+     * Returns the largest power of two that an image of the given size can be divided by and
+     * still be at least the requested width and height. Without a requested size, returns 1.
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (width / (inSampleSize * 2) >= reqWidth
+                && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Run one decode pass over the image at the given URI. Returns null if the image can't be
+     * read, or if the options only ask for its bounds.
+     */
+    static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options options) {
+        InputStream in = null;
+        try {
+            in = resolver.openInputStream(uri);
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load image " + uri, e);
+            return null;
+        } catch (SecurityException e) {
+            // The permission to read a picked document doesn't always outlive the picker
+            Log.e(LOG_TAG, "No permission to load image " + uri, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing image " + uri, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.android.teainventory.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Loads an image on a background thread through the {@link ImageCache}, downsampled to the
+ * given size, and shows it in an {@link ImageView}. Cancel the task when the view goes away; a
+ * cancelled task never touches the view.
+ */
+public class BitmapLoadTask extends AsyncTask<Void, Void, Bitmap> {
+
+    private final ImageCache mCache;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final int mReqWidth;
+    private final int mReqHeight;
+
+    /** The view to show the image in, not kept alive by a decode that is still running */
+    private final WeakReference<ImageView> mImageViewReference;
+
+    public BitmapLoadTask(ImageCache cache, ContentResolver resolver, Uri uri, ImageView imageView,
+                          int reqWidth, int reqHeight) {
+        mCache = cache;
+        mResolver = resolver;
+        mUri = uri;
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+        mImageViewReference = new WeakReference<ImageView>(imageView);
+    }
+
+    @Override
+    protected Bitmap doInBackground(Void... params) {
+        if (isCancelled()) {
+            return null;
+        }
+        return mCache.get(mResolver, mUri, mReqWidth, mReqHeight);
+    }
+
+    @Override
+    protected void onPostExecute(Bitmap bitmap) {
+        ImageView imageView = mImageViewReference.get();
+        if (imageView != null && bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.android.teainventory.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of bitmaps that are no longer shown, kept so new images can be decoded into them
+ * through {@link BitmapFactory.Options#inBitmap} instead of allocating fresh pixel memory.
+ * The pool holds at most a given number of bytes, recycling the oldest bitmaps beyond that.
+ *
+ * Only put bitmaps in the pool once nothing draws them any more. The pool is thread safe.
+ */
+public class BitmapPool {
+
+    /** Bitmaps waiting to be reused, oldest first */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    /** Byte budget of the pool */
+    private final int mMaxBytes;
+
+    /** Bytes held by the pool */
+    private int mBytes;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Set up the given options, for an image of the given size, to decode into a bitmap from
+     * the pool if there is one that fits. {@link BitmapFactory.Options#inSampleSize} must
+     * already be set.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        Bitmap reusable = get(options, width, height);
+        if (reusable != null) {
+            options.inBitmap = reusable;
+        }
+    }
+
+    /**
+     * Take a bitmap that an image of the given size can be decoded into with the given
+     * options out of the pool. Returns null if there is none.
+     */
+    synchronized Bitmap get(BitmapFactory.Options options, int width, int height) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (canDecodeInto(candidate, options, width, height)) {
+                iterator.remove();
+                mBytes -= byteCount(candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a bitmap that nothing shows any more into the pool.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        mBitmaps.addLast(bitmap);
+        mBytes += byteCount(bitmap);
+        while (mBytes > mMaxBytes && !mBitmaps.isEmpty()) {
+            Bitmap oldest = mBitmaps.removeFirst();
+            mBytes -= byteCount(oldest);
+            oldest.recycle();
+        }
+    }
+
+    /** Returns the number of bytes held by the pool */
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    /**
+     * Returns whether an image of the given size can be decoded into the given bitmap with the
+     * given options. From KitKat any bitmap with enough memory will do. Before that the bitmap
+     * has to be exactly the size of the image, and the image can't be downsampled.
+     */
+    static boolean canDecodeInto(Bitmap candidate, BitmapFactory.Options options, int width,
+                                 int height) {
+        int sampleSize = Math.max(options.inSampleSize, 1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Round up, a bitmap that fits the larger estimate fits the decoded image too
+            int decodedWidth = (width + sampleSize - 1) / sampleSize;
+            int decodedHeight = (height + sampleSize - 1) / sampleSize;
+            return decodedWidth * decodedHeight * bytesPerPixel(candidate.getConfig())
+                    <= allocationByteCount(candidate);
+        }
+        return sampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height
+                && candidate.getConfig() == Bitmap.Config.ARGB_8888;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int allocationByteCount(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return allocationByteCount(bitmap);
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
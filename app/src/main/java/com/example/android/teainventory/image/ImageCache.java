@@ -0,0 +1,317 @@
+package com.example.android.teainventory.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-tier cache of tea images, keyed by image URI and the size they were decoded for.
+ *
+ * The first tier keeps decoded bitmaps in memory, the second keeps thumbnails compressed in the
+ * app's cache directory. Both evict the least recently used images once they are over their
+ * byte budget. Only a miss in both tiers decodes the source image.
+ *
+ * {@link #get} reads from disk and may decode, so it must not run on the main thread.
+ * {@link #getFromMemory} is cheap and can be called from anywhere.
+ */
+public class ImageCache {
+
+    private static final String LOG_TAG = ImageCache.class.getSimpleName();
+
+    /** Name of the directory in the app's cache directory holding the thumbnails */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /** Byte budget of the thumbnails on disk */
+    private static final long DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Share of the heap used for decoded bitmaps */
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 8;
+
+    /** Format and quality of the thumbnails on disk, WebP being smaller than JPEG */
+    private static final Bitmap.CompressFormat DISK_CACHE_FORMAT = Bitmap.CompressFormat.WEBP;
+    private static final int DISK_CACHE_QUALITY = 85;
+
+    /** Suffix of thumbnails that are still being written */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static ImageCache sInstance;
+
+    /** Decoded bitmaps, evicted by their size in bytes */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Directory holding the thumbnails */
+    private final File mDiskCacheDirectory;
+
+    /** Byte budget of {@link #mDiskCacheDirectory} */
+    private final long mDiskCacheBytes;
+
+    /** Bytes used by {@link #mDiskCacheDirectory}, or -1 until it has been measured */
+    private long mDiskCacheSize = -1;
+
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    /**
+     * Returns the cache shared by the whole app.
+     */
+    public static synchronized ImageCache get(Context context) {
+        if (sInstance == null) {
+            int memoryCacheBytes =
+                    (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION);
+            sInstance = new ImageCache(
+                    new File(context.getApplicationContext().getCacheDir(), DISK_CACHE_DIRECTORY),
+                    memoryCacheBytes, DISK_CACHE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new instance of {@link ImageCache}.
+     *
+     * @param diskCacheDirectory directory to keep the thumbnails in
+     * @param memoryCacheBytes   byte budget of the decoded bitmaps in memory
+     * @param diskCacheBytes     byte budget of the thumbnails on disk
+     */
+    ImageCache(File diskCacheDirectory, int memoryCacheBytes, long diskCacheBytes) {
+        mDiskCacheDirectory = diskCacheDirectory;
+        mDiskCacheBytes = diskCacheBytes;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Returns the image at the given URI, sized for a view of the given width and height, if
+     * it is in memory. Returns null otherwise.
+     */
+    public Bitmap getFromMemory(Uri uri, int reqWidth, int reqHeight) {
+        Bitmap bitmap = mMemoryCache.get(key(uri, reqWidth, reqHeight));
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the image at the given URI, sized for a view of the given width and height.
+     * The image is read from memory, then from the thumbnails on disk, and is only decoded
+     * from the source when neither has it. Returns null if the image can't be read.
+     */
+    public Bitmap get(ContentResolver resolver, Uri uri, int reqWidth, int reqHeight) {
+        String key = key(uri, reqWidth, reqHeight);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+
+        bitmap = readFromDisk(key);
+        if (bitmap != null) {
+            mDiskHits.incrementAndGet();
+            mMemoryCache.put(key, bitmap);
+            return bitmap;
+        }
+
+        mMisses.incrementAndGet();
+        bitmap = BitmapDecoder.decodeSampled(resolver, uri, reqWidth, reqHeight);
+        if (bitmap != null) {
+            mMemoryCache.put(key, bitmap);
+            writeToDisk(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /** Returns the number of images found in memory */
+    public int getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    /** Returns the number of images found on disk, but not in memory */
+    public int getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    /** Returns the number of images found in neither tier, and decoded from the source */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageCache[memoryHits=" + getMemoryHitCount() + ", diskHits=" + getDiskHitCount()
+                + ", misses=" + getMissCount() + ", memoryBytes=" + mMemoryCache.size() + "]";
+    }
+
+    /**
+     * Returns the cache key for the image at the given URI decoded for the given size.
+     */
+    private static String key(Uri uri, int reqWidth, int reqHeight) {
+        return uri + "@" + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * Returns the file holding the thumbnail for the given key. The key is hashed, so any
+     * URI gives a valid file name.
+     */
+    private File diskFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDiskCacheDirectory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the thumbnail for the given key from disk, or null if there is none.
+     */
+    private Bitmap readFromDisk(String key) {
+        File file = diskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            // A thumbnail that can't be decoded is of no use, write it again next time
+            deleteFromDisk(file);
+            return null;
+        }
+
+        // Mark the thumbnail as recently used
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    /**
+     * Write the thumbnail for the given key to disk, evicting the least recently used
+     * thumbnails if that puts the cache over its budget. The thumbnail is compressed into a
+     * temporary file first, so readers never see a half written one.
+     */
+    private void writeToDisk(String key, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + mDiskCacheDirectory);
+            return;
+        }
+
+        File file = diskFile(key);
+        File tempFile = new File(file.getPath() + "." + Thread.currentThread().getId()
+                + TEMP_FILE_SUFFIX);
+        boolean written = false;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            written = bitmap.compress(DISK_CACHE_FORMAT, DISK_CACHE_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write thumbnail " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing thumbnail " + file, e);
+                    written = false;
+                }
+            }
+        }
+        if (!written) {
+            tempFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            measureDiskCache();
+            long replacedLength = file.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+            mDiskCacheSize += file.length() - replacedLength;
+            if (mDiskCacheSize > mDiskCacheBytes) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Work out how many bytes the thumbnails on disk use, the first time it is needed.
+     */
+    private synchronized void measureDiskCache() {
+        if (mDiskCacheSize != -1) {
+            return;
+        }
+        mDiskCacheSize = 0;
+        File[] files = listThumbnails();
+        if (files != null) {
+            for (File file : files) {
+                mDiskCacheSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the cache is within its budget.
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = listThumbnails();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long aModified = a.lastModified();
+                long bModified = b.lastModified();
+                return aModified < bModified ? -1 : (aModified == bModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && mDiskCacheSize > mDiskCacheBytes; i++) {
+            deleteFromDisk(files[i]);
+        }
+    }
+
+    /**
+     * Returns the thumbnails on disk, leaving out the ones that are still being written.
+     */
+    private File[] listThumbnails() {
+        return mDiskCacheDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return !name.endsWith(TEMP_FILE_SUFFIX);
+            }
+        });
+    }
+
+    private synchronized void deleteFromDisk(File file) {
+        long length = file.length();
+        if (file.delete() && mDiskCacheSize != -1) {
+            mDiskCacheSize -= length;
+        }
+    }
+}
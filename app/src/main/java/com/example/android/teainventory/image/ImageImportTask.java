@@ -0,0 +1,103 @@
+package com.example.android.teainventory.image;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports a picked image into the {@link ImageStore} on a background thread. Imports run one
+ * at a time on their own executor, so they never hold up image loads on the AsyncTask threads.
+ * A task that is cancelled doesn't report back, and deletes what it imported.
+ *
+ * A task outlives the activity that started it when the activity is recreated for a change of
+ * configuration: the old activity detaches itself with {@link #setCallback(Callback)} and the
+ * new one attaches itself, getting the result if the import finished in between.
+ */
+public class ImageImportTask extends AsyncTask<Void, Void, Uri> {
+
+    /** Receives the result of an import on the main thread */
+    public interface Callback {
+        /**
+         * Called with the URI of the imported image, or null if it couldn't be imported.
+         */
+        void onImageImported(Uri image);
+    }
+
+    /** Executor running every import, one after the other */
+    private static final Executor IMPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final Uri mSource;
+    private Callback mCallback;
+
+    /** Whether the import finished while no callback was attached */
+    private boolean mResultPending;
+
+    /** Result of the import kept for the next callback, if {@link #mResultPending} */
+    private Uri mPendingResult;
+
+    private ImageImportTask(Context context, Uri source, Callback callback) {
+        mContext = context.getApplicationContext();
+        mSource = source;
+        mCallback = callback;
+    }
+
+    /**
+     * Start importing the image at the given URI. Returns the running task.
+     */
+    public static ImageImportTask start(Context context, Uri source, Callback callback) {
+        ImageImportTask task = new ImageImportTask(context, source, callback);
+        task.executeOnExecutor(IMPORT_EXECUTOR);
+        return task;
+    }
+
+    /**
+     * Returns the URI of the image being imported.
+     */
+    public Uri getSource() {
+        return mSource;
+    }
+
+    /**
+     * Attach the callback receiving the result from now on, or detach the current one with
+     * null. Must be called on the main thread. An attached callback is given the result at
+     * once if the import has already finished.
+     */
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        if (callback != null && mResultPending) {
+            mResultPending = false;
+            callback.onImageImported(mPendingResult);
+            mPendingResult = null;
+        }
+    }
+
+    @Override
+    protected Uri doInBackground(Void... params) {
+        if (isCancelled()) {
+            return null;
+        }
+        return ImageStore.importImage(mContext, mSource);
+    }
+
+    @Override
+    protected void onPostExecute(Uri image) {
+        if (mCallback != null) {
+            mCallback.onImageImported(image);
+        } else {
+            mResultPending = true;
+            mPendingResult = image;
+        }
+    }
+
+    @Override
+    protected void onCancelled(Uri image) {
+        // Nobody is going to store the imported image
+        if (image != null) {
+            ImageStore.delete(image);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.teainventory.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * App-private storage for tea images. A picked photo is imported once, downscaled to a few
+ * fixed sizes and compressed into the app's files directory, so showing it later is a cheap
+ * read of a small local file, and keeps working if the original moves or goes away.
+ *
+ * An imported image is referred to by the file URI of its {@link #SIZE_DETAIL} copy, which is
+ * what is stored in the teas table. {@link #sizedUri} gives the copy for another size.
+ */
+public final class ImageStore {
+
+    private static final String LOG_TAG = ImageStore.class.getSimpleName();
+
+    /** Longest side, in pixels, of the copy shown in lists */
+    public static final int SIZE_THUMBNAIL = 256;
+
+    /** Longest side, in pixels, of the copy shown in the editor */
+    public static final int SIZE_DETAIL = 1024;
+
+    /** Every size an image is imported at */
+    private static final int[] SIZES = { SIZE_THUMBNAIL, SIZE_DETAIL };
+
+    /** Name of the directory in the app's files directory holding the imported images */
+    private static final String IMAGE_DIRECTORY = "images";
+
+    /** Extension of the imported images */
+    private static final String IMAGE_EXTENSION = ".jpg";
+
+    /** JPEG quality of the imported images */
+    private static final int IMAGE_QUALITY = 85;
+
+    private ImageStore() {}
+
+    /**
+     * Import the image at the given URI into app-private storage at every size. Reads and
+     * writes files, so it must not run on the main thread. Returns the URI to store for the
+     * tea, or null if the image can't be imported.
+     */
+    public static Uri importImage(Context context, Uri source) {
+        File directory = new File(context.getFilesDir(), IMAGE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + directory);
+            return null;
+        }
+
+        // Decode the source once, just big enough for the largest size
+        Bitmap original = BitmapDecoder.decodeSampled(context.getContentResolver(), source,
+                SIZE_DETAIL, SIZE_DETAIL);
+        if (original == null) {
+            return null;
+        }
+
+        String name = UUID.randomUUID().toString();
+        try {
+            for (int size : SIZES) {
+                Bitmap scaled = scaleToFit(original, size);
+                boolean written = write(scaled, new File(directory, fileName(name, size)));
+                if (scaled != original) {
+                    scaled.recycle();
+                }
+                if (!written) {
+                    for (int writtenSize : SIZES) {
+                        new File(directory, fileName(name, writtenSize)).delete();
+                    }
+                    return null;
+                }
+            }
+        } finally {
+            original.recycle();
+        }
+        return Uri.fromFile(new File(directory, fileName(name, SIZE_DETAIL)));
+    }
+
+    /**
+     * Returns the URI of the copy of the given image at the given size. Images that weren't
+     * imported only have the one copy, so their URI is returned as is.
+     */
+    public static Uri sizedUri(Uri image, int size) {
+        String path = image.getPath();
+        String suffix = "_" + SIZE_DETAIL + IMAGE_EXTENSION;
+        if (!isImported(image) || !path.endsWith(suffix)) {
+            return image;
+        }
+        String name = new File(path.substring(0, path.length() - suffix.length())).getName();
+        return Uri.fromFile(new File(new File(path).getParentFile(), fileName(name, size)));
+    }
+
+    /**
+     * Delete every copy of the given imported image. Does nothing for images that weren't
+     * imported.
+     */
+    public static void delete(Uri image) {
+        if (!isImported(image)) {
+            return;
+        }
+        for (int size : SIZES) {
+            new File(sizedUri(image, size).getPath()).delete();
+        }
+    }
+
+    /**
+     * Returns whether the given URI refers to an imported image.
+     */
+    public static boolean isImported(Uri image) {
+        return "file".equals(image.getScheme()) && image.getPath() != null
+                && new File(image.getPath()).getParentFile().getName().equals(IMAGE_DIRECTORY);
+    }
+
+    private static String fileName(String name, int size) {
+        return name + "_" + size + IMAGE_EXTENSION;
+    }
+
+    /**
+     * Returns the given bitmap scaled down so that its longest side is at most the given size.
+     */
+    private static Bitmap scaleToFit(Bitmap bitmap, int size) {
+        int longestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longestSide <= size) {
+            return bitmap;
+        }
+        float scale = (float) size / longestSide;
+        return Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                Math.round(bitmap.getHeight() * scale), true);
+    }
+
+    /**
+     * Compress the given bitmap into the given file. Returns whether that worked.
+     */
+    private static boolean write(Bitmap bitmap, File file) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            return bitmap.compress(Bitmap.CompressFormat.JPEG, IMAGE_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write image " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing image " + file, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.example.android.teainventory.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the thumbnails of a scrolling list of teas.
+ *
+ * Thumbnails are decoded on background threads from the {@link ImageStore#SIZE_THUMBNAIL}
+ * copy of each image, into bitmaps reused from a {@link BitmapPool}, and are kept in a memory
+ * cache. Every bitmap is reference counted: the cache holds one reference, and every view
+ * showing it holds another. Once neither holds it, it goes back to the pool, so scrolling
+ * through a long list decodes into the same few bitmaps instead of churning the heap.
+ *
+ * All methods must be called on the main thread.
+ */
+public class ThumbnailLoader {
+
+    private static final String LOG_TAG = ThumbnailLoader.class.getSimpleName();
+
+    /** Number of threads decoding thumbnails */
+    private static final int DECODE_THREADS = 2;
+
+    /** Share of the heap used for cached thumbnails, and again for the pool */
+    private static final int HEAP_FRACTION = 16;
+
+    private final ContentResolver mResolver;
+
+    /** Width and height, in pixels, the thumbnails are shown at */
+    private final int mSize;
+
+    private final BitmapPool mPool;
+    private final LruCache<String, Thumbnail> mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Decodes that are queued or running, by image */
+    private final Map<String, Job> mJobs = new HashMap<String, Job>();
+
+    /**
+     * A decoded thumbnail and the number of references to it.
+     */
+    private class Thumbnail {
+        final Bitmap bitmap;
+        int references;
+
+        Thumbnail(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        void acquire() {
+            references++;
+        }
+
+        void release() {
+            if (--references == 0) {
+                mPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * A thumbnail requested for a view. Cancel it once the view shows something else.
+     */
+    public class Request {
+        private final String mKey;
+        private final ImageView mView;
+        private Thumbnail mShown;
+        private boolean mCancelled;
+
+        private Request(String key, ImageView view) {
+            mKey = key;
+            mView = view;
+        }
+
+        private void show(Thumbnail thumbnail) {
+            thumbnail.acquire();
+            mShown = thumbnail;
+            mView.setImageBitmap(thumbnail.bitmap);
+        }
+
+        /** Returns whether this request is for the given image */
+        public boolean isFor(Uri image) {
+            return mKey.equals(image.toString());
+        }
+
+        /**
+         * Stop waiting for the thumbnail, and let go of it if it is shown. The view is
+         * cleared first, so the bitmap can safely be reused.
+         */
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            Job job = mJobs.get(mKey);
+            if (job != null) {
+                job.requests.remove(this);
+                if (job.requests.isEmpty() && !job.prefetch) {
+                    job.future.cancel(false);
+                    mJobs.remove(mKey);
+                }
+            }
+            if (mShown != null) {
+                mView.setImageDrawable(null);
+                mShown.release();
+                mShown = null;
+            }
+        }
+    }
+
+    /**
+     * A queued or running decode, and the requests waiting for it.
+     */
+    private static class Job {
+        Future<?> future;
+        final List<Request> requests = new ArrayList<Request>();
+        boolean prefetch;
+    }
+
+    /**
+     * Constructs a new instance of {@link ThumbnailLoader}.
+     *
+     * @param context of the app
+     * @param size    width and height, in pixels, that the thumbnails are shown at
+     */
+    public ThumbnailLoader(Context context, int size) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mSize = size;
+
+        int budget = (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        mPool = new BitmapPool(budget);
+        mCache = new LruCache<String, Thumbnail>(budget) {
+            @Override
+            protected int sizeOf(String key, Thumbnail thumbnail) {
+                return thumbnail.bitmap.getRowBytes() * thumbnail.bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Thumbnail oldValue,
+                                        Thumbnail newValue) {
+                oldValue.release();
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThumbnailLoader");
+                // Decoding must not compete with drawing frames
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of the given image in the given view, straight away if it is cached.
+     * Returns the request, to be cancelled when the view is recycled.
+     */
+    public Request load(Uri image, ImageView view) {
+        String key = image.toString();
+        Request request = new Request(key, view);
+        Thumbnail cached = mCache.get(key);
+        if (cached != null) {
+            request.show(cached);
+            return request;
+        }
+
+        view.setImageDrawable(null);
+        Job job = mJobs.get(key);
+        if (job == null) {
+            job = startJob(image);
+        }
+        job.requests.add(request);
+        return request;
+    }
+
+    /**
+     * Decode the thumbnail of the given image into the cache, ahead of it being shown.
+     */
+    public void prefetch(Uri image) {
+        String key = image.toString();
+        if (mCache.get(key) != null || mJobs.containsKey(key)) {
+            return;
+        }
+        startJob(image).prefetch = true;
+    }
+
+    /**
+     * Stop decoding and drop every cached thumbnail. The loader can't be used afterwards.
+     */
+    public void shutDown() {
+        mExecutor.shutdownNow();
+        mJobs.clear();
+        mCache.evictAll();
+    }
+
+    private Job startJob(final Uri image) {
+        final String key = image.toString();
+        final Job job = new Job();
+        mJobs.put(key, job);
+        job.future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(image);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(key, job, bitmap);
+                    }
+                });
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Cache a freshly decoded thumbnail and show it in the views waiting for it.
+     */
+    private void onDecoded(String key, Job job, Bitmap bitmap) {
+        if (mJobs.get(key) != job) {
+            // Cancelled while decoding, nobody will show it
+            if (bitmap != null) {
+                mPool.put(bitmap);
+            }
+            return;
+        }
+        mJobs.remove(key);
+        if (bitmap == null) {
+            return;
+        }
+
+        Thumbnail thumbnail = new Thumbnail(bitmap);
+        thumbnail.acquire();
+        mCache.put(key, thumbnail);
+        for (Request request : job.requests) {
+            request.show(thumbnail);
+        }
+    }
+
+    /**
+     * Decode the thumbnail of the given image, into a pooled bitmap if one fits. Runs on a
+     * decode thread. Returns null if the image can't be read.
+     */
+    private Bitmap decode(Uri image) {
+        Uri source = ImageStore.sizedUri(image, ImageStore.SIZE_THUMBNAIL);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapDecoder.decode(mResolver, source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = BitmapDecoder.calculateInSampleSize(width, height, mSize, mSize);
+        mPool.addInBitmapOptions(options, width, height);
+        Bitmap reused = options.inBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapDecoder.decode(mResolver, source, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all, decode into a new one instead
+            Log.w(LOG_TAG, "Could not reuse bitmap for " + source, e);
+            options.inBitmap = null;
+            bitmap = BitmapDecoder.decode(mResolver, source, options);
+        }
+        if (reused != null && bitmap != reused) {
+            mPool.put(reused);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.v4.content.FileProvider;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports every tea to a file with a {@link CatalogExporter}, on a background thread, and
+ * shares the file through a content URI that other apps can be granted access to. Exports
+ * run one at a time on their own executor. The files are kept in the cache, in
+ * {@link #EXPORT_DIRECTORY}, and each export replaces the files of the ones before.
+ *
+ * A task outlives the activity that started it when the activity is recreated for a change of
+ * configuration, the same way as a {@link CatalogImportTask}: the old activity detaches itself
+ * with {@link #setCallback(Callback)} and the new one attaches itself.
+ */
+public class CatalogExportTask extends AsyncTask<Void, Integer, Uri> {
+
+    private static final String LOG_TAG = CatalogExportTask.class.getSimpleName();
+
+    /** Authority of the {@link FileProvider} sharing the exports, declared in the manifest */
+    public static final String FILE_AUTHORITY = "com.example.android.teainventory.files";
+
+    /** Directory of the cache the exports are written to, shared in res/xml/export_paths.xml */
+    private static final String EXPORT_DIRECTORY = "exports";
+
+    /** Size of the buffer between the exporter and the file, in bytes */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Receives the progress and the result of an export on the main thread */
+    public interface Callback {
+        /**
+         * Called after every chunk of teas has been written, with the number exported so far.
+         */
+        void onExportProgress(int exported);
+
+        /**
+         * Called once the export has finished, with the content URI of the file, or null if
+         * it failed or was cancelled.
+         */
+        void onExportFinished(Uri export, CatalogExporter.Format format);
+    }
+
+    /** Executor running every export, one after the other */
+    private static final Executor EXPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final CatalogExporter.Format mFormat;
+    private Callback mCallback;
+
+    /** Latest progress reported, given to a callback attached later */
+    private int mExported;
+
+    /** Whether the export finished while no callback was attached, with the result below */
+    private boolean mResultPending;
+    private Uri mPendingResult;
+
+    private CatalogExportTask(Context context, CatalogExporter.Format format, Callback callback) {
+        mContext = context.getApplicationContext();
+        mFormat = format;
+        mCallback = callback;
+    }
+
+    /**
+     * Start exporting every tea in the given format. Returns the running task.
+     */
+    public static CatalogExportTask start(Context context, CatalogExporter.Format format,
+                                          Callback callback) {
+        CatalogExportTask task = new CatalogExportTask(context, format, callback);
+        task.executeOnExecutor(EXPORT_EXECUTOR);
+        return task;
+    }
+
+    /**
+     * Attach the callback receiving the progress and the result from now on, or detach the
+     * current one with null. Must be called on the main thread. An attached callback is given
+     * the latest progress at once, or the result if the export has already finished.
+     */
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        if (callback == null) {
+            return;
+        }
+        if (mResultPending) {
+            Uri export = mPendingResult;
+            mResultPending = false;
+            mPendingResult = null;
+            callback.onExportFinished(export, mFormat);
+        } else {
+            callback.onExportProgress(mExported);
+        }
+    }
+
+    @Override
+    protected Uri doInBackground(Void... params) {
+        File directory = new File(mContext.getCacheDir(), EXPORT_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + directory);
+            return null;
+        }
+        deleteOldExports(directory);
+
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "teas-" + timestamp + mFormat.extension);
+        int exported;
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            exported = new CatalogExporter(mContext.getContentResolver()).export(out, mFormat,
+                    new CatalogExporter.Listener() {
+                        @Override
+                        public void onChunkExported(int exported) {
+                            publishProgress(exported);
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return CatalogExportTask.this.isCancelled();
+                        }
+                    });
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to export teas to " + file, e);
+            exported = -1;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // The export has failed already
+                }
+            }
+        }
+
+        if (exported == -1) {
+            file.delete();
+            return null;
+        }
+        return FileProvider.getUriForFile(mContext, FILE_AUTHORITY, file);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        mExported = progress[0];
+        if (mCallback != null) {
+            mCallback.onExportProgress(mExported);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Uri export) {
+        deliver(export);
+    }
+
+    @Override
+    protected void onCancelled(Uri export) {
+        deliver(null);
+    }
+
+    private void deliver(Uri export) {
+        if (mCallback != null) {
+            mCallback.onExportFinished(export, mFormat);
+        } else {
+            mResultPending = true;
+            mPendingResult = export;
+        }
+    }
+
+    /**
+     * Delete the files of earlier exports, which the apps they were shared with have had
+     * their chance to read.
+     */
+    private static void deleteOldExports(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete old export " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.JsonWriter;
+
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Exports every tea as CSV or JSON. The CSV has a header row naming the {@link TeaEntry}
+ * columns, so {@link CatalogImporter} can read it back; the JSON is an array with one object
+ * per tea. Types are written as "black", "green" or "herbal" in both.
+ *
+ * The teas are read from the provider in pages of {@link #CHUNK_SIZE}, each starting after
+ * the last tea of the one before in {@link TeaEntry#PAGE_SORT_ORDER}, and written straight to
+ * the output as they are read. Only one page is held at a time, so memory use doesn't grow
+ * with the number of teas. The pages are separate queries, so a tea renamed during the export
+ * may be written twice or not at all.
+ */
+public class CatalogExporter {
+
+    /** Number of teas read per query */
+    public static final int CHUNK_SIZE = 1000;
+
+    /** Formats an export can be written in */
+    public enum Format {
+        CSV("text/csv", ".csv"),
+        JSON("application/json", ".json");
+
+        /** MIME type of the format */
+        public final String mimeType;
+
+        /** Extension of files in the format */
+        public final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    /** Receives the progress of an export, and can stop it */
+    public interface Listener {
+        /**
+         * Called on the exporting thread after every chunk has been written, with the number
+         * of teas exported so far.
+         */
+        void onChunkExported(int exported);
+
+        /**
+         * Returns whether the export should stop. Checked before every chunk.
+         */
+        boolean isCancelled();
+    }
+
+    /** Columns read for every tea, in the order they are written */
+    private static final String[] PROJECTION = {
+            TeaEntry._ID,
+            TeaEntry.COLUMN_TEA_NAME,
+            TeaEntry.COLUMN_TEA_TYPE,
+            TeaEntry.COLUMN_TEA_PRICE,
+            TeaEntry.COLUMN_TEA_QUANTITY,
+            TeaEntry.COLUMN_TEA_IMAGE,
+            TeaEntry.COLUMN_TEA_REORDER_LEVEL,
+            TeaEntry.COLUMN_TEA_SKU };
+
+    /** Positions of the columns in {@link #PROJECTION} */
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_NAME = 1;
+    private static final int COLUMN_TYPE = 2;
+    private static final int COLUMN_PRICE = 3;
+    private static final int COLUMN_QUANTITY = 4;
+    private static final int COLUMN_IMAGE = 5;
+    private static final int COLUMN_REORDER_LEVEL = 6;
+    private static final int COLUMN_SKU = 7;
+
+    /** Charset of the exports */
+    private static final String UTF_8 = "UTF-8";
+
+    /** Size of the buffer between the formatting and the output stream, in characters */
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final ContentResolver mResolver;
+
+    /**
+     * Constructs a new {@link CatalogExporter} reading teas through the given resolver.
+     */
+    public CatalogExporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Write every tea to the given stream in the given format, reporting to the given
+     * listener. Runs on the calling thread, which mustn't be the main thread. The stream is
+     * flushed but not closed. Returns the number of teas exported, or -1 if the export was
+     * cancelled, in which case what was written is incomplete.
+     */
+    public int export(OutputStream out, Format format, Listener listener) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+        TeaSink sink = format == Format.CSV ? new CsvSink(writer) : new JsonSink(writer);
+        sink.begin();
+
+        int exported = 0;
+        String afterName = null;
+        long afterId = 0;
+        while (true) {
+            if (listener.isCancelled()) {
+                writer.flush();
+                return -1;
+            }
+            // The caller doesn't observe the teas, and pages this large are never cached
+            Uri page = TeaEntry.buildPageUri(TeaEntry.CONTENT_URI, afterName, afterId, CHUNK_SIZE)
+                    .buildUpon()
+                    .appendQueryParameter(TeaEntry.QUERY_PARAMETER_NOTIFY, "false")
+                    .build();
+            Cursor cursor = mResolver.query(page, PROJECTION, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Cannot query " + page);
+            }
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    sink.write(cursor);
+                }
+                if (cursor.moveToLast()) {
+                    afterName = cursor.getString(COLUMN_NAME);
+                    afterId = cursor.getLong(COLUMN_ID);
+                }
+            } finally {
+                cursor.close();
+            }
+            exported += count;
+            if (count != 0) {
+                listener.onChunkExported(exported);
+            }
+            if (count < CHUNK_SIZE) {
+                break;
+            }
+        }
+
+        sink.end();
+        writer.flush();
+        return exported;
+    }
+
+    /**
+     * Returns the name a tea type is exported as, or its number if it has none.
+     */
+    private static String typeName(int type) {
+        switch (type) {
+            case TeaEntry.TYPE_BLACK:
+                return "black";
+            case TeaEntry.TYPE_GREEN:
+                return "green";
+            case TeaEntry.TYPE_HERBAL:
+                return "herbal";
+            default:
+                return String.valueOf(type);
+        }
+    }
+
+    /**
+     * Writes teas in one format.
+     */
+    private interface TeaSink {
+        void begin() throws IOException;
+
+        /** Write the tea the given cursor, over {@link #PROJECTION}, is on */
+        void write(Cursor cursor) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    private static class CsvSink implements TeaSink {
+        private final CsvWriter mCsv;
+
+        CsvSink(Writer writer) {
+            mCsv = new CsvWriter(writer);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            // The ids are left out, they mean nothing to another inventory
+            for (int i = COLUMN_NAME; i < PROJECTION.length; i++) {
+                mCsv.field(PROJECTION[i]);
+            }
+            mCsv.endRecord();
+        }
+
+        @Override
+        public void write(Cursor cursor) throws IOException {
+            mCsv.field(cursor.getString(COLUMN_NAME))
+                    .field(typeName(cursor.getInt(COLUMN_TYPE)))
+                    .field(cursor.getDouble(COLUMN_PRICE))
+                    .field(cursor.getLong(COLUMN_QUANTITY))
+                    .field(cursor.getString(COLUMN_IMAGE))
+                    .field(cursor.isNull(COLUMN_REORDER_LEVEL)
+                            ? null : cursor.getString(COLUMN_REORDER_LEVEL))
+                    .field(cursor.getString(COLUMN_SKU))
+                    .endRecord();
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+
+    private static class JsonSink implements TeaSink {
+        private final JsonWriter mJson;
+
+        JsonSink(Writer writer) {
+            mJson = new JsonWriter(writer);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            mJson.beginArray();
+        }
+
+        @Override
+        public void write(Cursor cursor) throws IOException {
+            mJson.beginObject();
+            mJson.name(TeaEntry._ID).value(cursor.getLong(COLUMN_ID));
+            mJson.name(TeaEntry.COLUMN_TEA_NAME).value(cursor.getString(COLUMN_NAME));
+            mJson.name(TeaEntry.COLUMN_TEA_TYPE).value(typeName(cursor.getInt(COLUMN_TYPE)));
+            mJson.name(TeaEntry.COLUMN_TEA_PRICE).value(cursor.getDouble(COLUMN_PRICE));
+            mJson.name(TeaEntry.COLUMN_TEA_QUANTITY).value(cursor.getLong(COLUMN_QUANTITY));
+            // Columns without a value are left out
+            if (!cursor.isNull(COLUMN_IMAGE)) {
+                mJson.name(TeaEntry.COLUMN_TEA_IMAGE).value(cursor.getString(COLUMN_IMAGE));
+            }
+            if (!cursor.isNull(COLUMN_REORDER_LEVEL)) {
+                mJson.name(TeaEntry.COLUMN_TEA_REORDER_LEVEL)
+                        .value(cursor.getLong(COLUMN_REORDER_LEVEL));
+            }
+            if (!cursor.isNull(COLUMN_SKU)) {
+                mJson.name(TeaEntry.COLUMN_TEA_SKU).value(cursor.getString(COLUMN_SKU));
+            }
+            mJson.endObject();
+        }
+
+        @Override
+        public void end() throws IOException {
+            mJson.endArray();
+            // Pushes the closing bracket through to the writer, which is flushed by export()
+            mJson.flush();
+        }
+    }
+}
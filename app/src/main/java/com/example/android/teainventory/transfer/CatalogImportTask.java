@@ -0,0 +1,257 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports a supplier's catalogue, or merges a supplier's price list, from a file or content
+ * URI with a {@link CatalogImporter}, on a background thread. Imports run one at a time on
+ * their own executor, so a long import never holds up the AsyncTask threads. Progress is
+ * reported as the share of the file read so far. A cancelled task stops before its next
+ * line; the chunks it already wrote stay.
+ *
+ * A task outlives the activity that started it when the activity is recreated for a change of
+ * configuration: the old activity detaches itself with {@link #setCallback(Callback)} and the
+ * new one attaches itself, getting the latest progress, or the result if the import finished
+ * in between.
+ */
+public class CatalogImportTask extends AsyncTask<Void, Integer, CatalogImporter.Result> {
+
+    private static final String LOG_TAG = CatalogImportTask.class.getSimpleName();
+
+    /** Charset of the catalogues */
+    private static final String UTF_8 = "UTF-8";
+
+    /** Progress reported when the size of the file isn't known */
+    public static final int PROGRESS_UNKNOWN = -1;
+
+    /** Receives the progress and the result of an import on the main thread */
+    public interface Callback {
+        /**
+         * Called after every chunk of teas has been written, with the number of lines imported
+         * or merged so far and the percentage of the file read, or {@link #PROGRESS_UNKNOWN}.
+         */
+        void onImportProgress(int written, int percent);
+
+        /**
+         * Called once the import has finished, failed or been cancelled.
+         */
+        void onImportFinished(CatalogImporter.Result result);
+    }
+
+    /** Executor running every import, one after the other */
+    private static final Executor IMPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver mResolver;
+    private final Uri mSource;
+    private final boolean mMerge;
+    private Callback mCallback;
+
+    /** Latest progress reported, given to a callback attached later */
+    private int mWritten;
+    private int mPercent = PROGRESS_UNKNOWN;
+
+    /** Result kept for the next callback if the import finished while none was attached */
+    private CatalogImporter.Result mPendingResult;
+
+    private CatalogImportTask(Context context, Uri source, boolean merge, Callback callback) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mSource = source;
+        mMerge = merge;
+        mCallback = callback;
+    }
+
+    /**
+     * Start importing the catalogue at the given URI. Returns the running task.
+     */
+    public static CatalogImportTask start(Context context, Uri source, Callback callback) {
+        CatalogImportTask task = new CatalogImportTask(context, source, false, callback);
+        task.executeOnExecutor(IMPORT_EXECUTOR);
+        return task;
+    }
+
+    /**
+     * Start merging the price list at the given URI into the teas. Returns the running task.
+     */
+    public static CatalogImportTask startMerge(Context context, Uri source, Callback callback) {
+        CatalogImportTask task = new CatalogImportTask(context, source, true, callback);
+        task.executeOnExecutor(IMPORT_EXECUTOR);
+        return task;
+    }
+
+    /**
+     * Returns true if the task merges a price list rather than importing a catalogue.
+     */
+    public boolean isMerge() {
+        return mMerge;
+    }
+
+    /**
+     * Attach the callback receiving the progress and the result from now on, or detach the
+     * current one with null. Must be called on the main thread. An attached callback is given
+     * the latest progress at once, or the result if the import has already finished.
+     */
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        if (callback == null) {
+            return;
+        }
+        if (mPendingResult != null) {
+            CatalogImporter.Result result = mPendingResult;
+            mPendingResult = null;
+            callback.onImportFinished(result);
+        } else {
+            callback.onImportProgress(mWritten, mPercent);
+        }
+    }
+
+    @Override
+    protected CatalogImporter.Result doInBackground(Void... params) {
+        final long length = lengthOf(mSource);
+        final CountingInputStream in;
+        Reader reader;
+        try {
+            InputStream source = mResolver.openInputStream(mSource);
+            if (source == null) {
+                throw new IOException("Cannot open " + mSource);
+            }
+            in = new CountingInputStream(source);
+            reader = new InputStreamReader(in, UTF_8);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open " + mSource, e);
+            CatalogImporter.Result result = new CatalogImporter.Result();
+            result.error = e.getMessage();
+            return result;
+        }
+
+        CatalogImporter.Listener listener = new CatalogImporter.Listener() {
+            @Override
+            public void onChunkImported(int written, int skipped) {
+                publishProgress(written, length <= 0
+                        ? PROGRESS_UNKNOWN : (int) (100 * in.getCount() / length));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return CatalogImportTask.this.isCancelled();
+            }
+        };
+        try {
+            CatalogImporter importer = new CatalogImporter(mResolver);
+            return mMerge
+                    ? importer.mergePriceList(reader, listener)
+                    : importer.importCatalogue(reader, listener);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close " + mSource, e);
+            }
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        mWritten = progress[0];
+        mPercent = progress[1];
+        if (mCallback != null) {
+            mCallback.onImportProgress(mWritten, mPercent);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(CatalogImporter.Result result) {
+        deliver(result);
+    }
+
+    @Override
+    protected void onCancelled(CatalogImporter.Result result) {
+        if (result == null) {
+            // Cancelled before the import started
+            result = new CatalogImporter.Result();
+        }
+        result.cancelled = true;
+        deliver(result);
+    }
+
+    private void deliver(CatalogImporter.Result result) {
+        if (mCallback != null) {
+            mCallback.onImportFinished(result);
+        } else {
+            mPendingResult = result;
+        }
+    }
+
+    /**
+     * Returns the size of the file at the given URI in bytes, or -1 if it isn't known.
+     */
+    private long lengthOf(Uri uri) {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openAssetFileDescriptor(uri, "r");
+            return descriptor == null ? -1 : descriptor.getLength();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    // Only the length was needed
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream counting the bytes read through it, to tell how far through the file the import is.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.android.teainventory.transfer;
+
+import android.content.ContentResolver;
+
+import com.example.android.teainventory.data.TeaContract;
+import com.example.android.teainventory.data.TeaContract.SalesEntry;
+import com.example.android.teainventory.data.TeaContract.TeaEntry;
+import com.example.android.teainventory.data.TeaRecord;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports the teas of a supplier's catalogue, a CSV file whose header row names the columns.
+ * Columns are matched to the {@link TeaEntry} columns by name, ignoring case and treating
+ * spaces as underscores; a name and a type column are required, and unknown columns are
+ * ignored. Types may be given as {@link TeaEntry#TYPE_BLACK} and so on, or as "black",
+ * "green" or "herbal".
+ *
+ * The file is streamed through a {@link CsvReader}, and the teas are sent to the provider in
+ * chunks of {@link #CHUNK_SIZE}, each written in one transaction through a reused
+ * {@link TeaRecord.Batch}. Memory use therefore doesn't grow with the size of the file. Lines
+ * that break the provider's rules, or that the database refuses, such as a tea with the SKU
+ * of another, are skipped and counted, so one bad line doesn't fail the chunk around it.
+ *
+ * A supplier's price list is read the same way by {@link #mergePriceList}, which updates the
+ * teas already in the inventory instead of adding them again.
+ */
+public class CatalogImporter {
+
+    /** Number of teas written per transaction */
+    public static final int CHUNK_SIZE = 500;
+
+    /** Number of skipped lines whose reason is kept for the result */
+    private static final int MAX_SKIP_REASONS = 10;
+
+    /** Receives the progress of an import, and can stop it */
+    public interface Listener {
+        /**
+         * Called on the importing thread after every chunk has been written, with the number
+         * of lines written so far, imported or merged, and of lines skipped.
+         */
+        void onChunkImported(int written, int skipped);
+
+        /**
+         * Returns whether the import should stop. Checked before every line.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Outcome of an import. The chunks written before a cancellation or an error stay
+     * imported.
+     */
+    public static class Result {
+        /** Number of teas imported */
+        public int imported;
+
+        /** Number of teas a merged price list changed */
+        public int updated;
+
+        /** Number of lines of a merged price list matching teas that were already up to date */
+        public int unchanged;
+
+        /**
+         * Number of lines skipped because they didn't describe a valid tea, or the database
+         * refused it
+         */
+        public int skipped;
+
+        /** Why the first few lines were skipped, as "line: reason" */
+        public final List<String> skipReasons = new ArrayList<String>();
+
+        /** Whether the import was stopped before the end of the file */
+        public boolean cancelled;
+
+        /** Why the import failed, or null if it didn't */
+        public String error;
+    }
+
+    private final ContentResolver mResolver;
+
+    /**
+     * Constructs a new {@link CatalogImporter} writing teas through the given resolver.
+     */
+    public CatalogImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Import every tea in the given catalogue, reporting to the given listener. Runs on the
+     * calling thread, which mustn't be the main thread. The reader is not closed.
+     */
+    public Result importCatalogue(Reader catalogue, Listener listener) {
+        return read(catalogue, listener, false);
+    }
+
+    /**
+     * Merge the given price list into the teas, reporting to the given listener. Lines are
+     * matched to the teas by their SKU, or by their name if they have none, and set the
+     * price of the teas they match, and their quantity if the price list has a quantity
+     * column. Lines matching no tea are imported if they have a type, and skipped otherwise.
+     * Runs on the calling thread, which mustn't be the main thread. The reader is not closed.
+     *
+     * The chunks don't notify observers as they are merged, so a long price list refreshes
+     * the catalog once at the end rather than once per chunk.
+     */
+    public Result mergePriceList(Reader priceList, Listener listener) {
+        Result result = read(priceList, listener, true);
+        if (result.imported != 0 || result.updated != 0) {
+            mResolver.notifyChange(TeaEntry.CONTENT_URI, null);
+        }
+        return result;
+    }
+
+    private Result read(Reader catalogue, Listener listener, boolean merge) {
+        Result result = new Result();
+        CsvReader reader = new CsvReader(catalogue);
+        List<String> fields = new ArrayList<String>();
+        TeaRecord.Batch batch = new TeaRecord.Batch(CHUNK_SIZE);
+        // Line of the file each tea of the batch was read from
+        int[] lineNumbers = new int[CHUNK_SIZE];
+        TeaRecord record = new TeaRecord();
+        try {
+            if (!reader.readRecord(fields)) {
+                result.error = "The catalogue is empty";
+                return result;
+            }
+            ColumnMap columns = new ColumnMap(fields);
+            if (merge && (columns.name == -1 || columns.price == -1)) {
+                result.error = "The price list needs a name and a price column";
+                return result;
+            } else if (!merge && (columns.name == -1 || columns.type == -1)) {
+                result.error = "The catalogue needs a name and a type column";
+                return result;
+            }
+
+            while (reader.readRecord(fields)) {
+                if (listener.isCancelled()) {
+                    result.cancelled = true;
+                    return result;
+                }
+                if (fields.size() == 1 && fields.get(0).length() == 0) {
+                    // Blank line
+                    continue;
+                }
+                try {
+                    if (merge) {
+                        columns.readPriceListLine(fields, record);
+                    } else {
+                        columns.read(fields, record);
+                        record.validate();
+                    }
+                } catch (IllegalArgumentException e) {
+                    skip(result, reader.getLineNumber(), e.getMessage());
+                    continue;
+                }
+                lineNumbers[batch.size()] = reader.getLineNumber();
+                batch.add(record);
+                if (batch.size() == CHUNK_SIZE) {
+                    writeChunk(batch, lineNumbers, columns, merge, result, listener);
+                }
+            }
+            if (batch.size() != 0) {
+                writeChunk(batch, lineNumbers, columns, merge, result, listener);
+            }
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        } catch (RuntimeException e) {
+            // The provider failed, such as when the storage is full
+            result.error = e.getMessage();
+        }
+        return result;
+    }
+
+    private void writeChunk(TeaRecord.Batch batch, int[] lineNumbers, ColumnMap columns,
+                            boolean merge, Result result, Listener listener) {
+        if (merge) {
+            TeaContract.MergeResult merged = TeaContract.mergeTeas(mResolver, batch,
+                    columns.quantity != -1, false);
+            result.imported += merged.inserted;
+            result.updated += merged.updated;
+            result.unchanged += merged.unchanged;
+            result.skipped += merged.skipped;
+        } else {
+            // The teas the database refused come back as -1, the rest of the chunk is written
+            long[] ids = TeaContract.insertTeas(mResolver, batch, SalesEntry.SOURCE_IMPORT);
+            TeaRecord refused = null;
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != -1) {
+                    result.imported++;
+                    continue;
+                }
+                if (refused == null) {
+                    refused = new TeaRecord();
+                }
+                batch.get(i, refused);
+                skip(result, lineNumbers[i], refused.sku != null
+                        ? "Duplicate SKU " + refused.sku : "Refused by the inventory");
+            }
+        }
+        batch.clear();
+        listener.onChunkImported(result.imported + result.updated + result.unchanged,
+                result.skipped);
+    }
+
+    private static void skip(Result result, int lineNumber, String reason) {
+        result.skipped++;
+        if (result.skipReasons.size() < MAX_SKIP_REASONS) {
+            result.skipReasons.add(lineNumber + ": " + reason);
+        }
+    }
+
+    /**
+     * Positions of the {@link TeaEntry} columns in the records of a catalogue, -1 for the
+     * columns it doesn't have.
+     */
+    private static class ColumnMap {
+        int name = -1;
+        int type = -1;
+        int price = -1;
+        int quantity = -1;
+        int image = -1;
+        int reorderLevel = -1;
+        int sku = -1;
+
+        ColumnMap(List<String> header) {
+            for (int i = 0; i < header.size(); i++) {
+                String column = header.get(i).trim().toLowerCase(Locale.US).replace(' ', '_');
+                if (TeaEntry.COLUMN_TEA_NAME.equals(column)) {
+                    name = i;
+                } else if (TeaEntry.COLUMN_TEA_TYPE.equals(column)) {
+                    type = i;
+                } else if (TeaEntry.COLUMN_TEA_PRICE.equals(column)) {
+                    price = i;
+                } else if (TeaEntry.COLUMN_TEA_QUANTITY.equals(column)) {
+                    quantity = i;
+                } else if (TeaEntry.COLUMN_TEA_IMAGE.equals(column)) {
+                    image = i;
+                } else if (TeaEntry.COLUMN_TEA_REORDER_LEVEL.equals(column)) {
+                    reorderLevel = i;
+                } else if (TeaEntry.COLUMN_TEA_SKU.equals(column)) {
+                    sku = i;
+                }
+            }
+        }
+
+        /**
+         * Read the tea in the given record into the given tea record, throwing an
+         * {@link IllegalArgumentException} if a value can't be read.
+         */
+        void read(List<String> fields, TeaRecord record) {
+            read(fields, record, false);
+        }
+
+        private void read(List<String> fields, TeaRecord record, boolean typeOptional) {
+            record.id = 0;
+            record.name = get(fields, name);
+            String type = get(fields, this.type);
+            // A line without a type is left for the provider to skip if it matches no tea
+            record.type = type == null && typeOptional ? TeaRecord.NO_TYPE : parseType(type);
+            String price = get(fields, this.price);
+            record.price = price == null ? 0 : parseNumber(price, "price");
+            String quantity = get(fields, this.quantity);
+            record.quantity = quantity == null ? 0 : parseWhole(quantity, "quantity");
+            record.image = get(fields, image);
+            String reorderLevel = get(fields, this.reorderLevel);
+            record.reorderLevel = reorderLevel == null
+                    ? TeaRecord.NO_REORDER_LEVEL : parseWhole(reorderLevel, "reorder level");
+            record.sku = get(fields, sku);
+        }
+
+        /**
+         * Read the price list line in the given record into the given tea record, throwing an
+         * {@link IllegalArgumentException} if it can't be merged. The type is optional, and
+         * the price, and the quantity if the price list has a quantity column, are required.
+         */
+        void readPriceListLine(List<String> fields, TeaRecord record) {
+            if (get(fields, price) == null) {
+                throw new IllegalArgumentException("Tea requires valid price");
+            }
+            if (quantity != -1 && get(fields, quantity) == null) {
+                throw new IllegalArgumentException("Missing quantity");
+            }
+            read(fields, record, true);
+            record.validateMergeLine();
+        }
+
+        /** Returns the trimmed value at the given position, or null if it is empty or missing */
+        private static String get(List<String> fields, int position) {
+            if (position == -1 || position >= fields.size()) {
+                return null;
+            }
+            String value = fields.get(position).trim();
+            return value.length() == 0 ? null : value;
+        }
+
+        private static int parseType(String type) {
+            if (type == null) {
+                throw new IllegalArgumentException("Tea requires valid type");
+            }
+            if ("black".equalsIgnoreCase(type)) {
+                return TeaEntry.TYPE_BLACK;
+            } else if ("green".equalsIgnoreCase(type)) {
+                return TeaEntry.TYPE_GREEN;
+            } else if ("herbal".equalsIgnoreCase(type)) {
+                return TeaEntry.TYPE_HERBAL;
+            }
+            return parseWhole(type, "type");
+        }
+
+        private static double parseNumber(String value, String what) {
+            try {
+                double number = Double.parseDouble(value);
+                if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid " + what + " " + value);
+        }
+
+        private static int parseWhole(String value, String what) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + what + " " + value);
+            }
+        }
+    }
+}
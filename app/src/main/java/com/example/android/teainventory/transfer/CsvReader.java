@@ -0,0 +1,164 @@
+package com.example.android.teainventory.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads comma separated values one record at a time, as written by spreadsheets: fields may
+ * be quoted, quoted fields may hold commas, line breaks and doubled quotes, and lines may end
+ * in LF, CRLF or CR. A byte order mark at the start is skipped.
+ *
+ * Only the record being read is held in memory, in a fixed size buffer and one builder for the
+ * current field, so a file of any length is read in the same amount of memory. A field longer
+ * than {@link #MAX_FIELD_LENGTH} is reported as malformed rather than buffered.
+ */
+public class CsvReader implements Closeable {
+
+    /** Longest field that is read, in characters */
+    public static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[8192];
+    private int mPosition;
+    private int mLimit;
+
+    /** The field being read */
+    private final StringBuilder mField = new StringBuilder();
+
+    /** Line the reader is on, and line the last record started on */
+    private int mLineNumber = 1;
+    private int mRecordLineNumber;
+
+    private boolean mStarted;
+
+    /**
+     * Constructs a new {@link CsvReader} reading from the given reader. There's no need to
+     * buffer the reader, records are read through a buffer of their own.
+     */
+    public CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Read the next record into the given list, replacing what it held. An empty line is read
+     * as a record of one empty field. Returns false, leaving the list empty, once there are no
+     * more records.
+     *
+     * @throws IOException if reading fails, or the input is malformed
+     */
+    public boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        if (!mStarted) {
+            mStarted = true;
+            if (peek() == BYTE_ORDER_MARK) {
+                read();
+            }
+        }
+        if (peek() == -1) {
+            return false;
+        }
+
+        mRecordLineNumber = mLineNumber;
+        mField.setLength(0);
+        boolean inQuotes = false;
+        boolean quoted = false;
+        while (true) {
+            int c = read();
+            if (inQuotes) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field on line " + mRecordLineNumber);
+                } else if (c == QUOTE) {
+                    if (peek() == QUOTE) {
+                        // A doubled quote stands for one quote
+                        read();
+                        append(QUOTE);
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        mLineNumber++;
+                    }
+                    append((char) c);
+                }
+                continue;
+            }
+
+            switch (c) {
+                case QUOTE:
+                    if (mField.length() == 0 && !quoted) {
+                        inQuotes = true;
+                        quoted = true;
+                    } else {
+                        // A quote within an unquoted field is taken as it is
+                        append(QUOTE);
+                    }
+                    break;
+                case SEPARATOR:
+                    fields.add(mField.toString());
+                    mField.setLength(0);
+                    quoted = false;
+                    break;
+                case '\r':
+                    if (peek() == '\n') {
+                        read();
+                    }
+                    // The record ends here, like at a line feed
+                case '\n':
+                    mLineNumber++;
+                    // The record ends here, like at the end of the input
+                case -1:
+                    fields.add(mField.toString());
+                    return true;
+                default:
+                    append((char) c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the line number the last record read started on, counting from 1.
+     */
+    public int getLineNumber() {
+        return mRecordLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private void append(char c) throws IOException {
+        if (mField.length() == MAX_FIELD_LENGTH) {
+            throw new IOException("Field too long on line " + mRecordLineNumber);
+        }
+        mField.append(c);
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            mPosition++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (mPosition == mLimit) {
+            int count = mReader.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                return -1;
+            }
+            mPosition = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPosition];
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.teainventory.transfer;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes comma separated values one field at a time, in the form {@link CsvReader} reads:
+ * fields holding a comma, a quote or a line break are quoted, with their quotes doubled, and
+ * records end in CRLF as spreadsheets expect.
+ *
+ * Nothing is buffered here beyond the field being written, so the writer should be given a
+ * buffered one.
+ */
+public class CsvWriter implements Closeable, Flushable {
+
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+    private static final String LINE_BREAK = "\r\n";
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Writer mWriter;
+
+    /** Whether the next field starts a record */
+    private boolean mAtRecordStart = true;
+
+    /**
+     * Constructs a new {@link CsvWriter} writing to the given writer.
+     */
+    public CsvWriter(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Write the given field at the end of the current record. A null field is written empty.
+     */
+    public CsvWriter field(String value) throws IOException {
+        if (!mAtRecordStart) {
+            mWriter.write(SEPARATOR);
+        }
+        mAtRecordStart = false;
+        if (value == null) {
+            return this;
+        }
+        if (!needsQuotes(value)) {
+            mWriter.write(value);
+            return this;
+        }
+
+        mWriter.write(QUOTE);
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == QUOTE) {
+                // Write up to and including the quote, then the quote again
+                mWriter.write(value, start, i + 1 - start);
+                mWriter.write(QUOTE);
+                start = i + 1;
+            }
+        }
+        mWriter.write(value, start, value.length() - start);
+        mWriter.write(QUOTE);
+        return this;
+    }
+
+    /**
+     * Write the given number at the end of the current record.
+     */
+    public CsvWriter field(long value) throws IOException {
+        return field(String.valueOf(value));
+    }
+
+    /**
+     * Write the given number at the end of the current record.
+     */
+    public CsvWriter field(double value) throws IOException {
+        return field(String.valueOf(value));
+    }
+
+    /**
+     * End the current record.
+     */
+    public void endRecord() throws IOException {
+        mWriter.write(LINE_BREAK);
+        mAtRecordStart = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == QUOTE || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        // A leading byte order mark would be dropped on reading, unless quoted
+        return value.length() != 0 && value.charAt(0) == BYTE_ORDER_MARK;
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.android.teainventory.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the sample size chosen by {@link BitmapDecoder}.
+ */
+public class BitmapDecoderTest {
+
+    @Test
+    public void cameraPhotoIsSampledDownToView() {
+        // A 12 megapixel photo shown at 150dp on an xxhdpi screen. Sampling by 8 would leave
+        // 375 pixels of height, less than the view, so it stops at 4.
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(4000, 3000, 450, 450));
+    }
+
+    @Test
+    public void sampledImageIsNeverSmallerThanView() {
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(1800, 1800, 450, 450));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(1799, 1799, 450, 450));
+    }
+
+    @Test
+    public void smallImageIsNotSampled() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(300, 200, 450, 450));
+    }
+
+    @Test
+    public void unknownViewSizeDecodesFullImage() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(4000, 3000, 0, 450));
+    }
+}
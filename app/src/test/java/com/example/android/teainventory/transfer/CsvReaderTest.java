@@ -0,0 +1,81 @@
+package com.example.android.teainventory.transfer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the parsing of {@link CsvReader}.
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void plainRecordsAreSplitAtCommas() throws IOException {
+        List<List<String>> records = readAll("name,price\nAssam,3.5\nSencha,6\n");
+        assertEquals(3, records.size());
+        assertEquals(Arrays.asList("name", "price"), records.get(0));
+        assertEquals(Arrays.asList("Sencha", "6"), records.get(2));
+    }
+
+    @Test
+    public void quotedFieldsKeepCommasQuotesAndLineBreaks() throws IOException {
+        List<List<String>> records = readAll(
+                "\"Earl Grey, Smoky\",\"The \"\"original\"\"\",\"two\nlines\"\r\nnext,,\r\n");
+        assertEquals(2, records.size());
+        assertEquals(Arrays.asList("Earl Grey, Smoky", "The \"original\"", "two\nlines"),
+                records.get(0));
+        assertEquals(Arrays.asList("next", "", ""), records.get(1));
+    }
+
+    @Test
+    public void lastRecordNeedsNoLineBreak() throws IOException {
+        List<List<String>> records = readAll("a,b\rc,d");
+        assertEquals(Arrays.asList("a", "b"), records.get(0));
+        assertEquals(Arrays.asList("c", "d"), records.get(1));
+    }
+
+    @Test
+    public void byteOrderMarkIsSkipped() throws IOException {
+        assertEquals(Arrays.asList("name"), readAll("\uFEFFname\n").get(0));
+    }
+
+    @Test
+    public void lineNumbersCountLineBreaksInsideFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\"a\nb\",c\nd\n"));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(1, reader.getLineNumber());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(3, reader.getLineNumber());
+        assertFalse(reader.readRecord(fields));
+        assertTrue(fields.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedQuoteIsMalformed() throws IOException {
+        readAll("\"never closed,a\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void overlongFieldIsMalformed() throws IOException {
+        char[] field = new char[CsvReader.MAX_FIELD_LENGTH + 1];
+        Arrays.fill(field, 'x');
+        readAll(new String(field));
+    }
+
+    private static List<List<String>> readAll(String csv) throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(csv));
+        List<List<String>> records = new ArrayList<List<String>>();
+        List<String> fields = new ArrayList<String>();
+        while (reader.readRecord(fields)) {
+            records.add(new ArrayList<String>(fields));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.android.teainventory.transfer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the quoting of {@link CsvWriter}.
+ */
+public class CsvWriterTest {
+
+    @Test
+    public void plainFieldsAreNotQuoted() throws IOException {
+        StringWriter out = new StringWriter();
+        CsvWriter writer = new CsvWriter(out);
+        writer.field("Assam").field(3.5).field(12).field((String) null).endRecord();
+        writer.field("Sencha").endRecord();
+        assertEquals("Assam,3.5,12,\r\nSencha\r\n", out.toString());
+    }
+
+    @Test
+    public void fieldsWithSpecialCharactersAreQuoted() throws IOException {
+        StringWriter out = new StringWriter();
+        new CsvWriter(out).field("Earl Grey, Smoky").field("The \"original\"").endRecord();
+        assertEquals("\"Earl Grey, Smoky\",\"The \"\"original\"\"\"\r\n", out.toString());
+    }
+
+    @Test
+    public void writtenRecordsReadBackUnchanged() throws IOException {
+        List<String> record = Arrays.asList("\"", "a,b", "two\r\nlines", "", "\uFEFFmark", "cr\r");
+        StringWriter out = new StringWriter();
+        CsvWriter writer = new CsvWriter(out);
+        for (String field : record) {
+            writer.field(field);
+        }
+        writer.endRecord();
+
+        CsvReader reader = new CsvReader(new StringReader(out.toString()));
+        List<String> fields = new ArrayList<String>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(record, fields);
+        assertFalse(reader.readRecord(fields));
+    }
+}